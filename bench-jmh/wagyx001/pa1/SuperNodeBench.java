@@ -0,0 +1,70 @@
+package wagyx001.pa1;
+
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import wagyx001.pa1.core.FingerTable;
+import wagyx001.pa1.core.NodeInfo;
+import wagyx001.pa1.core.Ring;
+
+/**
+ * The SuperNode's ring index: finding a predecessor and building a
+ * joining node's finger table, for rings of several sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SuperNodeBench {
+
+    @Param({ "16", "1024", "65536" })
+    int ringSize;
+
+    private SuperNode superNode;
+    private long[] ids;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        superNode = new SuperNode();
+        Random random = new Random(1);
+        while (superNode.ring.size() < ringSize) {
+            int i = superNode.ring.size();
+            long id = random.nextLong() & Ring.MASK;
+            NodeInfo ni = new NodeInfo(id, "10.0." + (i >> 8 & 255) + "."
+                    + (i & 255), 1024 + i % 60000);
+            if (superNode.ring.putIfAbsent(id, ni) == null) {
+                superNode.nodeInfos.add(ni);
+            }
+        }
+        ids = new long[1024];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = random.nextLong() & Ring.MASK;
+        }
+    }
+
+    @Benchmark
+    public NodeInfo getPredecessor() throws RemoteException {
+        return superNode.getPredecessor(ids[next++ & 1023]);
+    }
+
+    @Benchmark
+    public FingerTable getNewFingerTable() throws RemoteException {
+        return superNode.getNewFingerTable(ids[next++ & 1023]);
+    }
+}
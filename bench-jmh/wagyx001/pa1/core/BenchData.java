@@ -0,0 +1,71 @@
+package wagyx001.pa1.core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Made-up words, definitions and rings for the benchmarks
+ */
+class BenchData {
+
+    static String word(Random random, int length) {
+        char[] c = new char[length];
+        for (int i = 0; i < length; i++) {
+            c[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(c);
+    }
+
+    static String[] words(int n, int length, Random random) {
+        String[] words = new String[n];
+        for (int i = 0; i < n; i++) {
+            words[i] = word(random, length);
+        }
+        return words;
+    }
+
+    static ArrayList<DictionaryEntry> entries(int n, Random random) {
+        ArrayList<DictionaryEntry> entries = new ArrayList<DictionaryEntry>(n);
+        for (int i = 0; i < n; i++) {
+            entries.add(new DictionaryEntry(word(random, 4 + random.nextInt(9))
+                    + i, "a made up definition, " + word(random, 20)));
+        }
+        return entries;
+    }
+
+    /**
+     * Nodes at n distinct random ids, keyed in (unsigned) id order
+     */
+    static TreeMap<Long, NodeInfo> ring(int n, Random random) {
+        TreeMap<Long, NodeInfo> ring = new TreeMap<Long, NodeInfo>(
+                new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return Ring.compare(a, b);
+            }
+        });
+        while (ring.size() < n) {
+            int i = ring.size();
+            long id = random.nextLong() & Ring.MASK;
+            ring.put(id, new NodeInfo(id, "10.0." + (i >> 8 & 255) + "."
+                    + (i & 255), 1024 + i % 60000));
+        }
+        return ring;
+    }
+
+    /**
+     * The finger table a node would get from the SuperNode
+     */
+    static FingerTable fingerTable(TreeMap<Long, NodeInfo> ring, long id) {
+        FingerTable ft = new FingerTable();
+        for (int i = 1; i <= Consts.FINGERTABLE_SIZE; i++) {
+            Map.Entry<Long, NodeInfo> e =
+                    ring.ceilingEntry(Ring.fingerStart(id, i));
+            ft.add((e == null ? ring.firstEntry() : e).getValue());
+        }
+        return ft;
+    }
+}
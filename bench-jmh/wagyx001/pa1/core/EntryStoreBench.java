@@ -0,0 +1,90 @@
+package wagyx001.pa1.core;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups and updates on a node's entries, for both entry stores and
+ * through <code>WordDictionary.getEntry</code>, at several dictionary
+ * sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class EntryStoreBench {
+
+    @Param({ "1000", "100000", "1000000" })
+    int entries;
+
+    @Param({ "heap", "offheap" })
+    String store;
+
+    private EntryStore entryStore;
+    private WordDictionary dictionary;
+    private String[] present;
+    private String[] missing;
+    private DictionaryEntry[] replacements;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // WordDictionary picks its store from chord.store when Consts is
+        // loaded, and each set of params gets a fresh JVM
+        System.setProperty("chord.store", store);
+        Random random = new Random(1);
+        ArrayList<DictionaryEntry> all = BenchData.entries(entries, random);
+        entryStore = "offheap".equals(store)
+                ? new OffHeapEntryStore() : new HeapEntryStore();
+        dictionary = new WordDictionary();
+        for (DictionaryEntry e : all) {
+            entryStore.put(e);
+            dictionary.addEntry(e);
+        }
+        present = new String[4096];
+        missing = new String[4096];
+        replacements = new DictionaryEntry[4096];
+        for (int i = 0; i < present.length; i++) {
+            DictionaryEntry e = all.get(random.nextInt(all.size()));
+            present[i] = e.getWord().toUpperCase();
+            missing[i] = e.getWord() + "-not";
+            replacements[i] = new DictionaryEntry(e.getWord(),
+                    "another made up definition " + i);
+        }
+    }
+
+    @Benchmark
+    public DictionaryEntry getHit() {
+        return entryStore.get(present[next++ & 4095]);
+    }
+
+    @Benchmark
+    public DictionaryEntry getMiss() {
+        return entryStore.get(missing[next++ & 4095]);
+    }
+
+    @Benchmark
+    public void putReplace() {
+        entryStore.put(replacements[next++ & 4095]);
+    }
+
+    @Benchmark
+    public DictionaryEntry dictionaryGetEntry() {
+        return dictionary.getEntry(present[next++ & 4095]);
+    }
+}
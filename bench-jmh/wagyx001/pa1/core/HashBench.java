@@ -0,0 +1,44 @@
+package wagyx001.pa1.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of hashing a word onto the ring (<code>Util.getHash</code>)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBench {
+
+    @Param({ "6", "12", "40" })
+    int wordLength;
+
+    private String[] words;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        words = BenchData.words(1024, wordLength, new Random(1));
+    }
+
+    @Benchmark
+    public long getHash() {
+        return Util.getHash(words[next++ & (words.length - 1)]);
+    }
+}
@@ -0,0 +1,133 @@
+package wagyx001.pa1.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding the values that go over the wire, with both RMI's
+ * Java serialization (of their Externalizable forms) and the NIO
+ * transport's codec. The encoded size is reported next to the timings as
+ * the <code>bytes</code> counter; it's the same <code>ant bench-size</code>
+ * prints, here for finger tables from rings of several sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireBench {
+
+    public enum Value {
+        ENTRY, NODE_INFO, FINGER_TABLE
+    }
+
+    @Param({ "ENTRY", "NODE_INFO", "FINGER_TABLE" })
+    Value value;
+
+    // only changes what the finger table holds
+    @Param({ "16", "1024", "65536" })
+    int ringSize;
+
+    private Object v;
+    private byte[] serialized;
+    private byte[] encoded;
+
+    /**
+     * Size of the last value encoded
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Size {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        TreeMap<Long, NodeInfo> ring = BenchData.ring(ringSize, random);
+        NodeInfo ni = ring.firstEntry().getValue();
+        switch (value) {
+            case ENTRY:
+                v = BenchData.entries(1, random).get(0);
+                break;
+            case NODE_INFO:
+                v = ni;
+                break;
+            default:
+                v = BenchData.fingerTable(ring, ni.id);
+        }
+        serialized = serialize(v);
+        encoded = encode(v);
+    }
+
+    private static byte[] serialize(Object v) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(v);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(Object v) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WireCodec.write(out, v);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] serializeWrite(Size size) throws IOException {
+        byte[] b = serialize(v);
+        size.bytes = b.length;
+        return b;
+    }
+
+    @Benchmark
+    public Object serializeRead() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(serialized));
+        return in.readObject();
+    }
+
+    @Benchmark
+    public byte[] codecWrite(Size size) throws IOException {
+        byte[] b = encode(v);
+        size.bytes = b.length;
+        return b;
+    }
+
+    @Benchmark
+    public Object codecRead() throws IOException {
+        return WireCodec.read(new DataInputStream(
+                new ByteArrayInputStream(encoded)));
+    }
+}
@@ -0,0 +1,135 @@
+package wagyx001.pa1.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Prints how many bytes the values sent per lookup and per update take
+ * on the wire: in the old default Serializable form, in the compact
+ * Externalizable form RMI now sends, and in the NIO transport's codec.
+ *
+ * Run with <code>ant bench-size</code>.
+ */
+public class WireSizeBench {
+
+    // the value classes as they were before they were made Externalizable
+    static class OldNodeInfo implements Serializable {
+        static final long serialVersionUID = 2341234L;
+        long id;
+        String ipAddress;
+        int portNumber;
+
+        OldNodeInfo(NodeInfo ni) {
+            id = ni.id;
+            ipAddress = ni.ipAddress;
+            portNumber = ni.portNumber;
+        }
+    }
+
+    static class OldDictionaryEntry implements Serializable {
+        static final long serialVersionUID = 28934L;
+        String word;
+        String definition;
+        long key;
+
+        OldDictionaryEntry(DictionaryEntry e) {
+            word = e.getWord();
+            definition = e.getDefinition();
+            key = e.getKey();
+        }
+    }
+
+    static class OldFingerTable implements Serializable {
+        static final long serialVersionUID = 1392184726L;
+        OldNodeInfo[] nodes;
+        int size;
+
+        OldFingerTable(FingerTable ft) {
+            nodes = new OldNodeInfo[ft.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = new OldNodeInfo(ft.get(i));
+            }
+            size = nodes.length;
+        }
+    }
+
+    static class OldRoutedReply implements Serializable {
+        static final long serialVersionUID = 73451982L;
+        boolean owner;
+        OldDictionaryEntry entry;
+        ArrayList<OldNodeInfo> path;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ArrayList<NodeInfo> nodes = new ArrayList<NodeInfo>();
+        for (int i = 0; i < 8; i++) {
+            String addr = "10.0.0." + (i + 1);
+            nodes.add(new NodeInfo(Util.getHash(addr + ":50000"), addr, 50000));
+        }
+        NodeInfo ni = nodes.get(0);
+        DictionaryEntry entry = new DictionaryEntry("anonymous",
+                "without a name or of unknown name");
+
+        // a full table over 8 nodes, as most of the fingers repeat
+        FingerTable ft = new FingerTable();
+        for (int i = 0; i < Consts.FINGERTABLE_SIZE; i++) {
+            ft.add(nodes.get(Math.min(7, i / 4)));
+        }
+
+        RoutedReply reply = RoutedReply.owned(entry);
+        reply.path = new ArrayList<NodeInfo>(nodes.subList(0, 5));
+        OldRoutedReply oldReply = new OldRoutedReply();
+        oldReply.owner = true;
+        oldReply.entry = new OldDictionaryEntry(entry);
+        oldReply.path = new ArrayList<OldNodeInfo>();
+        for (NodeInfo n : reply.path) {
+            oldReply.path.add(new OldNodeInfo(n));
+        }
+
+        System.out.println(String.format("%-34s %10s %10s %10s",
+                "value", "old", "compact", "nio"));
+        row("NodeInfo", serialized(new OldNodeInfo(ni)),
+                serialized(ni), wire(ni));
+        row("DictionaryEntry", serialized(new OldDictionaryEntry(entry)),
+                serialized(entry), wire(entry));
+        row("FingerTable (" + ft.size() + " fingers, 8 nodes)",
+                serialized(new OldFingerTable(ft)), serialized(ft), wire(ft));
+        row("lookup reply (entry + 5 hop path)", serialized(oldReply),
+                serialized(reply), wire(reply));
+        row("update (finger table + pred)",
+                serialized(new OldFingerTable(ft), new OldNodeInfo(ni)),
+                serialized(ft, ni), wire(ft) + wire(ni));
+    }
+
+    private static void row(String name, int old, int compact, int nio) {
+        System.out.println(String.format("%-34s %10d %10d %10d  (%.1fx / %.1fx)",
+                name, old, compact, nio, (double) old / compact,
+                (double) old / nio));
+    }
+
+    /**
+     * Bytes to send the values as the arguments of one RMI call, which
+     * gets a fresh object stream (and so fresh class descriptors)
+     */
+    private static int serialized(Object... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        for (Object v : values) {
+            out.writeObject(v);
+        }
+        out.close();
+        return bytes.size();
+    }
+
+    private static int wire(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WireCodec.write(out, value);
+        out.close();
+        return bytes.size();
+    }
+}
@@ -1,27 +1,51 @@
 package wagyx001.pa1;
 
-import java.rmi.AccessException;
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import wagyx001.pa1.core.AsyncNode;
 import wagyx001.pa1.core.Consts;
 import wagyx001.pa1.core.DictionaryEntry;
 import wagyx001.pa1.core.INode;
 import wagyx001.pa1.core.ISuperNode;
 import wagyx001.pa1.core.NodeInfo;
+import wagyx001.pa1.core.Ring;
+import wagyx001.pa1.core.RingView;
+import wagyx001.pa1.core.RoutedReply;
+import wagyx001.pa1.core.ScanPage;
+import wagyx001.pa1.core.StubCache;
+import wagyx001.pa1.core.Trace;
+import wagyx001.pa1.core.Transports;
+import wagyx001.pa1.core.Util;
 import wagyx001.pa1.core.WordDictionary;
+import wagyx001.pa1.core.WordFileReader;
 
 public class Client {
 
     private NodeInfo superNodeLocation;
     private WordDictionary wordDictionary;
     private ISuperNode superNode;
+    private StubCache stubCache;
+    
+    // runs our calls on the nodes, so several can be out at once
+    private AsyncNode async;
+    
+    // our picture of the ring, so requests can go straight to the owner
+    private RingView ringView;
     
     private static Logger log;
     
@@ -29,21 +53,18 @@ public class Client {
      * Client constructor
      */
     public Client() { 
+        stubCache = new StubCache(Consts.STUB_CACHE_SIZE);
+        ringView = new RingView();
+        async = new AsyncNode(stubCache, null, null);
         try {
-            // get the supernode from RMI registry to call initiate for this node
-            Registry registry =
-                    LocateRegistry.getRegistry(Consts.SUPERNODE_URL);
-            try {
-                superNode =
-                        (ISuperNode) (ISuperNode) registry.lookup(Consts.SUPERNODE_RMI_DESC);
-            } catch (NotBoundException ex) {
-                System.err.println("ERROR: Client couldn't lookup registry because it isn't bound: " + ex);
-            } catch (AccessException ex) {
-                System.err.println("ERROR: Client couldn't lookup registry due to lack of access: " + ex);
-            }
+            // get the supernode to find the nodes through
+            superNode = Transports.get().getSuperNode();
+        } catch (NotBoundException ex) {
+            System.err.println("ERROR: Client couldn't lookup registry because it isn't bound: " + ex);
         } catch (RemoteException ex) {
             System.err.append("ERROR: Client remote exception: " + ex);
         }
+        refreshRingView();
         /*
         System.out.println("Getting 4 word definitoins: ");        
         for (DictionaryEntry e : wordDictionary.getNEntries(4)) {
@@ -103,6 +124,10 @@ public class Client {
             doRandomNodeInfo();
         } else if (choice.equalsIgnoreCase("e")) {
             doEnterWordDefinitionByHand();
+        } else if (choice.equalsIgnoreCase("l")) {
+            doLookupWord();
+        } else if (choice.equalsIgnoreCase("t")) {
+            doShowTraces();
         }
         return choice;
     }
@@ -122,6 +147,15 @@ public class Client {
         addWord(entry);
     }
     
+    /**
+     * Look up a word's definition entered at the client prompt
+     */
+    public void doLookupWord() {
+        System.out.print("Please enter the word to look up: ");
+        String word = getInput();
+        getDefinition(word);
+    }
+    
     /**
      * Add word file
      */
@@ -153,8 +187,8 @@ public class Client {
     private void doPingNode() {
         System.out.println(
                 "What is the node ID that you want to ping?");
-        int nodeId;
-        nodeId = Integer.valueOf(getInput());
+        long nodeId;
+        nodeId = Ring.parse(getInput());
    
         try {
             /* 
@@ -165,23 +199,22 @@ public class Client {
                 NodeInfo nodeInfo = superNode.getNodeInfo(nodeId);
                 // get the node from RMI Registry
                 // at location specified by NodeInfo
-                Registry registry =
-                        LocateRegistry.getRegistry(nodeInfo.ipAddress);
                 try {
-                    INode node =
-                            (INode) registry.lookup(Consts.NODE_RMI_DESC);
                     log.info("Contacting Node " + nodeId);
-                    NodeInfo myNodeInfo = node.getNodeInfo();
-                    log.debug("getting word dictionary");
-                    WordDictionary myDict = node.getWordDictionary();
+                    NodeInfo myNodeInfo = async.getNodeInfo(nodeInfo).join();
+                    INode node = stubCache.getNode(nodeInfo);
                     System.out.println("Got this info from the node:");
                     System.out.println(myNodeInfo);
-                    System.out.println("Words: ");
-                    System.out.println(myDict);
+                    System.out.println(node.getNodeStats());
+                    printNodeWords(node);
+                } catch (CompletionException ex) {
+                    log.error("Couldn't reach node " + nodeId + ": " 
+                            + ex.getCause());
                 } catch (NotBoundException ex) {
                     System.err.println("ERROR: Client couldn't lookup registry because it isn't bound: " + ex);
-                } catch (AccessException ex) {
-                    System.err.println("ERROR: Client couldn't lookup registry due to lack of access: " + ex);
+                } catch (RemoteException ex) {
+                    stubCache.invalidate(nodeInfo);
+                    throw ex;
                 }
             } catch (RemoteException ex) {
                 log.error("Error calling getNodeInfo using node id " + nodeId
@@ -196,12 +229,92 @@ public class Client {
         
     }
     
+    /**
+     * Print the requests a node traced most recently, to see where
+     * slow lookups spend their time
+     */
+    private void doShowTraces() {
+        System.out.println(
+                "What is the node ID whose traces you want to see?");
+        long nodeId = Ring.parse(getInput());
+        NodeInfo nodeInfo = null;
+        try {
+            nodeInfo = superNode.getNodeInfo(nodeId);
+            ArrayList<Trace> traces = 
+                    stubCache.getNode(nodeInfo).getTraces(Consts.TRACES_SHOWN);
+            if (traces.isEmpty()) {
+                System.out.println("No traced requests yet");
+            }
+            for (Trace t : traces) {
+                System.out.print(t);
+            }
+        } catch (NotBoundException ex) {
+            System.err.println("ERROR: Client couldn't lookup registry because it isn't bound: " + ex);
+        } catch (RemoteException ex) {
+            if (nodeInfo != null) {
+                stubCache.invalidate(nodeInfo);
+            }
+            log.error("Couldn't get traces from node " + nodeId + ": " + ex);
+        }
+    }
+    
+    /**
+     * Print a node's words a page at a time, for as long as the user
+     * wants more
+     */
+    private void printNodeWords(INode node) throws RemoteException {
+        String token = null;
+        do {
+            // from == to, so every word the node owns
+            ScanPage page = node.scanEntries(0, 0, token, Consts.SCAN_PAGE_SIZE);
+            for (DictionaryEntry e : page.entries) {
+                System.out.print(e);
+            }
+            token = page.resumeToken;
+            if (token != null) {
+                System.out.println("(m)ore words, anything else to stop");
+            }
+        } while (token != null && getInput().equalsIgnoreCase("m"));
+    }
+    
     /**
      * Add a word dictionary object to this client to be sent to Nodes
      * @param wordDictionaryFile 
      */
     private void addWordDictionary(String wordDictionaryFile) {
-        wordDictionary = new WordDictionary(wordDictionaryFile);
+        // stream the file straight into the DHT a batch at a time rather
+        // than loading all of it into a WordDictionary first, with a few
+        // batches on their way at once
+        WordFileReader reader = new WordFileReader(wordDictionaryFile);
+        final AtomicInteger failed = new AtomicInteger();
+        final Semaphore inFlight = 
+                new Semaphore(Consts.CLIENT_BATCHES_IN_FLIGHT);
+        log.info("Sending words to the DHT in batches of "
+                + Consts.INSERT_BATCH_SIZE);
+        try {
+            reader.read(new Consumer<ArrayList<DictionaryEntry>>() {
+                @Override
+                public void accept(ArrayList<DictionaryEntry> batch) {
+                    inFlight.acquireUninterruptibly();
+                    addWords(batch).whenComplete(
+                            new BiConsumer<Integer, Throwable>() {
+                        @Override
+                        public void accept(Integer notAdded, Throwable t) {
+                            failed.addAndGet(notAdded);
+                            inFlight.release();
+                        }
+                    });
+                }
+            });
+        } catch (IOException ex) {
+            log.error("Unable to read words file " + wordDictionaryFile 
+                    + ": " + ex);
+        }
+        // wait for the last batches to finish
+        inFlight.acquireUninterruptibly(Consts.CLIENT_BATCHES_IN_FLIGHT);
+        inFlight.release(Consts.CLIENT_BATCHES_IN_FLIGHT);
+        log.info("Added " + (reader.getEntriesRead() - failed.get()) + " of " 
+                + reader.getEntriesRead() + " words");
     }
     
     /**
@@ -214,6 +327,8 @@ public class Client {
         s += "(p)ing a node\n";
         s += "(g)et a random node id from supernode\n";
         s += "(e)nter word/definition on command line\n";
+        s += "(l)ook up a word's definition\n";
+        s += "(t)races of a node's recent requests\n";
         s += "(q)uit\n";
         
         System.out.println(s);
@@ -228,10 +343,15 @@ public class Client {
     
     
     /*
-     * Get some node's info from the SuperNode to start our
-     * search for the correct node in which to insert or fetch a word
+     * Get some node's info to start our search for the correct node
+     * in which to insert or fetch a word. We only ask the SuperNode if
+     * we don't know of any nodes ourselves
      */
     private NodeInfo getSomeNodesInfo () {
+        NodeInfo ni = ringView.any();
+        if (ni != null) {
+            return ni;
+        }
         try {
             return superNode.giveRandomNodeInfo();
         } catch (RemoteException ex) {
@@ -239,60 +359,163 @@ public class Client {
             return null;
         }
     }
+    
+    /**
+     * Replace our view of the ring with the SuperNode's list of nodes
+     */
+    private void refreshRingView() {
+        if (superNode == null) {
+            log.error("No SuperNode to get the list of nodes from");
+            return;
+        }
+        try {
+            ringView.reset(superNode.getNodeInfos());
+            log.debug("Ring view has " + ringView.size() + " nodes");
+        } catch (RemoteException ex) {
+            log.error("Unable to get the list of nodes from SuperNode: " + ex);
+        }
+    }
+    
+    /**
+     * Send a request straight to the node our ring view says owns the key.
+     * If that node is down we drop it from the view, and if it isn't the
+     * owner we learn the real owner from the path it sends back; either
+     * way we then try again.
+     * @return the owner's reply, or null if we couldn't reach the owner
+     */
+    private CompletableFuture<RoutedReply> callOwner(long key, 
+            AsyncNode.RemoteCall<RoutedReply> call) {
+        return callOwner(key, call, 0);
+    }
+    
+    private CompletableFuture<RoutedReply> callOwner(final long key, 
+            final AsyncNode.RemoteCall<RoutedReply> call, final int attempt) {
+        if (attempt == Consts.CLIENT_MAX_ATTEMPTS) {
+            log.error("Gave up trying to reach the owner of key " + key);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (ringView.isEmpty()) {
+            refreshRingView();
+        }
+        final NodeInfo target = ringView.ownerOf(key);
+        if (target == null) {
+            log.error("We don't know of any nodes to send key " + key + " to");
+            return CompletableFuture.completedFuture(null);
+        }
+        return async.call(target, call).handle(new BiFunction<RoutedReply, 
+                Throwable, CompletableFuture<RoutedReply>>() {
+            @Override
+            public CompletableFuture<RoutedReply> apply(RoutedReply reply, 
+                    Throwable t) {
+                if (t != null) {
+                    log.warn("Couldn't reach node " + target.id + ": " 
+                            + t.getCause());
+                    ringView.forget(target);
+                } else if (reply.owner) {
+                    return CompletableFuture.completedFuture(reply);
+                } else {
+                    log.debug("Node " + target.id + " doesn't own key " + key);
+                    if (reply.trace != null && log.isDebugEnabled()) {
+                        log.debug("It traced routing the key:\n" + reply.trace);
+                    }
+                    if (reply.path == null) {
+                        // the node couldn't route the key either, so start over
+                        refreshRingView();
+                    } else {
+                        ringView.learnAll(reply.path);
+                    }
+                }
+                return callOwner(key, call, attempt + 1);
+            }
+        }).thenCompose(new Function<CompletableFuture<RoutedReply>, 
+                CompletableFuture<RoutedReply>>() {
+            @Override
+            public CompletableFuture<RoutedReply> apply(
+                    CompletableFuture<RoutedReply> next) {
+                return next;
+            }
+        });
+    }
 
-    private void addWord(DictionaryEntry entry) {
+    private void addWord(final DictionaryEntry entry) {
         log.info("adding a word.defn to DHT: " + entry);
-        // get a random node from the DHT to start with
-        NodeInfo ni = getSomeNodesInfo();
-        try {
-            // add the word to the DHT 
-            // (at this point, the node will figure out where
-            // in the DHT to put it... that is hidden from the client)
-            Registry registry = 
-                    LocateRegistry.getRegistry(ni.ipAddress);
-            INode node = 
-                    (INode) registry.lookup(Consts.NODE_RMI_DESC);
-            node.addWordDefinition(entry);
+        // send the word straight to the node that owns it
+        RoutedReply reply = callOwner(entry.getKey(), 
+                new AsyncNode.RemoteCall<RoutedReply>() {
+            @Override
+            public RoutedReply call(INode node) throws RemoteException {
+                return node.addWordIfOwner(entry);
+            }
+        }).join();
+        if (reply != null) {
             log.debug("Successfully added: " + entry);
-        } catch (NotBoundException ex) {
-            log.error("NotBound issues with addWord: " + ex);
-        } catch (AccessException ex) {
-            log.error("Access issues with addWord: " + ex);
-        } catch (RemoteException ex) {
-            log.error("Unable to look up registry: " + ex);
+            if (reply.trace != null) {
+                log.info("The owner traced the insert:\n" + reply.trace);
+            }
+        } else {
+            log.error("Unable to add: " + entry);
         }
-        
+    }
+    
+    /**
+     * Add a batch of words through one node, which splits it up
+     * between the nodes that own the words
+     * @return the number of words that couldn't be added
+     */
+    private CompletableFuture<Integer> addWords(
+            final ArrayList<DictionaryEntry> batch) {
+        log.debug("adding a batch of " + batch.size() + " words to DHT");
+        NodeInfo ni = getSomeNodesInfo();
+        if (ni == null) {
+            return CompletableFuture.completedFuture(batch.size());
+        }
+        return async.call(ni, new AsyncNode.RemoteCall<boolean[]>() {
+            @Override
+            public boolean[] call(INode node) throws RemoteException {
+                return node.addWordDefinitions(batch);
+            }
+        }).handle(new BiFunction<boolean[], Throwable, Integer>() {
+            @Override
+            public Integer apply(boolean[] added, Throwable t) {
+                if (t != null) {
+                    log.error("Remote issues with addWords: " + t.getCause());
+                    return batch.size();
+                }
+                int failed = 0;
+                for (int i=0; i<added.length; i++) {
+                    if (!added[i]) {
+                        log.warn("Couldn't add: " + batch.get(i));
+                        failed++;
+                    }
+                }
+                return failed;
+            }
+        });
     }
     
     /**
      * Look up a definition in the DHT
      */
-    private void getDefinition(String word) {
+    private void getDefinition(final String word) {
         log.info("Getting a word's definition from DHT: " + word);
-        // get a random node from the DHT to start with
-        NodeInfo ni = getSomeNodesInfo();
-        try {
-            // add the word to the DHT 
-            // (at this point, the node will figure out where
-            // in the DHT to get it... that is hidden from the client)
-            Registry registry = 
-                    LocateRegistry.getRegistry(ni.ipAddress);
-            INode node = 
-                    (INode) registry.lookup(Consts.NODE_RMI_DESC);
-            DictionaryEntry entry = node.getWord(word);
-            if (entry != null) {
-                System.out.println("Found this entry: " + entry);
-            } else {
-                log.warn("Could find the word: " + word);
+        // ask the node that owns the word directly
+        RoutedReply reply = callOwner(Util.getHash(word), 
+                new AsyncNode.RemoteCall<RoutedReply>() {
+            @Override
+            public RoutedReply call(INode node) throws RemoteException {
+                return node.getWordIfOwner(word);
             }
-        } catch (NotBoundException ex) {
-            log.error("NotBound issues with addWord: " + ex);
-        } catch (AccessException ex) {
-            log.error("Access issues with addWord: " + ex);
-        } catch (RemoteException ex) {
-            log.error("Unable to look up registry: " + ex);
+        }).join();
+        if (reply == null) {
+            log.error("Unable to look up: " + word);
+        } else if (reply.entry != null) {
+            System.out.println("Found this entry: " + reply.entry);
+        } else {
+            log.warn("Could find the word: " + word);
+        }
+        if (reply != null && reply.trace != null) {
+            System.out.print("The owner traced the lookup:\n" + reply.trace);
         }
-        
     }
 
 
@@ -1,25 +1,62 @@
 package wagyx001.pa1;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.rmi.AccessException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import wagyx001.pa1.core.ApproxLruMap;
+import wagyx001.pa1.core.AsyncNode;
 import wagyx001.pa1.core.DictionaryEntry;
+import wagyx001.pa1.core.DictionaryJournal;
+import wagyx001.pa1.core.FilterDirectory;
 import wagyx001.pa1.core.NodeInfo;
 import wagyx001.pa1.core.Consts;
 import wagyx001.pa1.core.FingerTable;
+import wagyx001.pa1.core.Histogram;
 import wagyx001.pa1.core.INode;
 import wagyx001.pa1.core.ISuperNode;
+import wagyx001.pa1.core.KeyFilter;
+import wagyx001.pa1.core.Metrics;
+import wagyx001.pa1.core.ReplicaCopies;
+import wagyx001.pa1.core.ReplicaSelector;
+import wagyx001.pa1.core.NodeStats;
+import wagyx001.pa1.core.Ring;
+import wagyx001.pa1.core.RouteStep;
+import wagyx001.pa1.core.RoutedReply;
+import wagyx001.pa1.core.ScanPage;
+import wagyx001.pa1.core.StubCache;
+import wagyx001.pa1.core.Trace;
+import wagyx001.pa1.core.Tracer;
+import wagyx001.pa1.core.TransferChunk;
+import wagyx001.pa1.core.TransferReceiver;
+import wagyx001.pa1.core.Transports;
 import wagyx001.pa1.core.Util;
+import wagyx001.pa1.core.WordCache;
 import wagyx001.pa1.core.WordDictionary;
         
 /**
@@ -28,6 +65,16 @@ import wagyx001.pa1.core.WordDictionary;
  * the nodes that are responsible for a particular key value
  * and it stores a subset of the words in the distributed dictionary
  * 
+ * The SuperNode only gives a node its id and a first finger table when it
+ * joins. After that the node keeps its own routing info right with the
+ * usual Chord maintenance rounds (stabilize/notify, fix_fingers and
+ * predecessor/successor checks) run in the background.
+ * 
+ * Every word a node owns is also copied to the next few nodes along the
+ * ring (its successor list, -Dchord.replicas long). Any of those copies
+ * can answer a read, and a successor takes the words over if the owner
+ * fails.
+ * 
  */
 public class Node implements INode {
 
@@ -37,64 +84,225 @@ public class Node implements INode {
     private int portNum;
     
     private ISuperNode superNode;
+    
+    // stubs of the other nodes we talk to, so we don't hit their
+    // registries on every hop
+    private StubCache stubCache;
+    
+    // asynchronous calls on other nodes, including iterative lookups
+    private AsyncNode async;
 
-    private static Logger log;
+    private static Logger log = Logger.getLogger(Node.class);
+    
+    // how long the main calls on us take (us), and how many hops it
+    // takes us to find a key's owner
+    private static final Histogram resolveKeyTime = 
+            Metrics.histogram("node.resolveKey.us");
+    private static final Histogram getWordTime = 
+            Metrics.histogram("node.getWord.us");
+    private static final Histogram addWordTime = 
+            Metrics.histogram("node.addWordDefinition.us");
+    private static final Histogram addWordsTime = 
+            Metrics.histogram("node.addWordDefinitions.us");
+    private static final Histogram addToMyDictionaryTime = 
+            Metrics.histogram("node.addToMyDictionary.us");
+    private static final Histogram updateTime = 
+            Metrics.histogram("node.update.us");
+    private static final Histogram lookupHops = 
+            Metrics.histogram("node.lookup.hops");
+    
+    // the sampled requests we've traced hop by hop
+    private final Tracer tracer = new Tracer();
     
     private WordDictionary myDictionary;
     
-    private FingerTable fingerTable;
-    private int predecessorId;
+    // copies of the words our predecessors own, kept in case one of them
+    // fails and so that reads of their words can be spread over us too
+    private final ReplicaCopies replicas = new ReplicaCopies();
+    
+    // the next few nodes after us on the ring, nearest first. They hold
+    // the copies of our words. Never changed in place
+    private volatile ArrayList<NodeInfo> successorList = 
+            new ArrayList<NodeInfo>();
+    
+    // where other nodes keep the copies of their words (the owner followed
+    // by its successor list), and which of those copies to read from
+    private final ApproxLruMap<NodeInfo, ReplicaSet> replicaSets =
+            new ApproxLruMap<NodeInfo, ReplicaSet>(Consts.STUB_CACHE_SIZE);
+    private final ReplicaSelector replicaSelector = new ReplicaSelector();
+    
+    // words we've fetched from other nodes. The other way round, the nodes
+    // that have fetched words from us lately (with when they last did, to
+    // within WORD_CACHE_READER_REFRESH_MS) and the words that have changed
+    // here since we last told them (under changedLock)
+    private final WordCache wordCache = 
+            new WordCache(Consts.WORD_CACHE_SIZE, Consts.WORD_CACHE_TTL_MS);
+    private final ConcurrentHashMap<NodeInfo, Long> cacheReaders = 
+            new ConcurrentHashMap<NodeInfo, Long>();
+    private final Object changedLock = new Object();
+    private ArrayList<String> changedWords = new ArrayList<String>();
+    private boolean changedTooMany;
+    
+    // Bloom filter of our words that we hand out to other nodes, and the
+    // one being filled while it's rebuilt; and the filters of the nodes
+    // we've looked words up at, so we can tell a word doesn't exist
+    // without asking anyone
+    private volatile KeyFilter keyFilter = KeyFilter.coveringNothing(0);
+    private volatile KeyFilter nextKeyFilter;
+    private long keyFilterVersion = 0;
+    private FilterDirectory filters;
+    
+    private static class ReplicaSet {
+        final ArrayList<NodeInfo> nodes;
+        final long fetchedAt;
+        
+        ReplicaSet(ArrayList<NodeInfo> nodes) {
+            this.nodes = nodes;
+            this.fetchedAt = System.currentTimeMillis();
+        }
+    }
+    
+    // routing info: our fingers and predecessor, published together. A
+    // snapshot is never changed, a changed copy is swapped in instead
+    // (under routingLock), so a lookup reads the field once and sees
+    // fingers and a predecessor that were current at the same time
+    private volatile Routing routing;
+    private final Object routingLock = new Object();
+    
+    private static class Routing {
+        // the successor is the first finger
+        final FingerTable fingers;
+        // null if it has failed and we don't know the new one yet
+        final NodeInfo predecessor;
+        
+        Routing(FingerTable fingers, NodeInfo predecessor) {
+            this.fingers = fingers;
+            this.predecessor = predecessor;
+        }
+        
+        Routing withFingers(FingerTable ft) {
+            return new Routing(ft, predecessor);
+        }
+        
+        Routing withPredecessor(NodeInfo pred) {
+            return new Routing(fingers, pred);
+        }
+    }
+    
+    // hands ranges of keys to new owners one at a time, off the RMI
+    // threads, and puts together the ranges handed to us
+    private ExecutorService handoff;
+    private final TransferReceiver transfers = new TransferReceiver();
+    private final Random random = new Random();
+    // writers hold the read side from checking a word is ours until it's
+    // in, and a handoff takes the write side once before reading its
+    // range, so a word is either in that range or passed on
+    private final ReentrantReadWriteLock handoffLock = 
+            new ReentrantReadWriteLock();
+    
+    // a range of keys that's ours but that another node is still sending
+    // us. A word in it that we don't have yet is looked up at that node
+    private volatile PendingRange pending;
+    
+    private static class PendingRange {
+        final long from;
+        final long to;
+        final NodeInfo source;
+        
+        PendingRange(long from, long to, NodeInfo source) {
+            this.from = from;
+            this.to = to;
+            this.source = source;
+        }
+    }
+    
+    // runs the stabilization rounds, and the next finger to fix (0 based)
+    private ScheduledExecutorService maintenance;
+    private int nextFinger = 0;
     
     /**
-     * Constructor for Node class
+     * Constructor for Node class. With a data directory set, the words
+     * this node owned when it last ran are read back from there
      */
-    public Node() {
+    public Node() throws IOException {
         this.ipAddr = getMyIPAddress();
-        myDictionary = new WordDictionary();
-        try {
-            // get the supernode from RMI registry to call initiate for this node
-            Registry registry =
-                    LocateRegistry.getRegistry(Consts.SUPERNODE_URL);
-            try {
-                superNode =
-                        (ISuperNode) registry.lookup(Consts.SUPERNODE_RMI_DESC);
-            } catch (NotBoundException ex) {
-                log.error(
-                        "Couldn't lookup registry because it isn't bound: " + ex);
-            } catch (AccessException ex) {
-                log.error(
-                        "Couldn't lookup registry due to lack of access: " + ex);
+        myDictionary = Consts.DATA_DIR == null 
+                ? new WordDictionary()
+                : DictionaryJournal.open(new File(Consts.DATA_DIR));
+        stubCache = new StubCache(Consts.STUB_CACHE_SIZE);
+        publishDictionarySizes();
+        handoff = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "handoff");
+                t.setDaemon(true);
+                return t;
             }
+        });
+        try {
+            // get the supernode to call initiate for this node
+            superNode = Transports.get().getSuperNode();
+        } catch (NotBoundException ex) {
+            log.error(
+                    "Couldn't lookup registry because it isn't bound: " + ex);
         } catch (RemoteException ex) {
             log.error("node couldn't join: " + ex);
         }
     }
     
+    /**
+     * Let the metrics show how much we're holding
+     */
+    private void publishDictionarySizes() {
+        Metrics.gauge("node.entries", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return myDictionary.size();
+            }
+        });
+        Metrics.gauge("node.entries.bytes", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return myDictionary.dataBytes();
+            }
+        });
+        Metrics.gauge("node.replicaEntries", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return replicas.size();
+            }
+        });
+        Metrics.gauge("node.replicaEntries.bytes", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return replicas.dataBytes();
+            }
+        });
+    }
+    
     /**
      * Node main method
      */
     public static void main(String args[]) {
         // initialize log4j
         PropertyConfigurator.configure("config/log4j.properties");
-        log = Logger.getLogger(Node.class );
         log.debug("Log4j has been initialized");
         
         log.info("Starting Node...");
         try {
-            INode node = new Node();
+            Node node = new Node();
             
             // join DHT
             node.join();
                         
-            // do all the things necessary to make RMI happy
+            // let other nodes and clients call us
             log.debug("Exporting object");
-            INode stub = 
-                    (INode) UnicastRemoteObject.exportObject(node,0);
-            log.debug("Getting registry");
-            Registry registry = LocateRegistry.getRegistry();
-            log.debug("Binding object to registry");
-            registry.rebind(Consts.NODE_RMI_DESC, stub);
+            Transports.get().exportNode(node, node.nodeInfo);
             log.info("Node listening");
+            
+            // now other nodes can reach us, start keeping our routing right
+            node.startMaintenance();
+            Metrics.startDumps();
         } catch (Exception e) {
             log.error("Node exception: " + e);
         }
@@ -115,7 +323,9 @@ public class Node implements INode {
     }
     
     /**
-     * Join the DHT by contacting the SuperNode
+     * Join the DHT by contacting the SuperNode.
+     * The SuperNode gives us our id and a finger table and predecessor to
+     * start with; stabilization takes it from there
      */
     @Override
     public void join() {
@@ -123,13 +333,22 @@ public class Node implements INode {
             // initiate calls SuperNode to get info that connects this node to
             // the DHT
             log.info("Joining DHT");
-            nodeInfo = superNode.initiate(ipAddr);
+            nodeInfo = initiate();
             log.info("We've been given this node info from SuperNode: "
                     + nodeInfo);
+            async = new AsyncNode(stubCache, nodeInfo, this);
+            filters = new FilterDirectory(async, nodeInfo);
 	    boolean joinSuccess = false;
-            fingerTable = superNode.getNewFingerTable(nodeInfo.id);
-            log.debug("Current finger table:\n" + fingerTable);
-            predecessorId = superNode.getPredecessor(nodeInfo.id);
+            Routing r = new Routing(superNode.getNewFingerTable(nodeInfo.id),
+                    superNode.getPredecessor(nodeInfo.id));
+            log.debug("Current finger table:\n" + r.fingers);
+            // our successor has our keys until it hands them over
+            NodeInfo succ = r.fingers.get(0);
+            if (!succ.equals(nodeInfo) && r.predecessor != null) {
+                pending = new PendingRange(r.predecessor.id, nodeInfo.id, succ);
+            }
+            routing = r;
+            rebuildKeyFilter();
             joinSuccess = superNode.hasJoined(nodeInfo.id);
 	    log.debug("Join success? " + joinSuccess);
             log.info("Successfully joined the system");
@@ -138,59 +357,602 @@ public class Node implements INode {
         }
     }
 
+    /**
+     * Get our node info from the SuperNode. With a data directory we ask
+     * for the id and port we had last time, so that the words we
+     * recovered are still ours, and remember whatever we're given
+     */
+    private NodeInfo initiate() throws RemoteException {
+        if (Consts.DATA_DIR == null) {
+            return superNode.initiate(ipAddr);
+        }
+        File dir = new File(Consts.DATA_DIR);
+        NodeInfo previous = null;
+        try {
+            previous = DictionaryJournal.readIdentity(dir);
+        } catch (IOException ex) {
+            log.error("Couldn't read our old node info: " + ex);
+        }
+        NodeInfo ni = previous == null 
+                ? superNode.initiate(ipAddr) 
+                : superNode.rejoin(ipAddr, previous);
+        if (previous != null && ni.id != previous.id) {
+            log.warn("Couldn't get our old id " + previous.id 
+                    + " back, most recovered words will be handed off");
+        }
+        try {
+            DictionaryJournal.writeIdentity(dir, ni);
+        } catch (IOException ex) {
+            log.error("Couldn't save our node info: " + ex);
+        }
+        return ni;
+    }
+
     @Override
     public boolean addWordDefinition(DictionaryEntry entry) throws RemoteException {
-        int key = Util.getHash(entry.getWord());
-        log.debug("key from given word for addition: " + key);
-        /*
-         * the niList list will have a list of <code>NodeInfo</code> objects
-         * the first of which will be the NodeInfo of the node that is to house
-         * the given key...
-         * ... if it is null, we couldn't find the correct node to give the word
-         * to, so we have a problem
-         */
-        ArrayList<NodeInfo> niList = resolveKey(key);
-        if (niList == null) {
-            log.error("We couldn't find the correct node to add the word to: " 
-                    + entry);
-            return false;
+        Trace trace = tracer.start("addWordDefinition", entry.getWord(), 
+                nodeInfo);
+        try {
+            return addWordDefinition(entry, trace);
+        } finally {
+            tracer.finish(trace);
         }
+    }
+    
+    private boolean addWordDefinition(DictionaryEntry entry, Trace trace) 
+            throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            // don't let our own cache hide the new definition from our callers
+            wordCache.invalidate(entry.getWord());
+            long key = Util.getHash(entry.getWord());
+            log.debug("key from given word for addition: " + key);
+            /*
+             * the niList list will have a list of <code>NodeInfo</code> objects
+             * the first of which will be the NodeInfo of the node that is to house
+             * the given key...
+             * ... if it is null, we couldn't find the correct node to give the word
+             * to, so we have a problem
+             */
+            ArrayList<NodeInfo> niList = resolveKey(key, trace);
+            if (niList == null) {
+                log.error("We couldn't find the correct node to add the word to: " 
+                        + entry);
+                return false;
+            }
         
-        // let's print out the path to the node that we are inserting the 
-        // word into
-        printNodePath(niList);
+            // let's print out the path to the node that we are inserting the 
+            // word into
+            printNodePath(niList);
         
-        // if we got here, the first value in the list should be the node
-        // in which to insert the word/defn pair, so do it
-        NodeInfo targetNodeInfo = niList.get(0);
-        Registry reg = LocateRegistry.getRegistry(targetNodeInfo.ipAddress);
-        try {
-            INode targetNode = (INode) reg.lookup(Consts.NODE_RMI_DESC);
-            targetNode.addToMyDictionary(entry);
-        } catch (NotBoundException ex) {
-            log.error("node bound error in addWordDefinition: " + ex);
-        } catch (AccessException ex) {
-            log.error("access exception in addWordDefinition: " + ex);
+            // if we got here, the first value in the list should be the node
+            // in which to insert the word/defn pair, so do it
+            NodeInfo targetNodeInfo = niList.get(0);
+            // into our copy of the owner's filter before the owner has it,
+            // so the filter never rules out a word that's there
+            filters.noteOwner(targetNodeInfo, key);
+            filters.add(entry.getWord());
+            if (targetNodeInfo.equals(nodeInfo)) {
+                addToMyDictionary(entry);
+                return true;
+            }
+            Trace.Hop hop = Trace.enter(trace, targetNodeInfo, 
+                    "addToMyDictionary");
+            boolean ok = false;
+            try {
+                INode targetNode = stubCache.getNode(targetNodeInfo);
+                Trace.stubFound(hop);
+                targetNode.addToMyDictionary(entry);
+                ok = true;
+            } catch (NotBoundException ex) {
+                log.error("node bound error in addWordDefinition: " + ex);
+            } catch (RemoteException ex) {
+                stubCache.invalidate(targetNodeInfo);
+                throw ex;
+            } finally {
+                Trace.exit(hop, ok);
+            }
+        
+            // return true, because all is well
+            return true;
+        } finally {
+            addWordTime.recordSince(start);
         }
+    }
+    
+    /**
+     * Add a batch of words to the DHT.
+     * 
+     * The entries are sorted by key and we only route the first key of
+     * each run: once we know that key k belongs to node n, every key
+     * after it up to n's id belongs to n as well. Each node then gets its
+     * whole group in a single addAllToMyDictionary call.
+     * @return whether each entry (in the given order) was added
+     */
+    @Override
+    public boolean[] addWordDefinitions(ArrayList<DictionaryEntry> entries) 
+            throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            final ArrayList<DictionaryEntry> batch = entries;
+            boolean[] added = new boolean[batch.size()];
+            for (DictionaryEntry entry : batch) {
+                wordCache.invalidate(entry.getWord());
+            }
         
-        // return true, because all is well
-        return true;
+            // positions of the entries, sorted by their keys
+            Integer[] order = new Integer[batch.size()];
+            for (int i=0; i<order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Ring.compare(batch.get(a).getKey(), batch.get(b).getKey());
+                }
+            });
+        
+            // group the entries by the node that owns them
+            Map<NodeInfo, ArrayList<Integer>> groups = 
+                    new LinkedHashMap<NodeInfo, ArrayList<Integer>>();
+            int routed = 0;
+            int i = 0;
+            while (i < order.length) {
+                long runStart = batch.get(order[i]).getKey();
+                ArrayList<NodeInfo> niList = resolveKey(runStart, null);
+                routed++;
+                if (niList == null) {
+                    log.error("We couldn't find the node for key " + runStart);
+                    i++;
+                    continue;
+                }
+                NodeInfo owner = niList.get(0);
+                ArrayList<Integer> group = groups.get(owner);
+                if (group == null) {
+                    group = new ArrayList<Integer>();
+                    groups.put(owner, group);
+                }
+                // the owner has every key from this one round to its own id
+                long runEnd = owner.id;
+                do {
+                    group.add(order[i]);
+                    filters.noteOwner(owner, batch.get(order[i]).getKey());
+                    i++;
+                } while (i < order.length 
+                        && Ring.compare(
+                            Ring.distance(runStart, batch.get(order[i]).getKey()),
+                            Ring.distance(runStart, runEnd)) <= 0);
+            }
+            log.debug("Batch of " + batch.size() + " entries took " + routed 
+                    + " lookups to split across " + groups.size() + " nodes");
+        
+            // ship each group to its owner in one call, all at once
+            Map<NodeInfo, CompletableFuture<Void>> sends = 
+                    new LinkedHashMap<NodeInfo, CompletableFuture<Void>>();
+            for (Map.Entry<NodeInfo, ArrayList<Integer>> g : groups.entrySet()) {
+                final ArrayList<DictionaryEntry> toSend = 
+                        new ArrayList<DictionaryEntry>(g.getValue().size());
+                for (Integer pos : g.getValue()) {
+                    toSend.add(batch.get(pos));
+                    filters.add(batch.get(pos).getWord());
+                }
+                sends.put(g.getKey(), async.call(g.getKey(), 
+                        new AsyncNode.RemoteCall<Void>() {
+                    @Override
+                    public Void call(INode node) throws RemoteException {
+                        node.addAllToMyDictionary(toSend);
+                        return null;
+                    }
+                }));
+            }
+            for (Map.Entry<NodeInfo, ArrayList<Integer>> g : groups.entrySet()) {
+                try {
+                    Transports.join(sends.get(g.getKey()));
+                    for (Integer pos : g.getValue()) {
+                        added[pos] = true;
+                    }
+                } catch (CompletionException ex) {
+                    log.error("Couldn't add " + g.getValue().size() 
+                            + " entries to node " + g.getKey().id + ": " 
+                            + ex.getCause());
+                }
+            }
+            return added;
+        } finally {
+            addWordsTime.recordSince(start);
+        }
     }
     
     private void printNodePath(ArrayList<NodeInfo> niList) {
-        log.info(
+        if (!log.isDebugEnabled()) {
+            return;
+        }
+        log.debug(
                 "Path taken to resolve node: ");
         for (int i=niList.size()-1; i>= 0; i--) {
-            log.info("node " + i + ": " + niList.get(i));
+            log.debug("node " + i + ": " + niList.get(i));
+        }
+    }
+    
+    /**
+     * Add a word to this node's dictionary of word/definition pairs,
+     * and copy it to our successors
+     */
+    @Override
+    public void addToMyDictionary(DictionaryEntry entry) 
+            throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            ArrayList<DictionaryEntry> entries = new ArrayList<DictionaryEntry>(1);
+            entries.add(entry);
+            handoffLock.readLock().lock();
+            try {
+                if (forwardNotOurs(entries).isEmpty()) {
+                    return;
+                }
+                myDictionary.addEntry(entry);
+            } finally {
+                handoffLock.readLock().unlock();
+            }
+            syncDictionary();
+            addToKeyFilter(entries);
+            wordsChanged(entries);
+            replicate(entries);
+        } finally {
+            addToMyDictionaryTime.recordSince(start);
         }
     }
     
     /**
-     * Add a word to this node's dictionary of word/definition pairs
+     * Add a batch of words to this node's dictionary, and copy them to
+     * our successors
      */
     @Override
-    public void addToMyDictionary(DictionaryEntry entry) {
-        myDictionary.addEntry(entry);
+    public void addAllToMyDictionary(ArrayList<DictionaryEntry> entries) 
+            throws RemoteException {
+        handoffLock.readLock().lock();
+        try {
+            entries = forwardNotOurs(entries);
+            if (entries.isEmpty()) {
+                return;
+            }
+            for (DictionaryEntry entry : entries) {
+                myDictionary.addEntry(entry);
+            }
+        } finally {
+            handoffLock.readLock().unlock();
+        }
+        syncDictionary();
+        addToKeyFilter(entries);
+        wordsChanged(entries);
+        replicate(entries);
+    }
+    
+    /**
+     * Pass on the entries whose keys aren't ours to our predecessor, which
+     * is nearer their owner: we're handing those keys to it, or the writer
+     * went by an older view of the ring. Left here they'd never be found.
+     * Call with the read side of handoffLock held.
+     * @return the entries that are ours to add
+     * @throws RemoteException if they couldn't be passed on
+     */
+    private ArrayList<DictionaryEntry> forwardNotOurs(
+            ArrayList<DictionaryEntry> entries) throws RemoteException {
+        NodeInfo target = getPredecessor();
+        ArrayList<DictionaryEntry> ours = new ArrayList<DictionaryEntry>();
+        ArrayList<DictionaryEntry> theirs = new ArrayList<DictionaryEntry>();
+        for (DictionaryEntry entry : entries) {
+            if (isMyKey(entry.getKey(), target)) {
+                ours.add(entry);
+            } else {
+                theirs.add(entry);
+            }
+        }
+        if (theirs.isEmpty()) {
+            return entries;
+        }
+        try {
+            stubCache.getNode(target).addAllToMyDictionary(theirs);
+            log.debug("Passed " + theirs.size() + " words on to node " 
+                    + target.id);
+            return ours;
+        } catch (NotBoundException ex) {
+            throw new RemoteException("Couldn't pass words to node " 
+                    + target.id, ex);
+        } catch (RemoteException ex) {
+            stubCache.invalidate(target);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Wait for our words to be on disk (if we keep them there), so that
+     * a word isn't acknowledged until it would survive a restart
+     */
+    private void syncDictionary() throws RemoteException {
+        try {
+            myDictionary.sync();
+        } catch (IOException ex) {
+            throw new RemoteException("Couldn't write words to disk", ex);
+        }
+    }
+    
+    /**
+     * Keep copies of words owned by one of our predecessors, whose range
+     * is now (from, owner]
+     */
+    @Override
+    public void addReplicas(NodeInfo owner, long from, 
+            ArrayList<DictionaryEntry> entries) {
+        replicas.add(owner, from, entries);
+        wordsChanged(entries);
+    }
+    
+    /**
+     * Look a word up in this node only, whether we own it or just keep a
+     * copy of it. No routing is done, though a word in a range that's
+     * still being handed to us is looked up at the node handing it over
+     */
+    @Override
+    public DictionaryEntry getStoredWord(String word) {
+        DictionaryEntry entry = myDictionary.getEntry(word);
+        if (entry == null) {
+            entry = replicas.getEntry(word);
+        }
+        if (entry == null) {
+            entry = getFromPending(word);
+        }
+        return entry;
+    }
+    
+    /**
+     * Look a word up in this node only, for a node that's going to cache
+     * it. That node is told if the word changes here (as long as it keeps
+     * asking us for words)
+     */
+    @Override
+    public DictionaryEntry getCacheableWord(String word, NodeInfo reader) {
+        noteReader(reader);
+        return getStoredWord(word);
+    }
+    
+    /**
+     * Note that a node has just read from us. Only written when our note
+     * is getting stale, so a busy reader mostly just looks it up
+     */
+    private void noteReader(NodeInfo reader) {
+        long now = System.currentTimeMillis();
+        Long last = cacheReaders.get(reader);
+        if (last == null || now - last > Consts.WORD_CACHE_READER_REFRESH_MS) {
+            cacheReaders.put(reader, now);
+        }
+    }
+    
+    /**
+     * Drop words from our cache because they've changed where we got them
+     * from. null means drop everything
+     */
+    @Override
+    public void invalidateCachedWords(ArrayList<String> words) {
+        if (words == null) {
+            wordCache.clear();
+            filters.clear();
+            return;
+        }
+        for (String word : words) {
+            wordCache.invalidate(word);
+            filters.add(word);
+        }
+    }
+    
+    /**
+     * Our key filter, unless the caller already has this version of it
+     * (then null). The reader, if it's a node, is told about words we get
+     * from now on so it can keep its copy up to date. A node we weren't
+     * telling (because it's new, or we failed to tell it something) may
+     * have missed words since it got its copy, so it gets the filter
+     * again whatever version it has
+     */
+    @Override
+    public KeyFilter getKeyFilter(long knownVersion, NodeInfo reader) {
+        boolean told = true;
+        if (reader != null) {
+            told = cacheReaders.containsKey(reader);
+            noteReader(reader);
+        }
+        KeyFilter f = keyFilter;
+        return told && f.getVersion() == knownVersion ? null : f;
+    }
+    
+    private void addToKeyFilter(ArrayList<DictionaryEntry> entries) {
+        KeyFilter f = keyFilter;
+        KeyFilter next = nextKeyFilter;
+        for (DictionaryEntry entry : entries) {
+            f.add(entry.getWord());
+            if (next != null) {
+                next.add(entry.getWord());
+            }
+        }
+        if (f.isFull()) {
+            scheduleKeyFilterRebuild();
+        }
+    }
+    
+    private void scheduleKeyFilterRebuild() {
+        handoff.execute(new Runnable() {
+            @Override
+            public void run() {
+                rebuildKeyFilter();
+            }
+        });
+    }
+    
+    /**
+     * Build a new filter of our words for the range we own now. While a
+     * range is still being sent to us we don't know all our words, so
+     * the filter covers nothing until it arrives
+     */
+    private synchronized void rebuildKeyFilter() {
+        long version = ++keyFilterVersion;
+        NodeInfo pred = getPredecessor();
+        if (pred == null || pending != null) {
+            keyFilter = KeyFilter.coveringNothing(version);
+            return;
+        }
+        KeyFilter next = new KeyFilter(version, pred.id, getId(),
+                Math.max(2 * myDictionary.size(), Consts.KEY_FILTER_MIN_WORDS));
+        // words added from here on go into both filters
+        nextKeyFilter = next;
+        for (DictionaryEntry entry : myDictionary.getEntries()) {
+            next.add(entry.getWord());
+        }
+        keyFilter = next;
+        nextKeyFilter = null;
+        log.debug("New key filter: " + next);
+    }
+    
+    /**
+     * Note words that have changed here, so that nodes that might have
+     * them cached can be told
+     */
+    private void wordsChanged(ArrayList<DictionaryEntry> entries) {
+        if (cacheReaders.isEmpty()) {
+            return;
+        }
+        synchronized (changedLock) {
+            if (changedTooMany) {
+                return;
+            }
+            if (changedWords.size() + entries.size() 
+                    > Consts.WORD_CACHE_MAX_INVALIDATIONS) {
+                // cheaper for them to drop everything
+                changedTooMany = true;
+                changedWords = new ArrayList<String>();
+                return;
+            }
+            for (DictionaryEntry entry : entries) {
+                changedWords.add(entry.getWord());
+            }
+        }
+    }
+    
+    /**
+     * Have every node that reads from us drop what it has of ours right
+     * away, since its copy of our filter no longer matches the keys we own
+     * and would rule out words written to whoever owns them now
+     */
+    private void rangeChanged() {
+        synchronized (changedLock) {
+            changedTooMany = true;
+            changedWords = new ArrayList<String>();
+        }
+        sendInvalidations();
+    }
+    
+    /**
+     * Tell the nodes that have read words from us within a cache lifetime
+     * which of our words have changed since last time
+     */
+    void sendInvalidations() {
+        // forget the readers whose copies have all run out by now
+        long since = System.currentTimeMillis() - Consts.WORD_CACHE_TTL_MS 
+                - Consts.WORD_CACHE_READER_REFRESH_MS;
+        ArrayList<Map.Entry<NodeInfo, Long>> readers = 
+                new ArrayList<Map.Entry<NodeInfo, Long>>();
+        for (Map.Entry<NodeInfo, Long> e : cacheReaders.entrySet()) {
+            if (e.getValue() < since) {
+                cacheReaders.remove(e.getKey(), e.getValue());
+            } else {
+                readers.add(e);
+            }
+        }
+        // if there are still too many, stop keeping track of the ones that
+        // read longest ago, and have them drop everything since they won't
+        // hear about changes any more
+        int over = readers.size() - Consts.WORD_CACHE_MAX_READERS;
+        if (over > 0) {
+            Collections.sort(readers,
+                    new Comparator<Map.Entry<NodeInfo, Long>>() {
+                @Override
+                public int compare(Map.Entry<NodeInfo, Long> a, 
+                        Map.Entry<NodeInfo, Long> b) {
+                    return Long.compare(a.getValue(), b.getValue());
+                }
+            });
+            for (Map.Entry<NodeInfo, Long> e : readers.subList(0, over)) {
+                if (cacheReaders.remove(e.getKey(), e.getValue())) {
+                    sendInvalidation(e.getKey(), null);
+                }
+            }
+            readers = new ArrayList<Map.Entry<NodeInfo, Long>>(
+                    readers.subList(over, readers.size()));
+        }
+        
+        ArrayList<String> words;
+        synchronized (changedLock) {
+            if (changedWords.isEmpty() && !changedTooMany) {
+                return;
+            }
+            words = changedTooMany ? null : changedWords;
+            changedWords = new ArrayList<String>();
+            changedTooMany = false;
+        }
+        for (Map.Entry<NodeInfo, Long> e : readers) {
+            sendInvalidation(e.getKey(), words);
+        }
+    }
+    
+    /**
+     * Tell a reader which of our words have changed (null for all of them)
+     */
+    private void sendInvalidation(final NodeInfo reader, 
+            final ArrayList<String> words) {
+        async.call(reader, new AsyncNode.RemoteCall<Void>() {
+            @Override
+            public Void call(INode node) throws RemoteException {
+                node.invalidateCachedWords(words);
+                return null;
+            }
+        }).exceptionally(new Function<Throwable, Void>() {
+            @Override
+            public Void apply(Throwable t) {
+                // its cached words will run out on their own, but its copy
+                // of our filter won't: stop counting it as told, so the
+                // next time it asks it gets the filter again
+                log.debug("Couldn't tell node " + reader.id 
+                        + " about changed words: " + t);
+                cacheReaders.remove(reader);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Send words we own to each of our successors
+     */
+    private void replicate(ArrayList<DictionaryEntry> entries) {
+        for (NodeInfo ni : successorList) {
+            replicateTo(ni, entries);
+        }
+    }
+    
+    private boolean replicateTo(NodeInfo ni, ArrayList<DictionaryEntry> entries) {
+        if (ni.equals(nodeInfo)) {
+            return true;
+        }
+        try {
+            NodeInfo pred = getPredecessor();
+            // with our own id for the range if we don't know it
+            stubCache.getNode(ni).addReplicas(nodeInfo, 
+                    pred == null ? getId() : pred.id, entries);
+            return true;
+        } catch (NotBoundException ex) {
+            log.warn("Couldn't copy words to node " + ni.id + ": " + ex);
+        } catch (RemoteException ex) {
+            stubCache.invalidate(ni);
+            log.warn("Couldn't copy words to node " + ni.id + ": " + ex);
+        }
+        return false;
     }
 
     /**
@@ -208,74 +970,118 @@ public class Node implements INode {
      * that the key resolves to (this way we can report the path as well
      * as the place to find the key
      * 
-     * this is kind of a recursive call in a way - apart from the fact that
-     * nodes are 'recursively' calling each other
+     * the lookup is iterative: we ask each node on the way for the next
+     * hop (routeStep) rather than have it carry on the lookup itself
      */
     @Override
-    public ArrayList<NodeInfo> resolveKey(int key) {
+    public ArrayList<NodeInfo> resolveKey(long key) {
+        Trace trace = tracer.start("resolveKey", Ring.toString(key), nodeInfo);
+        try {
+            return resolveKey(key, trace);
+        } finally {
+            tracer.finish(trace);
+        }
+    }
+    
+    private ArrayList<NodeInfo> resolveKey(long key, Trace trace) {
+        long start = System.nanoTime();
+        try {
+            ArrayList<NodeInfo> path = route(key, trace);
+            if (path != null) {
+                lookupHops.record(path.size() - 1);
+            }
+            return path;
+        } finally {
+            resolveKeyTime.recordSince(start);
+        }
+    }
+    
+    /**
+     * The lookup behind resolveKey, without counting it in the lookup
+     * metrics; our own upkeep (fixFingers) calls this so that it doesn't
+     * show up as lookups made by clients
+     */
+    private ArrayList<NodeInfo> route(long key, Trace trace) {
         // if this node is responsible for the given key,
         // return a new list with this node as its first member
         if (isMyKey(key)) {
             log.debug("The given key (" + key + ") fits within my domain");
+            NodeInfo pred = getPredecessor();
             log.debug("i.e. between my predecessor's id (" 
-                    + predecessorId + ") and my id ("
+                    + (pred == null ? "unknown" : pred.id) 
+                    + ") and my id ("
                     + nodeInfo.id + ")");
             ArrayList<NodeInfo> nis = new ArrayList<NodeInfo>();
             nis.add(this.nodeInfo);
+            Trace.answered(trace, "own key");
             return nis;
         }
         
-        // otherwise find the next node to ask for the key
-        // append this ndoe to the list of the returned result
-        ArrayList<Integer> ftVals = fingerTable.getVals();
-        for (int i=ftVals.size()-1; i>=0; i++) {
-            int currVal = ftVals.get(i).intValue();
-            if (key > currVal) {
-                try {
-                    // if the key is greater than the current node id value
-                    // then this is the next node to contact, so get its info
-                    NodeInfo targetNodeInfo = superNode.getNodeInfo(currVal);
-                    // use rmi to contact this node, now that we have its info
-                    Registry registry = 
-                            LocateRegistry.getRegistry(targetNodeInfo.ipAddress);
-                    INode node = 
-                            (INode) registry.lookup(Consts.NODE_RMI_DESC);
-                    ArrayList niList = node.resolveKey(key);
-                    // add my own node info to this list
-                    niList.add(this.nodeInfo);
-                    return niList;
-                } catch (NotBoundException ex) {
-                    log.error("not bound from resolveKey: " + ex);
-                } catch (AccessException ex) {
-                    log.error("access exception from resolveKey: " + ex);
-                } catch (RemoteException ex) {
-                    log.error("Problem calling supernode: " + ex);
-                }
+        // otherwise walk the ring from here, one hop at a time, on
+        // this thread rather than the async pool's
+        try {
+            return async.resolveKeyHere(nodeInfo, key, trace);
+        } catch (CompletionException ex) {
+            log.error("We weren't able to resolve the key " + key + ": " 
+                    + ex.getCause());
+            return null;
+        }
+    }
+    
+    /**
+     * One hop of an iterative lookup: the owner of the key if it's us or
+     * our successor, otherwise the furthest finger that still comes
+     * before the key on the ring (or our successor if none does)
+     */
+    @Override
+    public RouteStep routeStep(long key) {
+        long start = System.nanoTime();
+        RouteStep step = nextStep(key);
+        // so a traced lookup can tell our time from the network's
+        step.micros = (System.nanoTime() - start) / 1000;
+        return step;
+    }
+    
+    private RouteStep nextStep(long key) {
+        Routing r = routing;
+        if (isMyKey(key, r.predecessor)) {
+            return RouteStep.owner(nodeInfo);
+        }
+        FingerTable ft = r.fingers;
+        NodeInfo succ = ft.get(0);
+        if (Ring.inHalfOpen(key, getId(), succ.id)) {
+            return RouteStep.owner(succ);
+        }
+        for (int i=ft.size()-1; i>0; i--) {
+            NodeInfo finger = ft.get(i);
+            if (Ring.inOpen(finger.id, getId(), key)) {
+                return RouteStep.next(finger);
             }
         }
-        log.error("We weren't able to resolve the key " + key);
-        return null;
+        return RouteStep.next(succ);
     }
     
     /**
      * Returns true if this node is responsible for the given key
      * i.e. the key is between the predecessor's id and this node's id
      */
-    private boolean isMyKey(int key) {
-        return key > getPredecessorId() && key <= getId();
+    private boolean isMyKey(long key) {
+        return isMyKey(key, getPredecessor());
     }
     
-    /**
-     * Gets this node's predecessor id
-     */
-    private int getPredecessorId() {
-        return predecessorId;
+    private boolean isMyKey(long key, NodeInfo pred) {
+        if (pred == null) {
+            // our predecessor has failed, so until a new one turns up
+            // we take whatever is routed to us
+            return true;
+        }
+        return Ring.inHalfOpen(key, pred.id, getId());
     }
     
     /**
      * Get this node's Id
      */
-    private int getId() {
+    private long getId() {
         return this.nodeInfo.id;
     }
 
@@ -283,95 +1089,842 @@ public class Node implements INode {
      * Update this node's info as the result of a new node joining the DHT
      */
     @Override
-    public void update(FingerTable fingerTable, int predecessorId) throws RemoteException {
-        log.debug("Entering node's update method");
-        this.fingerTable = fingerTable;
-        log.debug("We got a new FingerTable: \n" + fingerTable);
-        this.predecessorId = predecessorId;
-        log.debug("updateing my dictionary");
-        // update my dictionary to give away words that are no longer mine
-        updateMyDictionary();
+    public void update(FingerTable fingerTable, NodeInfo predecessor) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            log.debug("Entering node's update method");
+            // our own copy, since the table is shared once it's published
+            Routing r = new Routing(new FingerTable(fingerTable), predecessor);
+            synchronized (routingLock) {
+                routing = r;
+            }
+            // keys may have moved, so forget where we got words from, and what
+            // other nodes' filters said
+            wordCache.clear();
+            filters.clear();
+            scheduleKeyFilterRebuild();
+            log.debug("We got a new FingerTable: \n" + fingerTable);
+            log.debug("updateing my dictionary");
+            // update my dictionary to give away words that are no longer mine
+            updateMyDictionary();
+        } finally {
+            updateTime.recordSince(start);
+        }
     }
     
     private void updateMyDictionary() {
         log.debug("in updateMyDictionary");
-        for (DictionaryEntry entry : myDictionary.getEntries()) {
-            int key = Util.getHash(entry.getWord());
-            if (key <= predecessorId) {
-                giveEntryToPredecessor(entry);
+        final NodeInfo pred = getPredecessor();
+        if (pred == null || pred.id == getId()) {
+            // we're the only node, so every key is still ours
+            return;
+        }
+        handoff.execute(new Runnable() {
+            @Override
+            public void run() {
+                handOffTo(pred);
+            }
+        });
+    }
+    
+    /**
+     * Give our (new) predecessor the keys that are now its: the ones from
+     * our id round to its id. We keep serving them until it has them all,
+     * and afterwards keep them as copies since we're its successor.
+     * 
+     * Words written to us for those keys from now on are passed on to it.
+     * Writes already under way when we start finish first (see
+     * handoffLock), so the range has them
+     */
+    private void handOffTo(NodeInfo pred) {
+        if (!pred.equals(getPredecessor())) {
+            // it's changed again, and that change has its own handoff queued
+            return;
+        }
+        long start = System.currentTimeMillis();
+        // wait for writes that still took these keys to be ours
+        handoffLock.writeLock().lock();
+        handoffLock.writeLock().unlock();
+        ArrayList<DictionaryEntry> moving;
+        try {
+            moving = myDictionary.getEntriesInRange(getId(), pred.id);
+            sendRange(pred, getId(), pred.id, moving);
+            // nothing newer for these keys has been written here since we
+            // read them, so what we remove is what it has
+            for (DictionaryEntry entry : moving) {
+                myDictionary.removeEntry(entry);
+            }
+        } catch (NotBoundException ex) {
+            log.error("not bound issue handing keys to node " + pred.id 
+                    + ": " + ex);
+            return;
+        } catch (IOException ex) {
+            // RemoteException included. We still have the entries, so the
+            // next change of predecessor will try again
+            log.error("Couldn't hand keys to node " + pred.id + ": " + ex);
+            return;
+        }
+        replicas.add(pred, pred.id, moving);
+        try {
+            myDictionary.sync();
+        } catch (IOException ex) {
+            log.error("Couldn't log the handoff to node " + pred.id 
+                    + ": " + ex);
+        }
+        log.info("Handed " + moving.size() + " words to node " + pred.id 
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+    
+    /**
+     * Send the given entries, which are all in the key range (from, to],
+     * to another node in chunks of about TRANSFER_CHUNK_BYTES. There is
+     * always at least one chunk, so the receiver learns that the range is
+     * done even if it's empty
+     */
+    private void sendRange(NodeInfo target, long from, long to, 
+            ArrayList<DictionaryEntry> entries) 
+            throws NotBoundException, IOException {
+        INode node = stubCache.getNode(target);
+        long sessionId = random.nextLong();
+        int seq = 0;
+        int begin = 0;
+        boolean committed;
+        do {
+            int end = begin;
+            int bytes = 0;
+            while (end < entries.size() && bytes < Consts.TRANSFER_CHUNK_BYTES) {
+                bytes += TransferChunk.rawSize(entries.get(end));
+                end++;
+            }
+            TransferChunk chunk = new TransferChunk(sessionId, nodeInfo, 
+                    from, to, seq++, end == entries.size(), 
+                    entries.subList(begin, end));
+            log.debug("Sending " + chunk);
+            try {
+                committed = node.receiveTransferChunk(chunk);
+            } catch (RemoteException ex) {
+                stubCache.invalidate(target);
+                throw ex;
+            }
+            begin = end;
+        } while (begin < entries.size());
+        if (!committed) {
+            throw new RemoteException("node " + target.id 
+                    + " didn't take the transfer");
+        }
+    }
+    
+    /**
+     * Take in one chunk of a range of keys another node is handing us.
+     * Nothing is added until the last chunk is in.
+     * @return true once the whole range has been taken on
+     */
+    @Override
+    public boolean receiveTransferChunk(TransferChunk chunk) 
+            throws RemoteException {
+        log.debug("Received " + chunk);
+        if (chunk.seq == 0 && pending == null) {
+            pending = new PendingRange(chunk.from, chunk.to, chunk.source);
+            scheduleKeyFilterRebuild();
+        }
+        ArrayList<DictionaryEntry> entries;
+        try {
+            entries = transfers.receive(chunk);
+        } catch (IOException ex) {
+            throw new RemoteException("Couldn't take " + chunk, ex);
+        }
+        if (entries == null) {
+            return false;
+        }
+        // anything written to us while the range was on its way is newer
+        // than what the old owner had, so keep it
+        ArrayList<DictionaryEntry> added = new ArrayList<DictionaryEntry>();
+        for (DictionaryEntry entry : entries) {
+            if (myDictionary.getEntry(entry.getWord()) == null) {
+                myDictionary.addEntry(entry);
+                added.add(entry);
+            }
+        }
+        syncDictionary();
+        addToKeyFilter(added);
+        PendingRange p = pending;
+        if (p != null && p.source.equals(chunk.source)) {
+            pending = null;
+            // now our filter can cover the range
+            scheduleKeyFilterRebuild();
+        }
+        log.info("Took over " + added.size() + " words from node " 
+                + chunk.source.id);
+        replicate(added);
+        return true;
+    }
+    
+    /**
+     * Look up a word in a range that's still being handed to us at the
+     * node that's handing it over
+     */
+    private DictionaryEntry getFromPending(String word) {
+        PendingRange p = pending;
+        if (p == null || !Ring.inHalfOpen(Util.getHash(word), p.from, p.to)) {
+            return null;
+        }
+        try {
+            return stubCache.getNode(p.source).getStoredWord(word);
+        } catch (NotBoundException ex) {
+            log.error("not bound issue reading from node " + p.source.id 
+                    + ": " + ex);
+        } catch (RemoteException ex) {
+            stubCache.invalidate(p.source);
+            log.error("Couldn't read from node " + p.source.id + ": " + ex);
+        }
+        return null;
+    }
+
+    /**
+     * Whether a range of keys is still on its way to us from the node
+     * that had it before we joined
+     */
+    boolean isTakingOverKeys() {
+        return pending != null;
+    }
+
+    /**
+     * Returns our predecessor, or null if we don't know it right now
+     */
+    @Override
+    public NodeInfo getPredecessor() {
+        return routing.predecessor;
+    }
+    
+    /**
+     * Returns our successor (our first finger)
+     */
+    @Override
+    public NodeInfo getSuccessor() {
+        return routing.fingers.get(0);
+    }
+    
+    /**
+     * Ask the nodes whose key filters we have for newer ones
+     */
+    void refreshKeyFilters() {
+        filters.refresh();
+    }
+    
+    /**
+     * Returns the finger table we're routing with
+     */
+    FingerTable getFingerTable() {
+        return routing.fingers;
+    }
+    
+    /**
+     * Called by a node that thinks it might be our predecessor. If it's
+     * closer than our current predecessor it becomes our predecessor, and
+     * we give it the keys that are now its
+     */
+    @Override
+    public void notifyPredecessor(NodeInfo candidate) {
+        boolean changed = false;
+        synchronized (routingLock) {
+            Routing r = routing;
+            NodeInfo pred = r.predecessor;
+            if (!candidate.equals(pred)
+                    && (pred == null || pred.equals(nodeInfo)
+                        || Ring.inOpen(candidate.id, pred.id, getId()))) {
+                routing = r.withPredecessor(candidate);
+                changed = true;
             }
         }
+        if (changed) {
+            log.info("New predecessor: " + candidate.id);
+            promoteReplicas(candidate);
+            updateMyDictionary();
+            scheduleKeyFilterRebuild();
+            rangeChanged();
+            // so the copies of what we no longer own stop being read
+            replicate(new ArrayList<DictionaryEntry>());
+        }
     }
     
-    private void giveEntryToPredecessor(DictionaryEntry entry) {
-        log.debug("in giveEntryToPredecessor");
+    /**
+     * Take ownership of any copies we hold of keys that are now ours,
+     * which happens when the node that owned them has failed
+     */
+    private void promoteReplicas(NodeInfo pred) {
+        if (pred.equals(nodeInfo)) {
+            return;
+        }
+        ArrayList<DictionaryEntry> promoted = 
+                replicas.takeRange(pred.id, getId());
+        if (promoted.isEmpty()) {
+            return;
+        }
+        log.info("Taking over " + promoted.size() 
+                + " words from a failed predecessor");
+        for (DictionaryEntry entry : promoted) {
+            myDictionary.addEntry(entry);
+        }
         try {
-            NodeInfo predNI = superNode.getNodeInfo(predecessorId);
-            Registry reg = LocateRegistry.getRegistry(predNI.ipAddress);
+            myDictionary.sync();
+        } catch (IOException ex) {
+            log.error("Couldn't write promoted words to disk: " + ex);
+        }
+        replicate(promoted);
+    }
+    
+    /**
+     * Returns the nodes that keep copies of our words
+     */
+    @Override
+    public ArrayList<NodeInfo> getSuccessorList() {
+        return new ArrayList<NodeInfo>(successorList);
+    }
+    
+    /**
+     * Start running stabilization rounds in the background
+     */
+    public void startMaintenance() {
+        maintenance = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stabilizer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stabilize();
+                    fixFingers();
+                    checkPredecessor();
+                    dropStaleReplicas();
+                } catch (RuntimeException ex) {
+                    log.error("Stabilization round failed: " + ex);
+                }
+            }
+        }, Consts.STABILIZE_INTERVAL_MS, Consts.STABILIZE_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendInvalidations();
+                } catch (RuntimeException ex) {
+                    log.error("Couldn't send cache invalidations: " + ex);
+                }
+            }
+        }, Consts.WORD_CACHE_INVALIDATE_INTERVAL_MS, 
+                Consts.WORD_CACHE_INVALIDATE_INTERVAL_MS, 
+                TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshKeyFilters();
+            }
+        }, Consts.KEY_FILTER_REFRESH_MS, Consts.KEY_FILTER_REFRESH_MS,
+                TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stop the background stabilization rounds
+     */
+    public void stopMaintenance() {
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+    }
+    
+    /**
+     * Ask our successor for its predecessor. If that node sits between
+     * us and our successor, it's our new successor. Either way, tell our
+     * successor about us
+     */
+    private void stabilize() {
+        NodeInfo succ = getSuccessor();
+        NodeInfo x;
+        if (succ.equals(nodeInfo)) {
+            // we think we're alone, so whoever has notified us is our successor
+            x = getPredecessor();
+        } else {
             try {
-                INode predNode = 
-                        (INode) reg.lookup(Consts.NODE_RMI_DESC);
-                log.debug("calling addToMyDictionary");
-                predNode.addToMyDictionary(entry);
-                log.debug("removing entry from dictionary: " + entry);
-                myDictionary.removeEntry(entry);
+                x = stubCache.getNode(succ).getPredecessor();
+            } catch (NotBoundException ex) {
+                successorFailed(succ);
+                return;
+            } catch (RemoteException ex) {
+                successorFailed(succ);
+                return;
+            }
+        }
+        if (x != null && Ring.inOpen(x.id, getId(), succ.id)) {
+            log.debug("New successor: " + x.id);
+            setFinger(0, x);
+            succ = x;
+        }
+        if (!succ.equals(nodeInfo)) {
+            try {
+                stubCache.getNode(succ).notifyPredecessor(nodeInfo);
+            } catch (NotBoundException ex) {
+                successorFailed(succ);
+                return;
+            } catch (RemoteException ex) {
+                successorFailed(succ);
+                return;
+            }
+        }
+        updateSuccessorList(succ);
+    }
+    
+    /**
+     * Our successor list is our successor followed by the start of its
+     * own successor list. Any node that's new to the list gets copies of
+     * all of our words
+     */
+    private void updateSuccessorList(NodeInfo succ) {
+        ArrayList<NodeInfo> list = new ArrayList<NodeInfo>();
+        if (!succ.equals(nodeInfo)) {
+            list.add(succ);
+            try {
+                for (NodeInfo ni : stubCache.getNode(succ).getSuccessorList()) {
+                    if (list.size() >= Consts.REPLICATION_FACTOR 
+                            || ni.equals(nodeInfo)) {
+                        // full, or we've come all the way round the ring
+                        break;
+                    }
+                    list.add(ni);
+                }
             } catch (NotBoundException ex) {
-                log.error("not bound issue in giveEntryToPredecessor: " + ex);
-            } catch (AccessException ex) {
-                log.error("access issue in giveEntryToPredecessor: " + ex);
+                successorFailed(succ);
+                return;
+            } catch (RemoteException ex) {
+                successorFailed(succ);
+                return;
+            }
+        }
+        ArrayList<NodeInfo> old = successorList;
+        if (list.equals(old)) {
+            return;
+        }
+        successorList = list;
+        log.debug("New successor list: " + list);
+        for (NodeInfo ni : list) {
+            if (!old.contains(ni)) {
+                copyAllTo(ni);
+            }
+        }
+    }
+    
+    /**
+     * Send copies of all of our words to a node that has just joined our
+     * successor list
+     */
+    private void copyAllTo(NodeInfo ni) {
+        ArrayList<DictionaryEntry> all = myDictionary.getEntries();
+        for (int from=0; from<all.size(); from+=Consts.INSERT_BATCH_SIZE) {
+            int to = Math.min(all.size(), from + Consts.INSERT_BATCH_SIZE);
+            if (!replicateTo(ni, new ArrayList<DictionaryEntry>(
+                    all.subList(from, to)))) {
+                return;
             }
+        }
+    }
+    
+    /**
+     * Refresh the next few fingers by looking up the node that now
+     * follows each finger's start
+     */
+    private void fixFingers() {
+        for (int n=0; n<Consts.FIX_FINGERS_PER_ROUND; n++) {
+            nextFinger = (nextFinger + 1) % routing.fingers.size();
+            long start = Ring.fingerStart(getId(), nextFinger + 1);
+            ArrayList<NodeInfo> path = route(start, null);
+            if (path != null) {
+                setFinger(nextFinger, path.get(0));
+            }
+        }
+    }
+    
+    /**
+     * Forget our predecessor if it has stopped answering, so that the next
+     * node to notify us can take its place
+     */
+    private void checkPredecessor() {
+        NodeInfo pred = getPredecessor();
+        if (pred == null || pred.equals(nodeInfo)) {
+            return;
+        }
+        try {
+            stubCache.getNode(pred).getNodeInfo();
+        } catch (NotBoundException ex) {
+            predecessorFailed(pred);
         } catch (RemoteException ex) {
-            log.error("Remote exception in giveEntryToPredecessor: " + ex);
+            predecessorFailed(pred);
+        }
+    }
+    
+    /**
+     * Drop the copies we keep for any node that doesn't keep them with
+     * us any more, because we've left its successor list or it's gone.
+     * A gone node's copies stay while they may be ours to take over (it
+     * was our predecessor, or we don't know who is)
+     */
+    private void dropStaleReplicas() {
+        for (NodeInfo owner : replicas.owners()) {
+            long stamp = replicas.stamp(owner);
+            boolean gone = false;
+            try {
+                if (stubCache.getNode(owner).getSuccessorList()
+                        .contains(nodeInfo)) {
+                    continue;
+                }
+            } catch (NotBoundException ex) {
+                gone = true;
+            } catch (RemoteException ex) {
+                gone = true;
+            }
+            if (gone) {
+                NodeInfo pred = getPredecessor();
+                if (pred == null || pred.equals(owner)
+                        || Ring.inHalfOpen(owner.id, pred.id, getId())) {
+                    continue;
+                }
+            }
+            int dropped = replicas.drop(owner, stamp);
+            if (dropped > 0) {
+                log.info("Dropped " + dropped + " copies of node " 
+                        + owner.id + "'s words");
+            }
+        }
+    }
+    
+    private void predecessorFailed(NodeInfo pred) {
+        log.warn("Predecessor " + pred.id + " isn't answering");
+        stubCache.invalidate(pred);
+        synchronized (routingLock) {
+            if (pred.equals(routing.predecessor)) {
+                routing = routing.withPredecessor(null);
+            }
+        }
+    }
+    
+    /**
+     * Our successor isn't answering, so point every finger that was at it
+     * at the node after it in our successor list. If the list has nothing
+     * after it, use the next finger along instead (or ourselves if there
+     * isn't one)
+     */
+    private void successorFailed(NodeInfo succ) {
+        log.warn("Successor " + succ.id + " isn't answering");
+        stubCache.invalidate(succ);
+        synchronized (routingLock) {
+            ArrayList<NodeInfo> list = successorList;
+            int at = list.indexOf(succ);
+            NodeInfo next = at >= 0 && at + 1 < list.size() 
+                    ? list.get(at + 1) : null;
+            if (at >= 0) {
+                ArrayList<NodeInfo> rest = new ArrayList<NodeInfo>(list);
+                rest.remove(at);
+                successorList = rest;
+            }
+            FingerTable ft = new FingerTable(routing.fingers);
+            NodeInfo replacement = nodeInfo;
+            for (int i=ft.size()-1; i>=0; i--) {
+                if (ft.get(i).equals(succ)) {
+                    ft.set(i, next != null ? next : replacement);
+                } else {
+                    replacement = ft.get(i);
+                }
+            }
+            routing = routing.withFingers(ft);
+        }
+    }
+    
+    /**
+     * Point one finger at a different node
+     */
+    private void setFinger(int i, NodeInfo ni) {
+        synchronized (routingLock) {
+            Routing r = routing;
+            if (r.fingers.get(i).equals(ni)) {
+                return;
+            }
+            FingerTable ft = new FingerTable(r.fingers);
+            ft.set(i, ni);
+            routing = r.withFingers(ft);
+        }
+    }
+
+    /**
+     * One page of the words this node owns with keys in (from, to] (from
+     * == to for all of them), in ring order. Pass the page's resume token
+     * back in to get the next page
+     */
+    @Override
+    public ScanPage scanEntries(long from, long to, String resumeToken, 
+            int pageSize) {
+        int max = Math.max(1, Math.min(pageSize, Consts.SCAN_MAX_PAGE_SIZE));
+        // ask for one extra to see whether there's another page
+        ArrayList<DictionaryEntry> page = myDictionary.getPage(from, to, 
+                ScanPage.resumeAfter(resumeToken), max + 1);
+        String next = null;
+        if (page.size() > max) {
+            page.remove(max);
+            next = ScanPage.tokenAfter(page.get(max - 1));
         }
+        return new ScanPage(page, next);
+    }
+    
+    /**
+     * A summary of this node, without any of its words
+     */
+    @Override
+    public NodeStats getNodeStats() {
+        NodeStats stats = new NodeStats();
+        stats.node = nodeInfo;
+        stats.predecessor = getPredecessor();
+        stats.successor = getSuccessor();
+        stats.successorListSize = successorList.size();
+        stats.entries = myDictionary.size();
+        stats.entryBytes = myDictionary.dataBytes();
+        stats.replicaEntries = replicas.size();
+        stats.replicaBytes = replicas.dataBytes();
+        stats.openTransfers = transfers.getOpenSessions();
+        stats.stubCacheHits = stubCache.getHits();
+        stats.stubCacheMisses = stubCache.getMisses();
+        stats.wordCacheSize = wordCache.size();
+        stats.wordCacheHits = wordCache.getHits();
+        stats.wordCacheMisses = wordCache.getMisses();
+        stats.wordCacheInvalidations = wordCache.getInvalidations();
+        stats.keyFilter = keyFilter.toString();
+        stats.knownFilters = filters.size();
+        stats.filterNegatives = filters.getNegatives();
+        stats.traced = tracer.getFinished();
+        return stats;
+    }
+    
+    /**
+     * The latest of the requests we've traced, newest first
+     */
+    @Override
+    public ArrayList<Trace> getTraces(int max) {
+        return tracer.recent(Math.min(max, Consts.TRACE_BUFFER_SIZE));
     }
 
     /**
-     * Return this node's word dictionary
+     * Look up a word, but only if this node owns it. Otherwise just
+     * tell the caller where the word lives
      */
     @Override
-    public WordDictionary getWordDictionary() throws RemoteException {
-        return myDictionary;
+    public RoutedReply getWordIfOwner(String word) throws RemoteException {
+        Trace trace = tracer.start("getWordIfOwner", word, nodeInfo);
+        RoutedReply reply = null;
+        try {
+            long key = Util.getHash(word);
+            if (isMyKey(key)) {
+                Trace.answered(trace, "own word");
+                reply = RoutedReply.owned(getStoredWord(word));
+            } else {
+                log.debug("Not the owner of " + key 
+                        + ", sending the caller on");
+                reply = RoutedReply.notOwned(resolveKey(key, trace));
+            }
+            return reply;
+        } finally {
+            finishTrace(trace, reply);
+        }
+    }
+    
+    /**
+     * Add a word, but only if this node owns it. Otherwise just
+     * tell the caller where the word belongs
+     */
+    @Override
+    public RoutedReply addWordIfOwner(DictionaryEntry entry) 
+            throws RemoteException {
+        Trace trace = tracer.start("addWordIfOwner", entry.getWord(), 
+                nodeInfo);
+        RoutedReply reply = null;
+        try {
+            if (isMyKey(entry.getKey())) {
+                addToMyDictionary(entry);
+                Trace.answered(trace, "own word");
+                reply = RoutedReply.owned(entry);
+            } else {
+                log.debug("Not the owner of " + entry.getKey() 
+                        + ", sending the caller on");
+                reply = RoutedReply.notOwned(resolveKey(entry.getKey(), trace));
+            }
+            return reply;
+        } finally {
+            finishTrace(trace, reply);
+        }
+    }
+    
+    /**
+     * Keep a trace, and send it back with the reply too (if there's a
+     * reply) so the caller sees where its request went
+     */
+    private void finishTrace(Trace trace, RoutedReply reply) {
+        tracer.finish(trace);
+        if (reply != null) {
+            reply.trace = trace;
+        }
     }
 
     @Override
     public DictionaryEntry getWord(String word) throws RemoteException {
-        int key = Util.getHash(word);
-        log.debug("key from given word for lookup: " + key);
-        /*
-         * the niList list will have a list of <code>NodeInfo</code> objects
-         * the first of which will be the NodeInfo of the node that is to house
-         * the given key...
-         * ... if it is null, we couldn't find the correct node to give the word
-         * to, so we have a problem
-         */
-        ArrayList<NodeInfo> niList = resolveKey(key);
-        if (niList == null) {
-            log.error("We couldn't find the correct node that has the word: " 
-                    + word);
-            return null;
+        Trace trace = tracer.start("getWord", word, nodeInfo);
+        try {
+            return getWord(word, trace);
+        } finally {
+            tracer.finish(trace);
         }
+    }
+    
+    private DictionaryEntry getWord(String word, Trace trace) 
+            throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            long key = Util.getHash(word);
+            log.debug("key from given word for lookup: " + key);
+            // if the word is ours, don't bother routing
+            if (isMyKey(key)) {
+                Trace.answered(trace, "own word");
+                return getStoredWord(word);
+            }
+            DictionaryEntry cached = wordCache.get(word);
+            if (cached != null) {
+                Trace.answered(trace, "word cache");
+                return cached;
+            }
+            if (filters.definitelyAbsent(word, key)) {
+                log.debug("Filter says there's no " + word);
+                Trace.answered(trace, "key filter");
+                return null;
+            }
+            /*
+             * the niList list will have a list of <code>NodeInfo</code> objects
+             * the first of which will be the NodeInfo of the node that is to house
+             * the given key...
+             * ... if it is null, we couldn't find the correct node to give the word
+             * to, so we have a problem
+             */
+            ArrayList<NodeInfo> niList = resolveKey(key, trace);
+            if (niList == null) {
+                log.error("We couldn't find the correct node that has the word: " 
+                        + word);
+                return null;
+            }
         
-        // let's print out the path to the node that we are inserting the 
-        // word into
-        log.info("Printing path of nodes in the lookup");
-        printNodePath(niList);
+            // let's print out the path to the node that we are inserting the 
+            // word into
+            log.debug("Printing path of nodes in the lookup");
+            printNodePath(niList);
         
-        // if we got here, the first value in the list should be the node
-        // in which to lookup the word pair, so do it
-        NodeInfo targetNodeInfo = niList.get(0);
-        Registry reg = LocateRegistry.getRegistry(targetNodeInfo.ipAddress);
-        try {
-            INode targetNode = (INode) reg.lookup(Consts.NODE_RMI_DESC);
-            DictionaryEntry entry = targetNode.getWord(word);
-            return entry;
-        } catch (NotBoundException ex) {
-            log.error("node bound error in getWord(): " + ex);
-        } catch (AccessException ex) {
-            log.error("access exception in getWord(): " + ex);
+            // if we got here, the first value in the list should be the node
+            // that owns the word, and it or any of its successors can answer
+            filters.noteOwner(niList.get(0), key);
+            return getFromReplicas(niList.get(0), word, trace);
+        } finally {
+            getWordTime.recordSince(start);
+        }
+    }
+    
+    /**
+     * Read a word from whichever copy of it the replica selector likes
+     * best. A copy that doesn't have the word may just not have been
+     * sent it yet, so only the owner can say the word isn't there
+     */
+    private DictionaryEntry getFromReplicas(NodeInfo owner, String word, 
+            Trace trace) throws RemoteException {
+        RemoteException failure = null;
+        long epoch = wordCache.epoch();
+        for (NodeInfo ni : replicaSelector.order(getReplicaSet(owner, trace))) {
+            DictionaryEntry entry;
+            if (ni.equals(nodeInfo)) {
+                entry = getStoredWord(word);
+            } else {
+                replicaSelector.started(ni);
+                long start = System.nanoTime();
+                Trace.Hop hop = Trace.enter(trace, ni, "getCacheableWord");
+                boolean ok = false;
+                try {
+                    INode replica = stubCache.getNode(ni);
+                    Trace.stubFound(hop);
+                    entry = replica.getCacheableWord(word, nodeInfo);
+                    ok = true;
+                    replicaSelector.finished(ni, System.nanoTime() - start);
+                    if (entry != null) {
+                        wordCache.put(entry, epoch);
+                    }
+                } catch (NotBoundException ex) {
+                    replicaSelector.failed(ni);
+                    log.error("node bound error in getWord(): " + ex);
+                    continue;
+                } catch (RemoteException ex) {
+                    replicaSelector.failed(ni);
+                    stubCache.invalidate(ni);
+                    forgetReplicaSet(owner);
+                    failure = ex;
+                    continue;
+                } finally {
+                    Trace.exit(hop, ok);
+                }
+            }
+            if (entry != null || ni.equals(owner)) {
+                return entry;
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
-
         log.warn("Unable to find word:" + word);
         return null;
     }
     
+    /**
+     * The nodes that have copies of the given node's words: the node
+     * itself and then its successor list
+     */
+    private List<NodeInfo> getReplicaSet(NodeInfo owner, Trace trace) {
+        if (owner.equals(nodeInfo)) {
+            ArrayList<NodeInfo> nodes = new ArrayList<NodeInfo>();
+            nodes.add(nodeInfo);
+            nodes.addAll(successorList);
+            return nodes;
+        }
+        ReplicaSet rs = replicaSets.get(owner);
+        if (rs != null && System.currentTimeMillis() - rs.fetchedAt 
+                < Consts.REPLICA_SET_TTL_MS) {
+            return rs.nodes;
+        }
+        ArrayList<NodeInfo> nodes = new ArrayList<NodeInfo>();
+        nodes.add(owner);
+        Trace.Hop hop = Trace.enter(trace, owner, "getSuccessorList");
+        boolean ok = false;
+        try {
+            INode ownerNode = stubCache.getNode(owner);
+            Trace.stubFound(hop);
+            nodes.addAll(ownerNode.getSuccessorList());
+            ok = true;
+        } catch (NotBoundException ex) {
+            return nodes;
+        } catch (RemoteException ex) {
+            stubCache.invalidate(owner);
+            return nodes;
+        } finally {
+            Trace.exit(hop, ok);
+        }
+        replicaSets.put(owner, new ReplicaSet(nodes));
+        return nodes;
+    }
+    
+    private void forgetReplicaSet(NodeInfo owner) {
+        replicaSets.remove(owner);
+    }
+    
 }
\ No newline at end of file
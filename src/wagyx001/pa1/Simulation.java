@@ -0,0 +1,533 @@
+package wagyx001.pa1;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import wagyx001.pa1.core.AsyncNode;
+import wagyx001.pa1.core.Consts;
+import wagyx001.pa1.core.DictionaryEntry;
+import wagyx001.pa1.core.INode;
+import wagyx001.pa1.core.MemoryTransport;
+import wagyx001.pa1.core.NodeInfo;
+import wagyx001.pa1.core.NodeStats;
+import wagyx001.pa1.core.Ring;
+import wagyx001.pa1.core.RoutedReply;
+import wagyx001.pa1.core.StubCache;
+import wagyx001.pa1.core.Transports;
+
+/**
+ * Runs a SuperNode and any number of Nodes in this one process, talking
+ * over a <code>MemoryTransport</code> with made up latency and loss, and
+ * puts an insert and then a lookup workload through them. It reports how
+ * many hops lookups take, how evenly keys and calls are spread over the
+ * nodes, and how many operations a second got through.
+ *
+ * Each operation starts at a random node and is routed from there one
+ * hop at a time (<code>routeStep</code>) to the owner of its key, which
+ * then gets an <code>addWordIfOwner</code> or <code>getWordIfOwner</code>.
+ * The simulation acts as <code>-clients</code> clients, each with
+ * <code>Consts.ASYNC_THREADS</code> operations out at once.
+ *
+ * Once every node has joined, each one is given its final finger table
+ * and predecessor (as the SuperNode does with -Dchord.push), so routing
+ * is right from the start. With <code>-stabilize s</code> the nodes also
+ * run their maintenance rounds, for s seconds before the workload and
+ * then all through it; that builds their successor lists, so words get
+ * copied, but it takes a few threads per node and is meant for rings of
+ * a few hundred nodes rather than thousands.
+ *
+ * Options (defaults in brackets): -nodes [1000] -words [100000]
+ * -lookups [100000] -clients [4] -latency ms [0] -jitter ms [0]
+ * -loss [0] -zipf exponent of the lookup popularity [0, uniform]
+ * -stabilize s [0] -seed [1]. Run with <code>ant simulate</code>.
+ */
+public class Simulation {
+
+    private static Logger log = Logger.getLogger(Simulation.class);
+
+    private int nodeCount = 1000;
+    private int wordCount = 100000;
+    private int lookupCount = 100000;
+    private int clientCount = 4;
+    private double latencyMs = 0;
+    private double jitterMs = 0;
+    private double loss = 0;
+    private double zipf = 0;
+    private int stabilizeSeconds = 0;
+    private long seed = 1;
+
+    private MemoryTransport transport;
+    private SuperNode superNode;
+    private final ArrayList<Node> nodes = new ArrayList<Node>();
+    private final ArrayList<NodeInfo> nodeInfos = new ArrayList<NodeInfo>();
+    private final HashMap<NodeInfo, Node> byInfo = new HashMap<NodeInfo, Node>();
+    private AsyncNode[] clients;
+    private Random random;
+    private DictionaryEntry[] words;
+
+    /**
+     * Simulation main method
+     */
+    public static void main(String args[]) {
+        // thousands of nodes logging at debug would drown everything out
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        Simulation sim = new Simulation();
+        try {
+            sim.parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        try {
+            sim.run();
+        } catch (Exception e) {
+            log.error("Simulation failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("No value for " + args[i]);
+            }
+            String opt = args[i];
+            String val = args[++i];
+            try {
+                if (opt.equals("-nodes")) {
+                    nodeCount = Integer.parseInt(val);
+                } else if (opt.equals("-words")) {
+                    wordCount = Integer.parseInt(val);
+                } else if (opt.equals("-lookups")) {
+                    lookupCount = Integer.parseInt(val);
+                } else if (opt.equals("-clients")) {
+                    clientCount = Integer.parseInt(val);
+                } else if (opt.equals("-latency")) {
+                    latencyMs = Double.parseDouble(val);
+                } else if (opt.equals("-jitter")) {
+                    jitterMs = Double.parseDouble(val);
+                } else if (opt.equals("-loss")) {
+                    loss = Double.parseDouble(val);
+                } else if (opt.equals("-zipf")) {
+                    zipf = Double.parseDouble(val);
+                } else if (opt.equals("-stabilize")) {
+                    stabilizeSeconds = Integer.parseInt(val);
+                } else if (opt.equals("-seed")) {
+                    seed = Long.parseLong(val);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + opt);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad value for " + opt
+                        + ": " + val);
+            }
+        }
+        if (nodeCount < 1 || wordCount < 1 || clientCount < 1) {
+            throw new IllegalArgumentException(
+                    "Need at least one node, word and client");
+        }
+    }
+
+    public void run() throws Exception {
+        if (Consts.DATA_DIR != null) {
+            // every node would share the one journal
+            throw new IllegalStateException(
+                    "Can't simulate with -Dchord.data.dir set");
+        }
+        random = new Random(seed);
+        transport = new MemoryTransport();
+        Transports.set(transport);
+
+        buildRing();
+        if (stabilizeSeconds > 0) {
+            stabilize();
+        }
+        reportRing();
+
+        transport.setConditions(Math.round(latencyMs * 1000),
+                Math.round(jitterMs * 1000), TimeUnit.MICROSECONDS, loss);
+        clients = new AsyncNode[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new AsyncNode(new StubCache(Consts.STUB_CACHE_SIZE),
+                    null, null);
+        }
+        words = new DictionaryEntry[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            words[i] = new DictionaryEntry("word" + i,
+                    "the made up definition of word" + i);
+        }
+
+        transport.resetCounts();
+        Workload inserts = new Workload("Inserts", wordCount, true);
+        inserts.run();
+        inserts.report();
+        reportKeys();
+
+        transport.resetCounts();
+        Workload lookups = new Workload("Lookups", lookupCount, false);
+        lookups.run();
+        lookups.report();
+        reportLoad();
+    }
+
+    /**
+     * Start the SuperNode, join every node and give them all their final
+     * routing info
+     */
+    private void buildRing() throws Exception {
+        long start = System.currentTimeMillis();
+        superNode = new SuperNode();
+        transport.exportSuperNode(superNode);
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = new Node();
+            node.join();
+            NodeInfo ni = node.getNodeInfo();
+            if (ni == null) {
+                throw new IllegalStateException("Node " + i + " didn't join");
+            }
+            transport.exportNode(node, ni);
+            nodes.add(node);
+            nodeInfos.add(ni);
+            byInfo.put(ni, node);
+            // its successor has its keys until it's told about it. Let
+            // that handoff finish before the next join changes who it's
+            // from
+            NodeInfo succ = superNode.getNewFingerTable(ni.id).get(0);
+            if (!succ.equals(ni)) {
+                byInfo.get(succ).update(superNode.getNewFingerTable(succ.id),
+                        ni);
+                awaitKeys(node);
+            }
+        }
+        for (Node node : nodes) {
+            long id = node.getNodeInfo().id;
+            node.update(superNode.getNewFingerTable(id),
+                    superNode.getPredecessor(id));
+        }
+        for (Node node : nodes) {
+            awaitKeys(node);
+        }
+        System.out.println(nodeCount + " nodes joined in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Wait for a node to be handed the keys it's waiting for
+     */
+    private void awaitKeys(Node node) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (node.isTakingOverKeys()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        if (node.isTakingOverKeys()) {
+            log.warn("Node " + node.getNodeInfo().id
+                    + " still hasn't got its keys");
+        }
+    }
+
+    private void stabilize() throws InterruptedException {
+        for (Node node : nodes) {
+            node.startMaintenance();
+        }
+        Thread.sleep(stabilizeSeconds * 1000L);
+        long lists = 0;
+        for (Node node : nodes) {
+            lists += node.getSuccessorList().size();
+        }
+        System.out.printf("Stabilized for %ds: successor lists average %.2f"
+                + " of %d nodes%n", stabilizeSeconds,
+                (double) lists / nodes.size(), Consts.REPLICATION_FACTOR);
+    }
+
+    /**
+     * How evenly the ring is split between the nodes
+     */
+    private void reportRing() throws RemoteException {
+        double[] shares = new double[nodes.size()];
+        double ring = Math.pow(2, Ring.M);
+        for (int i = 0; i < nodes.size(); i++) {
+            NodeInfo ni = nodeInfos.get(i);
+            NodeInfo pred = superNode.getPredecessor(ni.id);
+            shares[i] = pred.id == ni.id
+                    ? 1 : unsigned(Ring.distance(pred.id, ni.id)) / ring;
+        }
+        System.out.println();
+        System.out.println("Share of the ring per node:");
+        printSpread(shares, nodeInfos);
+    }
+
+    /**
+     * How evenly the inserted words are spread over the nodes
+     */
+    private void reportKeys() {
+        double[] owned = new double[nodes.size()];
+        double[] copies = new double[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            NodeStats stats = nodes.get(i).getNodeStats();
+            owned[i] = stats.entries;
+            copies[i] = stats.replicaEntries;
+        }
+        System.out.println("Words owned per node:");
+        printSpread(owned, nodeInfos);
+        if (stabilizeSeconds > 0) {
+            System.out.println("Word copies per node:");
+            printSpread(copies, nodeInfos);
+        }
+    }
+
+    /**
+     * How evenly the lookups' calls landed on the nodes
+     */
+    private void reportLoad() {
+        double[] calls = new double[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            calls[i] = transport.getReceived(nodeInfos.get(i));
+        }
+        System.out.println("Calls per node during the lookups:");
+        printSpread(calls, nodeInfos);
+    }
+
+    /**
+     * Mean, spread and extremes of a per node quantity, and the nodes
+     * with the most of it
+     */
+    private static void printSpread(final double[] values,
+            ArrayList<NodeInfo> infos) {
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double v : values) {
+            sum += v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        double mean = sum / values.length;
+        double var = 0;
+        for (double v : values) {
+            var += (v - mean) * (v - mean);
+        }
+        double sd = Math.sqrt(var / values.length);
+        System.out.printf("  mean %.4g  min %.4g  max %.4g  max/mean %.2f"
+                + "  stddev/mean %.2f%n", mean, min, max,
+                mean == 0 ? 0 : max / mean, mean == 0 ? 0 : sd / mean);
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[b], values[a]);
+            }
+        });
+        StringBuilder top = new StringBuilder("  most:");
+        for (int i = 0; i < Math.min(3, order.length); i++) {
+            top.append(String.format(" node %s (%.4g)",
+                    Ring.toString(infos.get(order[i]).id), values[order[i]]));
+        }
+        System.out.println(top);
+    }
+
+    private static double unsigned(long v) {
+        return v >= 0 ? v : (double) (v >>> 1) * 2 + (v & 1);
+    }
+
+    /**
+     * Popularity of the words for lookups: word i is picked with weight
+     * 1 / (i + 1)^zipf
+     */
+    private int[] pickWords(int count) {
+        double[] cumulative = new double[words.length];
+        double total = 0;
+        for (int i = 0; i < words.length; i++) {
+            total += 1 / Math.pow(i + 1, zipf);
+            cumulative[i] = total;
+        }
+        // shuffle which words are popular so it isn't word0, word1...
+        ArrayList<Integer> ranks = new ArrayList<Integer>(words.length);
+        for (int i = 0; i < words.length; i++) {
+            ranks.add(i);
+        }
+        Collections.shuffle(ranks, random);
+        int[] picks = new int[count];
+        for (int i = 0; i < count; i++) {
+            int rank = Arrays.binarySearch(cumulative,
+                    random.nextDouble() * total);
+            if (rank < 0) {
+                rank = Math.min(-rank - 1, words.length - 1);
+            }
+            picks[i] = ranks.get(rank);
+        }
+        return picks;
+    }
+
+    /**
+     * One phase of the simulation: a number of inserts or lookups, each
+     * from a random node
+     */
+    private class Workload {
+
+        // what became of an operation
+        static final int OK = 0;
+        static final int NOT_FOUND = 1;
+        static final int MISROUTED = 2;
+        static final int FAILED = 3;
+
+        private final String name;
+        private final int count;
+        private final boolean insert;
+
+        private final int[] hops;
+        private final long[] nanos;
+        private final int[] outcomes;
+        private long elapsed;
+
+        Workload(String name, int count, boolean insert) {
+            this.name = name;
+            this.count = count;
+            this.insert = insert;
+            hops = new int[count];
+            nanos = new long[count];
+            outcomes = new int[count];
+        }
+
+        void run() throws InterruptedException {
+            int[] picks = insert ? null : pickWords(count);
+            int window = clientCount * Consts.ASYNC_THREADS;
+            final Semaphore inFlight = new Semaphore(window);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                inFlight.acquire();
+                DictionaryEntry word = words[insert ? i : picks[i]];
+                NodeInfo from = nodeInfos.get(random.nextInt(nodeInfos.size()));
+                start(i, clients[i % clients.length], from, word)
+                        .whenComplete(new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void v, Throwable t) {
+                        inFlight.release();
+                    }
+                });
+            }
+            inFlight.acquire(window);
+            elapsed = System.nanoTime() - start;
+            inFlight.release(window);
+        }
+
+        private CompletableFuture<Void> start(final int i,
+                final AsyncNode client, NodeInfo from,
+                final DictionaryEntry word) {
+            final long start = System.nanoTime();
+            return client.resolveKey(from, word.getKey()).thenCompose(
+                    new Function<ArrayList<NodeInfo>,
+                            CompletableFuture<RoutedReply>>() {
+                @Override
+                public CompletableFuture<RoutedReply> apply(
+                        ArrayList<NodeInfo> path) {
+                    // the path runs from the owner back to where we started
+                    hops[i] = path.size() - 1;
+                    return client.call(path.get(0),
+                            new AsyncNode.RemoteCall<RoutedReply>() {
+                        @Override
+                        public RoutedReply call(INode node)
+                                throws RemoteException {
+                            return insert ? node.addWordIfOwner(word)
+                                    : node.getWordIfOwner(word.getWord());
+                        }
+                    });
+                }
+            }).handle(new BiFunction<RoutedReply, Throwable, Void>() {
+                @Override
+                public Void apply(RoutedReply reply, Throwable t) {
+                    nanos[i] = System.nanoTime() - start;
+                    if (t != null) {
+                        outcomes[i] = FAILED;
+                        hops[i] = -1;
+                    } else if (!reply.owner) {
+                        outcomes[i] = MISROUTED;
+                    } else if (reply.entry == null) {
+                        outcomes[i] = NOT_FOUND;
+                    } else {
+                        outcomes[i] = OK;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        void report() {
+            int[] byOutcome = new int[4];
+            int maxHops = 0;
+            for (int i = 0; i < count; i++) {
+                byOutcome[outcomes[i]]++;
+                maxHops = Math.max(maxHops, hops[i]);
+            }
+            double seconds = elapsed / 1e9;
+            System.out.println();
+            System.out.printf("%s: %d in %.2fs, %.0f a second%n", name, count,
+                    seconds, count / seconds);
+            System.out.printf("  %d ok, %d not found, %d misrouted, "
+                    + "%d failed; %d messages lost%n", byOutcome[OK],
+                    byOutcome[NOT_FOUND], byOutcome[MISROUTED],
+                    byOutcome[FAILED], transport.getLost());
+            System.out.printf("  %.1f calls and %.0f bytes sent per %s%n",
+                    (double) transport.getCalls() / count,
+                    (double) transport.getBytes() / count,
+                    insert ? "insert" : "lookup");
+
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            System.out.printf("  latency ms: p50 %.3f  p90 %.3f  p99 %.3f"
+                    + "  max %.3f%n", percentile(sorted, 0.5) / 1e6,
+                    percentile(sorted, 0.9) / 1e6,
+                    percentile(sorted, 0.99) / 1e6,
+                    sorted[sorted.length - 1] / 1e6);
+
+            int[] histogram = new int[maxHops + 1];
+            long total = 0;
+            int routed = 0;
+            for (int h : hops) {
+                if (h >= 0) {
+                    histogram[h]++;
+                    total += h;
+                    routed++;
+                }
+            }
+            int[] sortedHops = hops.clone();
+            Arrays.sort(sortedHops);
+            int firstRouted = count - routed;
+            System.out.printf("  hops: mean %.2f  p50 %d  p99 %d  max %d"
+                    + "  (log2(N)/2 = %.2f)%n",
+                    routed == 0 ? 0 : (double) total / routed,
+                    routed == 0 ? 0 : sortedHops[firstRouted + routed / 2],
+                    routed == 0 ? 0 : sortedHops[firstRouted
+                            + (int) Math.min(routed - 1, routed * 0.99)],
+                    maxHops, Math.log(nodeCount) / Math.log(2) / 2);
+            for (int h = 0; h < histogram.length; h++) {
+                System.out.printf("  %4d %9d %6.2f%%%n", h, histogram[h],
+                        100.0 * histogram[h] / Math.max(1, routed));
+            }
+        }
+
+        private double percentile(long[] sorted, double p) {
+            return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)];
+        }
+    }
+}
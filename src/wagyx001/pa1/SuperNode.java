@@ -1,14 +1,23 @@
 package wagyx001.pa1;
 
-import java.rmi.AccessException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import java.util.logging.Level;
 import org.apache.log4j.Logger;
@@ -17,8 +26,13 @@ import org.apache.log4j.PropertyConfigurator;
 import wagyx001.pa1.core.NodeInfo;
 import wagyx001.pa1.core.Consts;
 import wagyx001.pa1.core.FingerTable;
+import wagyx001.pa1.core.Histogram;
 import wagyx001.pa1.core.INode;
 import wagyx001.pa1.core.ISuperNode;
+import wagyx001.pa1.core.Metrics;
+import wagyx001.pa1.core.Ring;
+import wagyx001.pa1.core.StubCache;
+import wagyx001.pa1.core.Transports;
 import wagyx001.pa1.core.Util;
 
 /**
@@ -26,26 +40,73 @@ import wagyx001.pa1.core.Util;
  * gives initial information (such as their node id and initial finger table)
  * that they need to start.
  * 
- * The SuperNode maintains a list of NodeInfo objects to keep track of
- * how to assign initial node information.
- * 
- * It is important to note that we do not rely on any sort 
- * of ordering of the NodeInfo list, but rather their assigned node ids
- * to identify them.
+ * The SuperNode keeps the NodeInfo of every node in a concurrent sorted
+ * map keyed by node id (the ring index), so that successor, predecessor
+ * and id lookups are O(log N) and don't block each other.
  * 
  */
 public class SuperNode implements ISuperNode {
 
-    // nodeInfos keeps a list of active nodes' info
-    ArrayList<NodeInfo> nodeInfos;
+    // ring index of active nodes' info, in (unsigned) id order
+    ConcurrentSkipListMap<Long, NodeInfo> ring;
+    
+    // the same nodes as a list, for picking one at random
+    CopyOnWriteArrayList<NodeInfo> nodeInfos;
+    
+    // port number to give the next node that joins
+    private int nextPort = 50000;
+    
+    // stubs of the nodes we push updates to
+    private StubCache stubCache;
+    
+    // threads that push finger table updates to nodes when one joins
+    private ExecutorService updateExecutor;
     
-    private static Logger log;
+    // whether we push those updates at all
+    private final boolean pushUpdates;
+    
+    private static Logger log = Logger.getLogger(SuperNode.class);
+    
+    // how long the calls nodes make when they join take (us)
+    private static final Histogram initiateTime = 
+            Metrics.histogram("supernode.initiate.us");
+    private static final Histogram newFingerTableTime = 
+            Metrics.histogram("supernode.getNewFingerTable.us");
+    private static final Histogram predecessorTime = 
+            Metrics.histogram("supernode.getPredecessor.us");
+    private static final Histogram hasJoinedTime = 
+            Metrics.histogram("supernode.hasJoined.us");
     
     /**
      * Constructor for SuperNode
      */
     public SuperNode() {
-        nodeInfos = new ArrayList<NodeInfo>();
+        this(Consts.SUPERNODE_PUSH_UPDATES);
+    }
+    
+    /**
+     * SuperNode that does or doesn't push new routing info to the nodes a
+     * join affects, whatever Consts.SUPERNODE_PUSH_UPDATES says
+     */
+    SuperNode(boolean pushUpdates) {
+        this.pushUpdates = pushUpdates;
+        ring = new ConcurrentSkipListMap<Long, NodeInfo>(new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return Ring.compare(a, b);
+            }
+        });
+        nodeInfos = new CopyOnWriteArrayList<NodeInfo>();
+        stubCache = new StubCache(Consts.STUB_CACHE_SIZE);
+        updateExecutor = Executors.newFixedThreadPool(Consts.UPDATE_THREADS,
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "node-updater");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
     
     /**
@@ -55,18 +116,21 @@ public class SuperNode implements ISuperNode {
         
         // initialize log4j
         PropertyConfigurator.configure("config/log4j.properties");
-        log = Logger.getLogger( SuperNode.class );
         log.debug("Log4j has been initialized");
         
+        // don't let a node that never answers hold up a join for good
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout",
+                    String.valueOf(Consts.UPDATE_TIMEOUT_MS));
+        }
+        
         // start supernode
         log.info("Starting SuperNode...");
 	try {
             ISuperNode superNode = new SuperNode();            
-            ISuperNode stub = 
-		(ISuperNode) UnicastRemoteObject.exportObject(superNode,0);
-            Registry registry = LocateRegistry.getRegistry();
-            registry.rebind(Consts.SUPERNODE_RMI_DESC, stub);
+            Transports.get().exportSuperNode(superNode);
             log.info("SuperNode listening");
+            Metrics.startDumps();
         } catch (Exception e) {
             log.error("SuperNode exception: " + e);
         }
@@ -79,27 +143,32 @@ public class SuperNode implements ISuperNode {
      * (FINGERTABLE_SIZE)
      */
     @Override
-    public FingerTable getNewFingerTable(int thisId) throws RemoteException {
-        FingerTable ft = new FingerTable();
-        log.debug("Getting new finger table for node id: " + thisId);
-        for (int i=1; i<=Consts.FINGERTABLE_SIZE; i++) {
-            // we need to handle the case where nothing is in the 
-            // node list here:
-            if (nodeInfos.isEmpty()) {
-                // if there are no other nodes, just keep our own address 
-                // in the finger table
-                log.debug("nodeInfos is empty, so our id is always the id in the finger table");
-                ft.add(thisId);
-                continue;
+    public FingerTable getNewFingerTable(long thisId) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            FingerTable ft = new FingerTable();
+            log.debug("Getting new finger table for node id: " + thisId);
+            for (int i=1; i<=Consts.FINGERTABLE_SIZE; i++) {
+                // we need to handle the case where nothing is in the 
+                // node list here:
+                if (ring.isEmpty()) {
+                    // if there are no other nodes, just keep our own address 
+                    // in the finger table
+                    log.debug("nodeInfos is empty, so our id is always the id in the finger table");
+                    ft.add(new NodeInfo(thisId, null, 0));
+                    continue;
+                }
+                long cal = Ring.fingerStart(thisId, i);
+                log.debug("cal value: " + cal);
+                NodeInfo val = getSuccessor(cal);
+                log.debug("val value: " + val.id);
+                ft.add(val);
             }
-            int cal = (int) ((thisId + Math.pow(2,(i-1))) % Consts.MAX_NODE_KEY);
-            log.debug("cal value: " + cal);
-            int val = getSuccessorId(cal);
-            log.debug("val value: " + val);
-            ft.add(val);
+            log.debug("new finger table for node " + thisId + ":" + ft);
+            return ft;
+        } finally {
+            newFingerTableTime.recordSince(start);
         }
-        log.debug("new finger table for node " + thisId + ":" + ft);
-        return ft;
     }
     
     /**
@@ -113,8 +182,12 @@ public class SuperNode implements ISuperNode {
     @Override
     public NodeInfo giveRandomNodeInfo() throws RemoteException {
         Random rand = new Random();
-        int i = rand.nextInt(nodeInfos.size());
-        return nodeInfos.get(i);
+        Object[] nis = nodeInfos.toArray();
+        if (nis.length == 0) {
+            log.warn("No nodes have joined yet");
+            return null;
+        }
+        return (NodeInfo) nis[rand.nextInt(nis.length)];
     }
     
     /**
@@ -128,129 +201,245 @@ public class SuperNode implements ISuperNode {
      * @throws RemoteException 
      */
     @Override
-    public NodeInfo initiate(String url) throws RemoteException {
-        log.debug("in initiate()");
-        int port = getNewNodePortNum();
-        log.debug("Assigning node at " + url + " port number " + port);
-        int thisId = getNewNodeId(url, port);
-        log.debug("Assigning node at " + url + " id " + thisId);
-        NodeInfo ni = new NodeInfo(thisId, url, port);
-        // add node to list of node info that this supernode maintains
-        nodeInfos.add(ni);
-        log.info("Added node:\n" + ni);
-        return ni;
+    public synchronized NodeInfo initiate(String url) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            log.debug("in initiate()");
+            int port = getNewNodePortNum();
+            log.debug("Assigning node at " + url + " port number " + port);
+            long thisId = getNewNodeId(url, port);
+            log.debug("Assigning node at " + url + " id " + thisId);
+            NodeInfo ni = new NodeInfo(thisId, url, port);
+            // add node to the ring index that this supernode maintains
+            ring.put(thisId, ni);
+            nodeInfos.add(ni);
+            log.info("Added node:\n" + ni);
+            return ni;
+        } finally {
+            initiateTime.recordSince(start);
+        }
     }
     
     /**
-     * Gets the predecessor node for a given id value (key value)
-     * @param id: hash key value to find the predecessor node
+     * Let a restarted node back in with the id and port it had before, so
+     * that the words it kept on disk are still in its range. It may
+     * still be in the ring from before it went down, in which case its
+     * old entry is taken over. If its id or port now belong to another
+     * node it joins as a new one, as with <code>initiate</code>
      */
     @Override
-    public int getPredecessor(int id) throws RemoteException {
-        // sort nodeInfos by their default sort order - nodeId
-        Collections.sort(nodeInfos);
-        
-        // log.debug("Sorted nodeInfos: " + nodeInfos);
-        log.debug("in get predecessorId() and looking for predecessor of " + id);
-        
-        int dhtSize = nodeInfos.size();
-        log.debug("size of DHT: " + dhtSize);
- 
-        if (nodeInfos.get(0).id > id) {
-            // if the id is smaller than the smallest id, its predecessor
-            // is the node with the largest id (modulo arithmetic)
-            log.debug("id is smaller than the smallest id: " + 
-                    nodeInfos.get(0).id);
-            log.debug("so we are giving predecessor of last node: " 
-                    + nodeInfos.get(dhtSize-1).id);
-            return nodeInfos.get(dhtSize-1).id;
-        }
-        // otherwise, we march down the node info list and return the first
-        // id that is smaller than the input id
-        for (int i=dhtSize-1; i>=0; i--) {
-            int currId = nodeInfos.get(i).id;
-            log.debug("checking id: " + currId 
-                    + " to see if it is the predecessor");
-            if (currId <= id) {
-                log.debug("this id is the predecessor: " + currId);
-                return currId;
+    public synchronized NodeInfo rejoin(String url, NodeInfo previous) 
+            throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            NodeInfo old = ring.get(previous.id);
+            boolean portTaken = false;
+            for (NodeInfo ni : nodeInfos) {
+                if (ni.id != previous.id && ni.portNumber == previous.portNumber
+                        && ni.ipAddress.equals(url)) {
+                    portTaken = true;
+                }
+            }
+            if (portTaken || (old != null && (old.portNumber 
+                    != previous.portNumber || !old.ipAddress.equals(url)))) {
+                log.info("Can't give " + previous + " back to the node at "
+                        + url + ", joining it as a new node");
+                return initiate(url);
+            }
+            NodeInfo ni = new NodeInfo(previous.id, url, previous.portNumber);
+            if (old == null) {
+                ring.put(ni.id, ni);
+                nodeInfos.add(ni);
             }
+            // don't hand its port to anyone else
+            nextPort = Math.max(nextPort, ni.portNumber + 1);
+            log.info("Node rejoined:\n" + ni);
+            return ni;
+        } finally {
+            initiateTime.recordSince(start);
         }
-        log.warn("We've run out of entries, so the predecessor must be the largest value");
-        return nodeInfos.get(dhtSize-1).id;
     }
     
     /**
-     * Gets successor Id for a given key id
-     * For documentation, see <code>getPredecessorId</code> method
-     * as it is pretty much the same, just reversed
+     * Gets the predecessor node for a given id value (key value), i.e.
+     * the node with the largest id smaller than the given one (wrapping
+     * round to the largest id). A lone node is its own predecessor
+     * @param id: hash key value to find the predecessor node
      */
-    private int getSuccessorId(int id) {
-        Collections.sort(nodeInfos);
-        int dhtSize = nodeInfos.size();
-        int lastPos = nodeInfos.size()-1;
-        
-        if (nodeInfos.get(lastPos).id < id) {
-            return nodeInfos.get(0).id;
-        }
-        
-        for (int i=0; i<dhtSize; i++) {
-            int currId = nodeInfos.get(i).id;
-            if (currId >= id) {
-                return currId;
+    @Override
+    public NodeInfo getPredecessor(long id) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            Map.Entry<Long, NodeInfo> e = ring.lowerEntry(id);
+            if (e == null) {
+                // if the id is smaller than the smallest id, its predecessor
+                // is the node with the largest id (modulo arithmetic)
+                e = ring.lastEntry();
             }
+            log.debug("predecessor of " + id + " is " + e.getKey());
+            return e.getValue();
+        } finally {
+            predecessorTime.recordSince(start);
         }
-        log.error("Couldn't find successor of " + id
-                + ". This shouldn't happen");
-        return -1;
     }
     
     /**
-     * Get a NodeInfo's position in the NodeInfo list by its node id
-     * @param nodeInfoId: the node id that is being queried
-     * @return NodeInfo list position index
+     * Gets successor node for a given key id, i.e. the first node at
+     * or after it, wrapping round to the smallest id
      */
-    private int getNodeInfoPositionById(int nodeInfoId) {
-        for (int i=0; i<nodeInfos.size(); i++) {
-            log.debug("size: " + nodeInfos.size());
-            NodeInfo ni = nodeInfos.get(i);
-            log.debug("Checking node " + ni.id + " against " + nodeInfoId);
-            if (ni.id == nodeInfoId) {
-                return i;
-            }
+    private NodeInfo getSuccessor(long id) {
+        Map.Entry<Long, NodeInfo> e = ring.ceilingEntry(id);
+        if (e == null) {
+            e = ring.firstEntry();
         }
-        log.debug("Only one node");
-        return 0;
+        return e.getValue();
     }
 
     /**
-     * RMI that allows new node to report that it has joined our DHT
+     * RMI that allows new node to report that it has joined our DHT.
+     * 
+     * Nodes keep their own routing info up to date by stabilizing, so
+     * this does nothing more unless pushing updates is turned on
+     * (Consts.SUPERNODE_PUSH_UPDATES, or the constructor's flag). In that case only the nodes whose
+     * routing info the new node changes are updated: its successor (whose
+     * predecessor is now the new node) and every node with a finger that
+     * now points at the new node. The updates are sent in parallel and we
+     * wait for all of them (or their timeouts) before returning.
      * @param nodeId
      * @throws RemoteException 
      */
     @Override
-    public boolean hasJoined(int nodeId) throws RemoteException {
-        log.info("A new node has joined the system: " + nodeId);
-        // update nodeinfo list values and nodes
-        for (NodeInfo ni : nodeInfos) {
-            if (ni.id != nodeId) {
-                FingerTable newFT = getNewFingerTable(ni.id);
-                int predId = getPredecessor(ni.id);
-                Registry reg = LocateRegistry.getRegistry(ni.ipAddress);
-                try {
-                    INode node =
-                            (INode) reg.lookup(Consts.NODE_RMI_DESC);
-                    // update the node with its new info
-                    node.update(newFT, predId);
-                } catch (NotBoundException ex) {
-                    log.error("hasJoined not bound issue: " + ex);
-                } catch (AccessException ex) {
-                    log.error("hasJoined access issue: " + ex);
+    public boolean hasJoined(long nodeId) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            log.info("A new node has joined the system: " + nodeId);
+            if (!pushUpdates) {
+                // the nodes will find the new node themselves when they stabilize
+                return true;
+            }
+            Map<Long, NodeInfo> affected = getNodesAffectedByJoin(nodeId);
+            log.debug(affected.size() + " of " + ring.size() 
+                    + " nodes need updating after " + nodeId + " joined");
+        
+            // work out each node's new info, then push it to them all at once
+            List<Callable<Boolean>> updates = new ArrayList<Callable<Boolean>>();
+            for (final NodeInfo ni : affected.values()) {
+                final FingerTable newFT = getNewFingerTable(ni.id);
+                final NodeInfo pred = getPredecessor(ni.id);
+                updates.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return updateNode(ni, newFT, pred);
+                    }
+                });
+            }
+            if (updates.isEmpty()) {
+                return true;
+            }
+        
+            // nodes are updated UPDATE_THREADS at a time, and each one gets
+            // UPDATE_TIMEOUT_MS to answer
+            int rounds = (updates.size() + Consts.UPDATE_THREADS - 1) 
+                    / Consts.UPDATE_THREADS;
+            int failed = 0;
+            try {
+                List<Future<Boolean>> results = updateExecutor.invokeAll(updates,
+                        (long) rounds * Consts.UPDATE_TIMEOUT_MS, 
+                        TimeUnit.MILLISECONDS);
+                for (Future<Boolean> f : results) {
+                    try {
+                        if (!f.get()) {
+                            failed++;
+                        }
+                    } catch (CancellationException ex) {
+                        failed++;
+                    } catch (ExecutionException ex) {
+                        failed++;
+                    }
                 }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted while updating nodes after a join");
+                return false;
             }
-
+            if (failed > 0) {
+                log.warn(failed + " of " + updates.size() 
+                        + " nodes didn't get their update after " + nodeId 
+                        + " joined");
+            }
+            log.debug(stubCache);
+    	return true;
+        } finally {
+            hasJoinedTime.recordSince(start);
+        }
+    }
+    
+    /**
+     * Send a node its new finger table and predecessor
+     * @return true if the node got the update
+     */
+    private boolean updateNode(NodeInfo ni, FingerTable ft, NodeInfo pred) {
+        try {
+            INode node = stubCache.getNode(ni);
+            // update the node with its new info
+            node.update(ft, pred);
+            return true;
+        } catch (NotBoundException ex) {
+            log.error("hasJoined not bound issue: " + ex);
+        } catch (RemoteException ex) {
+            stubCache.invalidate(ni);
+            log.error("hasJoined remote issue updating node " 
+                    + ni.id + ": " + ex);
+        }
+        return false;
+    }
+    
+    /**
+     * Find the nodes whose finger table or predecessor changes when the
+     * node with the given id joins.
+     * 
+     * Finger i of node p starts at t = p + 2^(i-1) and points at the first
+     * node at or after t. That becomes the new node n exactly when t is in
+     * (prev, n], where prev is the node before n, i.e. when p is in 
+     * (prev - 2^(i-1), n - 2^(i-1)]. So we just pull that range out of the
+     * ring index for each i.
+     */
+    private Map<Long, NodeInfo> getNodesAffectedByJoin(long newId) {
+        Map<Long, NodeInfo> affected = new LinkedHashMap<Long, NodeInfo>();
+        long prev = ring.lowerKey(newId) != null 
+                ? ring.lowerKey(newId) : ring.lastKey();
+        if (prev == newId) {
+            // the new node is the only one
+            return affected;
+        }
+        
+        // the new node's successor has a new predecessor
+        long succ = ring.higherKey(newId) != null 
+                ? ring.higherKey(newId) : ring.firstKey();
+        affected.put(succ, ring.get(succ));
+        
+        for (int i=1; i<=Consts.FINGERTABLE_SIZE; i++) {
+            long step = 1L << (i-1);
+            long lo = Ring.add(prev, -step);
+            long hi = Ring.add(newId, -step);
+            affected.putAll(getNodesInRange(lo, hi));
         }
-	return true;
+        affected.remove(newId);
+        return affected;
+    }
+    
+    /**
+     * Nodes with ids in the ring interval (lo, hi], lo != hi
+     */
+    private Map<Long, NodeInfo> getNodesInRange(long lo, long hi) {
+        if (Ring.compare(lo, hi) < 0) {
+            return ring.subMap(lo, false, hi, true);
+        }
+        // the range wraps round zero
+        Map<Long, NodeInfo> nodes = new LinkedHashMap<Long, NodeInfo>();
+        nodes.putAll(ring.tailMap(lo, false));
+        nodes.putAll(ring.headMap(hi, true));
+        return nodes;
     }
     
     /**
@@ -258,19 +447,34 @@ public class SuperNode implements ISuperNode {
      * @return 
      */
     private int getNewNodePortNum() {
-        int nodeNum = nodeInfos.size();
-        int base = 50000;
-         return base + nodeNum;
+        return nextPort++;
     }
     
     /**
      * Get a new ID val for a Node (based on hashing the ip and port of the Node)
+     * Since the hash is deterministic, two nodes can land on the same id on
+     * a small ring, so we step forward to the next free id in that case.
+     * A node can't join a ring that has no free ids left
      * @param ip
      * @param port
      * @return 
      */
-    private int getNewNodeId(String ip, int port) {
-        return Util.getHash(ip + port);
+    private long getNewNodeId(String ip, int port) throws RemoteException {
+        // every id is taken, so there's nowhere to put the node
+        if (Ring.M < 64 && ring.size() > Ring.MASK) {
+            log.error("The ring is full (" + ring.size() + " nodes)");
+            throw new RemoteException("no free ids left on the ring");
+        }
+        long id = Util.getHash(ip + ":" + port);
+        // of any ring.size() + 1 ids in a row at least one is free
+        for (int tries = 0; tries <= ring.size(); tries++) {
+            if (!ring.containsKey(id)) {
+                return id;
+            }
+            log.debug("id " + id + " is taken, trying the next one");
+            id = Ring.add(id, 1);
+        }
+        throw new RemoteException("no free ids left on the ring");
     }
 
     /**
@@ -278,14 +482,21 @@ public class SuperNode implements ISuperNode {
      * based on node id
      */
     @Override
-    public NodeInfo getNodeInfo(int nodeId) throws RemoteException {
-        for (NodeInfo ni : nodeInfos) {
-            if (ni.id == nodeId) {
-                return ni;
-            }
+    public NodeInfo getNodeInfo(long nodeId) throws RemoteException {
+        NodeInfo ni = ring.get(nodeId);
+        if (ni == null) {
+            log.error("Couldn't find node using this id: " + nodeId);
         }
-        log.error("Couldn't find node using this id: " + nodeId);
-        return null;
+        return ni;
+    }
+    
+    /**
+     * Get the info of every node in the DHT... used by Clients to seed
+     * their view of the ring
+     */
+    @Override
+    public ArrayList<NodeInfo> getNodeInfos() throws RemoteException {
+        return new ArrayList<NodeInfo>(ring.values());
     }
 
 }
\ No newline at end of file
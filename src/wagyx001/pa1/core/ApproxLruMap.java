@@ -0,0 +1,130 @@
+package wagyx001.pa1.core;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded map that drops roughly the least recently used entries when it
+ * gets full, without taking a lock on <code>get</code>.
+ *
+ * Entries sit in a ConcurrentHashMap and each remembers when it was last
+ * used, to about a millisecond, written without any lock and only when
+ * that has changed, so hits don't all write to one shared counter. When
+ * a put takes the map over its capacity, one caller sweeps it: it finds
+ * the time below which about an eighth of the entries were last used and
+ * drops those. Eviction is therefore approximate (entries used in the
+ * same millisecond are alike to it, entries used during the sweep may
+ * go, and the map can be a little over capacity while it runs) but costs
+ * a sort per capacity/8 puts rather than a lock per get.
+ */
+public class ApproxLruMap<K, V> {
+
+    private final int capacity;
+    private final ConcurrentHashMap<K, Slot<V>> map;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private static final class Slot<V> {
+        final V value;
+        volatile long used;
+
+        Slot(V value, long used) {
+            this.value = value;
+            this.used = used;
+        }
+    }
+
+    public ApproxLruMap(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap<K, Slot<V>>(
+                Math.min(capacity, 1024) * 4 / 3 + 1);
+    }
+
+    public V get(K key) {
+        Slot<V> s = map.get(key);
+        if (s == null) {
+            return null;
+        }
+        long now = now();
+        if (s.used != now) {
+            s.used = now;
+        }
+        return s.value;
+    }
+
+    public void put(K key, V value) {
+        map.put(key, new Slot<V>(value, now()));
+        if (map.size() > capacity) {
+            sweep();
+        }
+    }
+
+    public V remove(K key) {
+        Slot<V> s = map.remove(key);
+        return s == null ? null : s.value;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * The time in units of 2^20 ns, about a millisecond
+     */
+    private static long now() {
+        return System.nanoTime() >> 20;
+    }
+
+    /**
+     * Drop the least recently used eighth or so of the entries, unless
+     * another caller is already doing it. A put that finds a sweep under
+     * way leaves it to that one, which looks again before it stops
+     */
+    private void sweep() {
+        while (map.size() > capacity && sweeping.compareAndSet(false, true)) {
+            try {
+                sweepOnce();
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    private void sweepOnce() {
+        int size = map.size();
+        int drop = size - capacity + Math.max(1, capacity / 8);
+        if (size <= capacity) {
+            return;
+        }
+        long[] ticks = new long[size];
+        int n = 0;
+        for (Slot<V> s : map.values()) {
+            if (n == ticks.length) {
+                break;
+            }
+            ticks[n++] = s.used;
+        }
+        if (n == 0) {
+            return;
+        }
+        Arrays.sort(ticks, 0, n);
+        long cutoff = ticks[Math.min(drop, n) - 1];
+        for (Map.Entry<K, Slot<V>> e : map.entrySet()) {
+            if (drop == 0) {
+                break;
+            }
+            if (e.getValue().used <= cutoff
+                    && map.remove(e.getKey(), e.getValue())) {
+                drop--;
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package wagyx001.pa1.core;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Future-based calls on nodes.
+ *
+ * Over the NIO transport a call is sent without any thread waiting for
+ * its reply (see <code>NioTransport.send</code>), so a caller can have
+ * any number out at once. RMI can only wait, so there each call runs as
+ * a task on a pool of <code>Consts.ASYNC_THREADS</code> threads that
+ * every AsyncNode has to itself, and that many is as many as it has out.
+ * Keys are looked up iteratively with <code>routeStep</code>:
+ * we ask one node at a time for the next hop, so no node along the path
+ * has a thread tied up waiting on the rest of the lookup, and nothing is
+ * tied up between hops at all.
+ *
+ * A failed call completes its future exceptionally with a
+ * <code>CompletionException</code> wrapping the RemoteException or
+ * NotBoundException, and the node's stub is dropped from the cache.
+ */
+public class AsyncNode {
+
+    private static final Logger log = Logger.getLogger(AsyncNode.class);
+
+    // a lookup that takes more hops than this is going round in circles
+    private static final int MAX_HOPS = 2 * Ring.M + 2;
+
+    private final StubCache stubCache;
+    private final NodeInfo self;
+    private final INode selfNode;
+    // whether calls go out over nio; if not, the pool that waits for them
+    private final boolean nio;
+    private final ExecutorService pool;
+
+    /**
+     * @param self the node we're running in (calls on it aren't sent over
+     * the network), or null in a client
+     */
+    public AsyncNode(StubCache stubCache, NodeInfo self, INode selfNode) {
+        this.stubCache = stubCache;
+        this.self = self;
+        this.selfNode = selfNode;
+        this.nio = Transports.get() instanceof NioTransport;
+        this.pool = nio ? null : Executors.newFixedThreadPool(
+                Consts.ASYNC_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "async-rpc");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * A call to make on a node. It should make just the one call on the
+     * node and return what that returns: anything more to do with the
+     * result goes on the future, since over NIO the call doesn't wait
+     * for the result
+     */
+    public interface RemoteCall<T> {
+        T call(INode node) throws RemoteException;
+    }
+
+    /**
+     * Run a call on the given node
+     */
+    public <T> CompletableFuture<T> call(final NodeInfo target,
+            final RemoteCall<T> call) {
+        return call(target, call, null, null);
+    }
+
+    /**
+     * Run a call on the given node, as a hop of the given trace (if any).
+     * A call that gives back a <code>RouteStep</code> also has the time
+     * the other node says it spent noted against the hop
+     */
+    public <T> CompletableFuture<T> call(final NodeInfo target,
+            final RemoteCall<T> call, final Trace trace, final String name) {
+        if (nio) {
+            return send(target, call, trace, name);
+        }
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            @Override
+            public T get() {
+                return invoke(target, call, trace, name);
+            }
+        }, pool);
+    }
+
+    // sends the call over nio; the future completes when the reply comes
+    private <T> CompletableFuture<T> send(final NodeInfo target,
+            RemoteCall<T> call, Trace trace, String name) {
+        if (target.equals(self)) {
+            // nothing to send, so it's run here and now
+            try {
+                return CompletableFuture.completedFuture(
+                        invoke(target, call, trace, name));
+            } catch (RuntimeException ex) {
+                return failed(ex);
+            }
+        }
+        final Trace.Hop hop = Trace.enter(trace, target, name);
+        CompletableFuture<T> reply;
+        try {
+            INode node = stubCache.getNode(target);
+            Trace.stubFound(hop);
+            reply = NioTransport.send(node, call);
+        } catch (NotBoundException ex) {
+            Trace.exit(hop, false);
+            return failed(ex);
+        } catch (RemoteException ex) {
+            stubCache.invalidate(target);
+            Trace.exit(hop, false);
+            return failed(ex);
+        }
+        return reply.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable t) {
+                if (t != null && t.getCause() instanceof RemoteException) {
+                    stubCache.invalidate(target);
+                }
+                if (hop != null && result instanceof RouteStep) {
+                    hop.remoteMicros = ((RouteStep) result).micros;
+                }
+                Trace.exit(hop, t == null);
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<T>();
+        f.completeExceptionally(t instanceof CompletionException
+                ? t : new CompletionException(t));
+        return f;
+    }
+
+    // runs the call on this thread; fails the same way as a future would
+    private <T> T invoke(NodeInfo target, RemoteCall<T> call, Trace trace,
+            String name) {
+        Trace.Hop hop = Trace.enter(trace, target, name);
+        boolean ok = false;
+        try {
+            INode node = target.equals(self)
+                    ? selfNode : stubCache.getNode(target);
+            Trace.stubFound(hop);
+            T result = call.call(node);
+            if (hop != null && result instanceof RouteStep) {
+                hop.remoteMicros = ((RouteStep) result).micros;
+            }
+            ok = true;
+            return result;
+        } catch (NotBoundException ex) {
+            throw new CompletionException(ex);
+        } catch (RemoteException ex) {
+            stubCache.invalidate(target);
+            throw new CompletionException(ex);
+        } finally {
+            Trace.exit(hop, ok);
+        }
+    }
+
+    public CompletableFuture<NodeInfo> getNodeInfo(NodeInfo target) {
+        return call(target, new RemoteCall<NodeInfo>() {
+            @Override
+            public NodeInfo call(INode node) throws RemoteException {
+                return node.getNodeInfo();
+            }
+        });
+    }
+
+    /**
+     * Find the owner of a key, starting at the given node.
+     * The result is in the same form as <code>INode.resolveKey</code>:
+     * the owner first and the start node last
+     */
+    public CompletableFuture<ArrayList<NodeInfo>> resolveKey(NodeInfo start,
+            long key) {
+        return resolveKey(start, key, null);
+    }
+
+    /**
+     * Find the owner of a key, noting each hop in the given trace (if any)
+     */
+    public CompletableFuture<ArrayList<NodeInfo>> resolveKey(NodeInfo start,
+            long key, Trace trace) {
+        ArrayList<NodeInfo> path = new ArrayList<NodeInfo>();
+        path.add(start);
+        return step(path, key, trace);
+    }
+
+    /**
+     * Find the owner of a key the same way, but on the calling thread.
+     * For a node answering a lookup itself: its thread has to wait for
+     * the answer anyway, so waiting on the pool for it would just tie up
+     * a second thread per lookup (and a busy node could use the pool up).
+     * Fails with a <code>CompletionException</code>, like a future
+     */
+    public ArrayList<NodeInfo> resolveKeyHere(NodeInfo start, long key,
+            Trace trace) {
+        ArrayList<NodeInfo> path = new ArrayList<NodeInfo>();
+        path.add(start);
+        while (true) {
+            NodeInfo at = path.get(path.size() - 1);
+            if (advance(path, at, invoke(at, routeStep(key), trace,
+                    "routeStep"), key)) {
+                return path;
+            }
+        }
+    }
+
+    private CompletableFuture<ArrayList<NodeInfo>> step(
+            final ArrayList<NodeInfo> path, final long key,
+            final Trace trace) {
+        final NodeInfo at = path.get(path.size() - 1);
+        return call(at, routeStep(key), trace, "routeStep").thenCompose(
+                new Function<RouteStep, CompletableFuture<ArrayList<NodeInfo>>>() {
+            @Override
+            public CompletableFuture<ArrayList<NodeInfo>> apply(RouteStep s) {
+                if (advance(path, at, s, key)) {
+                    return CompletableFuture.completedFuture(path);
+                }
+                return step(path, key, trace);
+            }
+        });
+    }
+
+    private static RemoteCall<RouteStep> routeStep(final long key) {
+        return new RemoteCall<RouteStep>() {
+            @Override
+            public RouteStep call(INode node) throws RemoteException {
+                return node.routeStep(key);
+            }
+        };
+    }
+
+    /**
+     * Add the hop the node at the end of the path told us about. True
+     * once it's the owner, when the path is turned round to put the owner
+     * first
+     */
+    private static boolean advance(ArrayList<NodeInfo> path, NodeInfo at,
+            RouteStep s, long key) {
+        if (!s.node.equals(at)) {
+            path.add(s.node);
+        }
+        if (s.owner) {
+            Collections.reverse(path);
+            return true;
+        }
+        if (s.node.equals(at) || path.size() > MAX_HOPS) {
+            log.error("Lookup of key " + Ring.toString(key)
+                    + " got stuck at node " + at.id);
+            throw new CompletionException(new RemoteException(
+                    "lookup of key " + Ring.toString(key)
+                    + " got stuck at node " + at.id));
+        }
+        return false;
+    }
+
+    /**
+     * Look a word up, starting the search at the given node
+     */
+    public CompletableFuture<DictionaryEntry> getWord(NodeInfo start,
+            final String word) {
+        return resolveKey(start, Util.getHash(word)).thenCompose(
+                new Function<ArrayList<NodeInfo>,
+                CompletableFuture<DictionaryEntry>>() {
+            @Override
+            public CompletableFuture<DictionaryEntry> apply(
+                    ArrayList<NodeInfo> path) {
+                return call(path.get(0), new RemoteCall<DictionaryEntry>() {
+                    @Override
+                    public DictionaryEntry call(INode node)
+                            throws RemoteException {
+                        return node.getStoredWord(word);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Add a word, starting the search for its owner at the given node.
+     * @return whether the owner took the word
+     */
+    public CompletableFuture<Boolean> addWordDefinition(NodeInfo start,
+            final DictionaryEntry entry) {
+        return resolveKey(start, entry.getKey()).thenCompose(
+                new Function<ArrayList<NodeInfo>,
+                CompletableFuture<RoutedReply>>() {
+            @Override
+            public CompletableFuture<RoutedReply> apply(
+                    ArrayList<NodeInfo> path) {
+                return call(path.get(0), new RemoteCall<RoutedReply>() {
+                    @Override
+                    public RoutedReply call(INode node)
+                            throws RemoteException {
+                        // the ring may have changed since the lookup
+                        return node.addWordIfOwner(entry);
+                    }
+                });
+            }
+        }).thenApply(new Function<RoutedReply, Boolean>() {
+            @Override
+            public Boolean apply(RoutedReply reply) {
+                return reply.owner;
+            }
+        });
+    }
+
+    /**
+     * Stop the pool, if we have one. Calls already running still finish
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
@@ -8,12 +8,161 @@ public class Consts {
     public static final String SUPERNODE_RMI_DESC = "ISuperNode";
     public static final String NODE_RMI_DESC      = "INode";
     
-    // TODO: change this back to M = 32
-    public static final int M = 5; 
+    // how processes talk to each other ("rmi" or "nio"), set with
+    // -Dchord.transport=<name>. Every process must use the same one
+    public static final String TRANSPORT = 
+            System.getProperty("chord.transport", "rmi");
     
-    public static final int MAX_NODE_KEY = (int) Math.pow((double)2, (double)M);
+    // port the SuperNode listens on with the nio transport (nodes listen
+    // on the port the SuperNode gives them)
+    public static final int SUPERNODE_PORT = 
+            Integer.getInteger("chord.supernode.port", 49999);
+    
+    // nio transport: time (ms) allowed to connect to a peer and to get a
+    // reply to a call, and the biggest frame we'll read
+    public static final int NIO_CONNECT_TIMEOUT_MS = 5000;
+    public static final int NIO_CALL_TIMEOUT_MS = 30000;
+    public static final int NIO_MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    // incoming nio requests carried out at once (not counting those
+    // waiting on calls of their own), and how many requests may wait to
+    // start before we stop reading from the connections
+    public static final int NIO_WORKERS = 64;
+    public static final int NIO_WORKER_QUEUE = 1024;
+    // most threads carrying out nio requests, counting those waiting on
+    // calls of their own (-Dchord.nio.threads). With that many, requests
+    // queue even if fewer than NIO_WORKERS are running
+    public static final int NIO_MAX_THREADS = Math.max(NIO_WORKERS,
+            Integer.getInteger("chord.nio.threads", 4 * NIO_WORKERS));
+    
+    // number of bits in a ring id (1 to 64), set with -Dchord.m=<bits>
+    public static final int M = Integer.getInteger("chord.m", 32);
+    
+    // hash used to place words and nodes on the ring ("murmur" or "sha1"),
+    // set with -Dchord.hash=<name>. Every process must use the same one
+    public static final String RING_HASH = 
+            System.getProperty("chord.hash", "murmur");
     
     // size of the finger table
-    public static final int FINGERTABLE_SIZE = 5;
+    public static final int FINGERTABLE_SIZE = M;
+    
+    // whether the SuperNode pushes new finger tables to the nodes a join
+    // affects (-Dchord.push=true). Nodes repair their own fingers through
+    // stabilization either way, so by default the SuperNode only bootstraps
+    public static final boolean SUPERNODE_PUSH_UPDATES = 
+            Boolean.getBoolean("chord.push");
+    
+    // time (ms) between a node's stabilization rounds, and how many of
+    // its fingers it refreshes in each round
+    public static final int STABILIZE_INTERVAL_MS = 1000;
+    public static final int FIX_FINGERS_PER_ROUND = 4;
+    
+    // number of successors that keep a copy of each of a node's words
+    // (-Dchord.replicas=<r>, at least 1 since the successor list is also
+    // how we get past a failed successor), and how long (ms) a node
+    // remembers where another node's copies are
+    public static final int REPLICATION_FACTOR = 
+            Math.max(1, Integer.getInteger("chord.replicas", 2));
+    public static final int REPLICA_SET_TTL_MS = 5000;
+    
+    // how many bytes of words (before compression) go in each chunk when
+    // a node hands a range of keys to another, and how long (ms) the
+    // receiver waits for the next chunk before giving up on the transfer
+    public static final int TRANSFER_CHUNK_BYTES = 1024 * 1024;
+    public static final int TRANSFER_SESSION_TIMEOUT_MS = 60000;
+    
+    // words per page when a client lists a node's words, and the most a
+    // node will put in one page whatever it's asked for
+    public static final int SCAN_PAGE_SIZE = 20;
+    public static final int SCAN_MAX_PAGE_SIZE = 10000;
+    
+    // words a node keeps from lookups it routed to other nodes, how long
+    // (ms) it keeps each, how often (ms) a node tells the others that
+    // read from it which of its words have changed, and how many changed
+    // words it lists before just telling them to drop everything
+    public static final int WORD_CACHE_SIZE = 
+            Integer.getInteger("chord.wordcache.size", 10000);
+    public static final long WORD_CACHE_TTL_MS = 30000;
+    public static final long WORD_CACHE_INVALIDATE_INTERVAL_MS = 100;
+    public static final int WORD_CACHE_MAX_INVALIDATIONS = 10000;
+    
+    // most nodes reading from us that we keep telling about changed words
+    // (the ones that read longest ago are told to drop everything instead),
+    // and how stale (ms) we let our note of when one last read get
+    public static final int WORD_CACHE_MAX_READERS = 1024;
+    public static final long WORD_CACHE_READER_REFRESH_MS = 1000;
+    
+    // share of missing words a node's key filter lets through, the fewest
+    // words a filter is sized for, and how often (ms) a node checks the
+    // other nodes' filters it has for newer versions
+    public static final double KEY_FILTER_FALSE_POSITIVES = 0.01;
+    public static final int KEY_FILTER_MIN_WORDS = 1024;
+    public static final long KEY_FILTER_REFRESH_MS = 1000;
+    // whether a node answers "not found" from its copies of the other
+    // nodes' filters (-Dchord.keyfilter.negatives). Those copies lag
+    // behind words written through other nodes by up to
+    // WORD_CACHE_INVALIDATE_INTERVAL_MS, or if the owner can't get the
+    // new words to us, by however long that call takes to fail plus
+    // KEY_FILTER_REFRESH_MS. Turn this off where a lookup must see every
+    // insert that has returned
+    public static final boolean KEY_FILTER_NEGATIVES = Boolean.parseBoolean(
+            System.getProperty("chord.keyfilter.negatives", "true"));
+    
+    // threads each AsyncNode waits on its calls with over rmi (over nio
+    // they're the threads that hand replies to whoever is waiting for
+    // them, one set per process), and how many batches of words a client
+    // has out at once
+    public static final int ASYNC_THREADS = 16;
+    public static final int CLIENT_BATCHES_IN_FLIGHT = 4;
+    
+    // where a node keeps its words: "heap" (as objects) or "offheap" (as
+    // bytes in direct buffers, out of the garbage collector's way; the
+    // JVM caps those at -XX:MaxDirectMemorySize), and the size of each of
+    // those buffers
+    public static final String STORE = System.getProperty("chord.store", "heap");
+    public static final int OFFHEAP_BUFFER_BYTES = 64 * 1024 * 1024;
+    
+    // directory a node keeps its words and node info in so that it gets
+    // them and its place on the ring back when it restarts
+    // (-Dchord.data.dir; none means words are only kept in memory), how
+    // big its log gets before a snapshot is taken, and the largest
+    // snapshot file (each one is memory mapped whole)
+    public static final String DATA_DIR = System.getProperty("chord.data.dir");
+    public static final long JOURNAL_ROTATE_BYTES = 64L * 1024 * 1024;
+    public static final long SNAPSHOT_SEGMENT_BYTES = 256L * 1024 * 1024;
+    
+    // threads the SuperNode uses to push updates to nodes after a join,
+    // and how long (ms) each node gets to answer
+    public static final int UPDATE_THREADS = 16;
+    public static final int UPDATE_TIMEOUT_MS = 5000;
+    
+    // max number of remote node stubs each process keeps around
+    public static final int STUB_CACHE_SIZE = 256;
+    
+    // number of entries the client sends to a node in one batched insert
+    public static final int INSERT_BATCH_SIZE = 1000;
+    
+    // times the client tries to reach a key's owner before giving up
+    public static final int CLIENT_MAX_ATTEMPTS = 5;
+    
+    // size of the pieces a word file is split into to be parsed in parallel
+    public static final int INGEST_CHUNK_SIZE = 8 * 1024 * 1024;
+    
+    // how often (ms) nodes and the SuperNode log all their metrics
+    // (-Dchord.metrics.dump.ms; 0 means never, they're still on JMX)
+    public static final long METRICS_DUMP_MS = 
+            Long.getLong("chord.metrics.dump.ms", 0);
+    
+    // most keys a counter map (e.g. calls by target node) counts one by
+    // one, so that node churn can't grow it without bound
+    public static final int METRICS_MAX_KEYS = 1024;
+    
+    // share of lookups, reads and inserts a node traces hop by hop
+    // (-Dchord.trace.sample; 0 means none), and how many finished traces
+    // it keeps for clients to look at, and how many of those the client
+    // shows
+    public static final double TRACE_SAMPLE_RATE = 
+            Double.parseDouble(System.getProperty("chord.trace.sample", "0.01"));
+    public static final int TRACE_BUFFER_SIZE = 1000;
+    public static final int TRACES_SHOWN = 10;
 
 }
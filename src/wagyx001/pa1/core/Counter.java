@@ -0,0 +1,24 @@
+package wagyx001.pa1.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up (see <code>Metrics</code>)
+ */
+public class Counter implements CounterMBean {
+
+    private final AtomicLong count = new AtomicLong();
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(long n) {
+        count.addAndGet(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+}
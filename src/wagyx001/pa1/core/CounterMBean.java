@@ -0,0 +1,9 @@
+package wagyx001.pa1.core;
+
+/**
+ * What JMX shows of a <code>Counter</code>
+ */
+public interface CounterMBean {
+
+    public long getCount();
+}
@@ -0,0 +1,51 @@
+package wagyx001.pa1.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the same thing split by some key, e.g. calls by the node
+ * they went to (see <code>Metrics</code>). The whole map is one MBean,
+ * so keys coming and going (nodes joining and leaving) don't leave
+ * MBeans behind. Only the first <code>Consts.METRICS_MAX_KEYS</code>
+ * keys get a count of their own; the rest are counted under "other".
+ */
+public class CounterMap implements CounterMapMXBean {
+
+    static final String OTHER = "other";
+
+    private final ConcurrentHashMap<String, AtomicLong> counts =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    public void increment(String key) {
+        AtomicLong n = counts.get(key);
+        if (n == null) {
+            if (counts.size() >= Consts.METRICS_MAX_KEYS) {
+                key = OTHER;
+            }
+            counts.putIfAbsent(key, new AtomicLong());
+            n = counts.get(key);
+        }
+        n.incrementAndGet();
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        TreeMap<String, Long> copy = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : counts.entrySet()) {
+            copy.put(e.getKey(), e.getValue().get());
+        }
+        return copy;
+    }
+
+    @Override
+    public long getTotal() {
+        long total = 0;
+        for (AtomicLong n : counts.values()) {
+            total += n.get();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,13 @@
+package wagyx001.pa1.core;
+
+import java.util.Map;
+
+/**
+ * What JMX shows of a <code>CounterMap</code>
+ */
+public interface CounterMapMXBean {
+
+    public Map<String, Long> getCounts();
+
+    public long getTotal();
+}
@@ -1,17 +1,55 @@
 package wagyx001.pa1.core;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
-public class DictionaryEntry implements Serializable {
+/**
+ * A word and its definition.
+ * 
+ * Sent on the wire as just the UTF-8 word and definition; the key is
+ * worked out again when it's read
+ */
+public class DictionaryEntry implements Externalizable {
 
     public static long serialVersionUID = 28934L;
     
     private String word;
     private String definition;
+    // ring key of the word, worked out once here rather than on every move
+    private long key;
 
     public DictionaryEntry(String word, String definition) {
 	this.word = word.trim();
 	this.definition = definition.trim();
+        this.key = Util.getHash(this.word);
+    }
+    
+    /**
+     * Only for deserialization
+     */
+    public DictionaryEntry() {
+    }
+    
+    /**
+     * An entry whose word and definition are already trimmed and whose
+     * key is already known, as read back from an <code>EntryStore</code>
+     */
+    DictionaryEntry(String word, String definition, long key) {
+        this.word = word;
+        this.definition = definition;
+        this.key = key;
+    }
+    
+    /**
+     * Placeholder entry that sorts before every real entry with the same
+     * key, used to look up ranges of keys in a WordDictionary
+     */
+    DictionaryEntry(long key) {
+        this.key = key;
     }
 
     public String getWord() {
@@ -22,6 +60,40 @@ public class DictionaryEntry implements Serializable {
 	return definition;
     }
     
+    /**
+     * Get the ring key of this entry's word
+     */
+    public long getKey() {
+        return key;
+    }
+    
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readFields(in);
+    }
+    
+    void write(DataOutput out) throws IOException {
+        Varint.writeString(out, word);
+        Varint.writeString(out, definition);
+    }
+    
+    static DictionaryEntry read(DataInput in) throws IOException {
+        DictionaryEntry e = new DictionaryEntry();
+        e.readFields(in);
+        return e;
+    }
+    
+    private void readFields(DataInput in) throws IOException {
+        word = Varint.readString(in);
+        definition = Varint.readString(in);
+        key = Util.getHash(word);
+    }
+    
     public String toString() {
         return "[" + word + "] : [" + definition + "]\n";
     }
@@ -0,0 +1,478 @@
+package wagyx001.pa1.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps a dictionary on disk so that a node gets its words back when it
+ * restarts.
+ *
+ * Every add and remove is appended to a log file (<code>log-n.wal</code>)
+ * as a record of length, CRC32, op and entry. Appends only queue the
+ * record; a writer thread writes whatever has queued up in one go and
+ * fsyncs it once, so many callers share each fsync (group commit), and
+ * <code>sync()</code> waits until everything appended so far is on disk.
+ *
+ * When the log gets past <code>Consts.JOURNAL_ROTATE_BYTES</code> a new
+ * log n+1 is started and the dictionary as it stood at that point is
+ * written out as snapshot n+1 (see <code>DictionarySnapshot</code>) in
+ * the background; once that's done the older logs and snapshots are
+ * deleted. Recovery maps the latest complete snapshot and replays the
+ * logs from its number on, cutting off a torn record at the end of the
+ * last one.
+ *
+ * The node's id, address and port go in <code>node.id</code> next to the
+ * logs, so that it can take its old place on the ring back when it
+ * restarts; otherwise most of the words it recovers would belong to
+ * other nodes.
+ */
+public class DictionaryJournal {
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+
+    // length and CRC in front of every record
+    private static final int HEADER_BYTES = 8;
+
+    private static Logger log = Logger.getLogger(DictionaryJournal.class);
+
+    private final File dir;
+    private final Object lock = new Object();
+
+    // all guarded by lock
+    private long logNumber;
+    private FileChannel channel;
+    private long logBytes;
+    private ArrayList<ByteBuffer> queued = new ArrayList<ByteBuffer>();
+    private long appended;
+    private long durable;
+    private IOException failure;
+    private boolean snapshotting;
+    private boolean closed;
+
+    private final Thread writer;
+
+    private DictionaryJournal(File dir, long logNumber) throws IOException {
+        this.dir = dir;
+        openLog(logNumber);
+        logBytes = channel.size();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Recover the dictionary kept in the given directory (creating the
+     * directory if it isn't there yet) and keep logging changes to it there
+     */
+    public static WordDictionary open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create data directory " + dir);
+        }
+        long start = System.currentTimeMillis();
+        WordDictionary dictionary = new WordDictionary();
+
+        long snapshot = latestSnapshot(dir);
+        if (snapshot >= 0) {
+            dictionary.load(DictionarySnapshot.read(dir, snapshot));
+        }
+        List<Long> logs = numbers(dir, "log-", ".wal");
+        long replayed = 0;
+        long last = Math.max(snapshot, 0);
+        for (int i = 0; i < logs.size(); i++) {
+            long n = logs.get(i);
+            if (n < snapshot) {
+                continue;
+            }
+            replayed += replay(logFile(dir, n), dictionary,
+                    i == logs.size() - 1);
+            last = n;
+        }
+        log.info("Recovered " + dictionary.size() + " entries from " + dir
+                + " (snapshot " + snapshot + ", " + replayed
+                + " log records) in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        DictionaryJournal journal = new DictionaryJournal(dir, last);
+        journal.deleteBefore(Math.max(snapshot, 0));
+        dictionary.setJournal(journal);
+        return dictionary;
+    }
+
+    /**
+     * The node info of the node that kept its words in dir when it last
+     * ran, or null if none has joined a ring from there yet
+     */
+    public static NodeInfo readIdentity(File dir) throws IOException {
+        File file = new File(dir, "node.id");
+        if (!file.isFile()) {
+            return null;
+        }
+        String[] fields = new String(Files.readAllBytes(file.toPath()),
+                StandardCharsets.UTF_8).trim().split(" ");
+        if (fields.length != 3) {
+            throw new IOException("Can't read node info from " + file);
+        }
+        try {
+            return new NodeInfo(Long.parseLong(fields[0]), fields[1],
+                    Integer.parseInt(fields[2]));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Can't read node info from " + file, ex);
+        }
+    }
+
+    /**
+     * Remember the node info the node keeping its words in dir has been
+     * given, replacing what was there in one go
+     */
+    public static void writeIdentity(File dir, NodeInfo ni) throws IOException {
+        File tmp = new File(dir, "node.id.tmp");
+        Files.write(tmp.toPath(), (ni.id + " " + ni.ipAddress + " "
+                + ni.portNumber + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), new File(dir, "node.id").toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Queue a record of a change to the dictionary. Returns true when the
+     * log has grown enough that the caller should start a snapshot
+     * with <code>rotate</code> and <code>snapshot</code>
+     */
+    boolean append(byte op, DictionaryEntry entry) {
+        ByteBuffer record = encode(op, entry);
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            queued.add(record);
+            appended++;
+            logBytes += record.remaining();
+            lock.notifyAll();
+            return !snapshotting && logBytes >= Consts.JOURNAL_ROTATE_BYTES;
+        }
+    }
+
+    /**
+     * Start a new log for a snapshot, returning the snapshot's number, or
+     * -1 if a snapshot is already under way. The caller then hands the
+     * entries to <code>snapshot</code>
+     */
+    long rotate() {
+        synchronized (lock) {
+            if (snapshotting || closed) {
+                return -1;
+            }
+            snapshotting = true;
+            // anything appended from here on goes in the next log
+            queued.add(null);
+            logBytes = 0;
+            lock.notifyAll();
+            return logNumber + 1;
+        }
+    }
+
+    /**
+     * Write the given entries (in key order) as snapshot n in the
+     * background. They have to have every change logged before log n was
+     * started; they may have some of the changes logged after, since
+     * replaying log n over them gets to the same place either way
+     */
+    void snapshot(final long n, final ArrayList<DictionaryEntry> entries) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    DictionarySnapshot.write(dir, n, entries);
+                    deleteBefore(n);
+                    log.info("Wrote snapshot " + n + " of " + entries.size()
+                            + " entries in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                } catch (IOException e) {
+                    log.error("Couldn't write snapshot " + n
+                            + ", keeping the logs: " + e);
+                } finally {
+                    synchronized (lock) {
+                        snapshotting = false;
+                    }
+                }
+            }
+        }, "journal-snapshot");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Wait until everything appended so far is on disk
+     */
+    public void sync() throws IOException {
+        synchronized (lock) {
+            long target = appended;
+            while (durable < target && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the log");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Sync and stop logging
+     */
+    public void close() throws IOException {
+        sync();
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ArrayList<ByteBuffer> batch;
+            synchronized (lock) {
+                while (queued.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queued.isEmpty()) {
+                    return;
+                }
+                batch = queued;
+                queued = new ArrayList<ByteBuffer>();
+            }
+            long written = 0;
+            try {
+                int from = 0;
+                for (int i = 0; i <= batch.size(); i++) {
+                    if (i < batch.size() && batch.get(i) != null) {
+                        continue;
+                    }
+                    written += write(batch.subList(from, i));
+                    if (i < batch.size()) {
+                        // a rotation marker
+                        channel.force(false);
+                        channel.close();
+                        synchronized (lock) {
+                            openLog(logNumber + 1);
+                        }
+                    }
+                    from = i + 1;
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                log.error("Couldn't write the log: " + e);
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            synchronized (lock) {
+                durable += written;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write records to the current log, returning how many there were
+     */
+    private long write(List<ByteBuffer> records) throws IOException {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[records.size()]);
+        long remaining = 0;
+        for (ByteBuffer b : buffers) {
+            remaining += b.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        return buffers.length;
+    }
+
+    private void openLog(long n) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(logFile(dir, n), "rw");
+        channel = raf.getChannel();
+        channel.position(channel.size());
+        logNumber = n;
+    }
+
+    private static ByteBuffer encode(byte op, DictionaryEntry entry) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(op);
+            entry.write(out);
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), HEADER_BYTES,
+                    record.limit() - HEADER_BYTES);
+            record.putInt(0, record.limit() - HEADER_BYTES);
+            record.putInt(4, (int) crc.getValue());
+            return record;
+        } catch (IOException e) {
+            // can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Apply the records in a log to a dictionary, returning how many there
+     * were. A bad record ends the replay; at the end of the last log it's
+     * a write that was cut short, so it's cut off the file
+     */
+    private static long replay(File file, WordDictionary dictionary,
+            boolean last) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY,
+                    0, ch.size());
+            long count = 0;
+            byte[] scratch = new byte[256];
+            CRC32 crc = new CRC32();
+            while (buf.remaining() >= HEADER_BYTES) {
+                int start = buf.position();
+                int length = buf.getInt();
+                int expected = buf.getInt();
+                if (length <= 0 || length > buf.remaining()) {
+                    buf.position(start);
+                    break;
+                }
+                ByteBuffer body = buf.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != expected) {
+                    buf.position(start);
+                    break;
+                }
+                byte op = body.get();
+                String word = DictionarySnapshot.readString(body, scratch);
+                String definition = 
+                        DictionarySnapshot.readString(body, scratch);
+                DictionaryEntry entry = new DictionaryEntry(word,
+                        definition == null ? "" : definition);
+                if (op == ADD) {
+                    dictionary.addEntry(entry);
+                } else if (op == REMOVE) {
+                    dictionary.removeEntry(entry);
+                }
+                buf.position(start + HEADER_BYTES + length);
+                count++;
+            }
+            if (buf.hasRemaining()) {
+                if (last) {
+                    log.warn("Cutting " + buf.remaining()
+                            + " bytes of torn records off " + file);
+                    ch.truncate(buf.position());
+                } else {
+                    log.error("Bad record in " + file + " at "
+                            + buf.position() + ", skipping the rest of it");
+                }
+            }
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void deleteBefore(long n) {
+        for (long l : numbers(dir, "log-", ".wal")) {
+            if (l < n) {
+                logFile(dir, l).delete();
+            }
+        }
+        for (long s : numbers(dir, "snap-", ".done")) {
+            if (s < n) {
+                DictionarySnapshot.doneFile(dir, s).delete();
+            }
+        }
+        // segments, including any left by a snapshot that never finished
+        File[] segments = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith("snap-") && name.endsWith(".seg");
+            }
+        });
+        for (File f : segments) {
+            long s = Long.parseLong(f.getName().substring(5,
+                    f.getName().indexOf('-', 5)));
+            if (s < n) {
+                f.delete();
+            }
+        }
+    }
+
+    private static long latestSnapshot(File dir) {
+        List<Long> done = numbers(dir, "snap-", ".done");
+        return done.isEmpty() ? -1 : done.get(done.size() - 1);
+    }
+
+    /**
+     * The numbers n of the files called prefix + n + suffix, in order
+     */
+    private static List<Long> numbers(File dir, final String prefix,
+            final String suffix) {
+        String[] names = dir.list();
+        TreeSet<Long> result = new TreeSet<Long>();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    result.add(Long.parseLong(name.substring(prefix.length(),
+                            name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<Long>(result));
+    }
+
+    private static File logFile(File dir, long n) {
+        return new File(dir, "log-" + n + ".wal");
+    }
+}
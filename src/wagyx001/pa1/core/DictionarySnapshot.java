@@ -0,0 +1,191 @@
+package wagyx001.pa1.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A compacted copy of a dictionary on disk, split over segment files of
+ * at most <code>Consts.SNAPSHOT_SEGMENT_BYTES</code> so that each one can
+ * be memory mapped whole when it's read back.
+ *
+ * Snapshot n is the files <code>snap-n-k.seg</code> (k = 0, 1, ...) and
+ * then <code>snap-n.done</code>, which is only written once every segment
+ * is safely on disk, so a snapshot without it is ignored. Each segment is
+ * a magic number and an entry count, the entries in key order (varint
+ * length and UTF-8 bytes for word and definition) and a CRC32 of the
+ * entries.
+ */
+class DictionarySnapshot {
+
+    private static final int MAGIC = 0x57445331; // "WDS1"
+
+    /**
+     * Write the given entries (in key order) as snapshot n
+     */
+    static void write(File dir, long n, List<DictionaryEntry> entries)
+            throws IOException {
+        int segment = 0;
+        int i = 0;
+        do {
+            File file = segmentFile(dir, n, segment++);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(0); // count, filled in below
+                CRC32 crc = new CRC32();
+                CountingOutput counted = new CountingOutput(
+                        new FileOutputStream(raf.getFD()), crc);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(counted, 1 << 16));
+                int count = 0;
+                while (i < entries.size()
+                        && counted.written < Consts.SNAPSHOT_SEGMENT_BYTES) {
+                    entries.get(i++).write(out);
+                    count++;
+                    if ((count & 0xFFF) == 0) {
+                        // keep the count of bytes written reasonably current
+                        out.flush();
+                    }
+                }
+                out.flush();
+                raf.writeLong(crc.getValue());
+                raf.seek(4);
+                raf.writeInt(count);
+                raf.getChannel().force(true);
+            } finally {
+                raf.close();
+            }
+        } while (i < entries.size());
+
+        // only now does the snapshot count
+        RandomAccessFile done = new RandomAccessFile(doneFile(dir, n), "rw");
+        try {
+            done.setLength(0);
+            done.writeInt(segment);
+            done.getChannel().force(true);
+        } finally {
+            done.close();
+        }
+    }
+
+    /**
+     * Read snapshot n back, in key order
+     */
+    static ArrayList<DictionaryEntry> read(File dir, long n) throws IOException {
+        RandomAccessFile done = new RandomAccessFile(doneFile(dir, n), "r");
+        int segments;
+        try {
+            segments = done.readInt();
+        } finally {
+            done.close();
+        }
+        ArrayList<DictionaryEntry> entries = new ArrayList<DictionaryEntry>();
+        for (int s = 0; s < segments; s++) {
+            readSegment(segmentFile(dir, n, s), entries);
+        }
+        return entries;
+    }
+
+    private static void readSegment(File file, ArrayList<DictionaryEntry> entries)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if (buf.remaining() < 16 || buf.getInt() != MAGIC) {
+                throw new IOException(file + " isn't a snapshot segment");
+            }
+            int count = buf.getInt();
+            int start = buf.position();
+            int end = buf.limit() - 8;
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buf.duplicate();
+            body.position(start).limit(end);
+            crc.update(body);
+            if (crc.getValue() != buf.getLong(end)) {
+                throw new IOException(file + " is corrupt (bad checksum)");
+            }
+            entries.ensureCapacity(entries.size() + count);
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < count; i++) {
+                String word = readString(buf, scratch);
+                String definition = readString(buf, scratch);
+                entries.add(new DictionaryEntry(word, definition));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read a string written by <code>Varint.writeString</code>, using
+     * scratch to hold its bytes when it's big enough
+     */
+    static String readString(ByteBuffer buf, byte[] scratch)
+            throws IOException {
+        int n = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            n |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (n == 0) {
+            return null;
+        }
+        n--;
+        byte[] bytes = n <= scratch.length ? scratch : new byte[n];
+        buf.get(bytes, 0, n);
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+
+    static File segmentFile(File dir, long n, int segment) {
+        return new File(dir, "snap-" + n + "-" + segment + ".seg");
+    }
+
+    static File doneFile(File dir, long n) {
+        return new File(dir, "snap-" + n + ".done");
+    }
+
+    /**
+     * Counts and checksums what's written through it
+     */
+    private static class CountingOutput extends java.io.FilterOutputStream {
+
+        long written;
+        private final CRC32 crc;
+
+        CountingOutput(java.io.OutputStream out, CRC32 crc) {
+            super(out);
+            this.crc = crc;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            written += len;
+        }
+    }
+}
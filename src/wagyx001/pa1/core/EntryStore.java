@@ -0,0 +1,61 @@
+package wagyx001.pa1.core;
+
+import java.util.ArrayList;
+
+/**
+ * Where a <code>WordDictionary</code> keeps its entries.
+ *
+ * Words are matched case-insensitively and each word is stored at most
+ * once. Lists of entries come back in ring order: by key going round the
+ * ring from the start of the range asked for, then by word.
+ */
+interface EntryStore {
+
+    /**
+     * Add an entry, replacing any entry that has the same word
+     */
+    void put(DictionaryEntry e);
+
+    /**
+     * Fill an empty store with entries that are already in key order and
+     * have no repeated words
+     */
+    void load(ArrayList<DictionaryEntry> sorted);
+
+    /**
+     * The entry for the given word, or null
+     */
+    DictionaryEntry get(String word);
+
+    /**
+     * Remove the entry for the given word, returning false if there wasn't
+     * one
+     */
+    boolean remove(String word);
+
+    int size();
+
+    /**
+     * Rough number of bytes the words and definitions take up
+     */
+    long dataBytes();
+
+    /**
+     * Every entry, in key order
+     */
+    ArrayList<DictionaryEntry> all();
+
+    /**
+     * The entries whose keys are in the ring interval (from, to], where
+     * from != to
+     */
+    ArrayList<DictionaryEntry> range(long from, long to);
+
+    /**
+     * Up to max entries whose keys are in the ring interval (from, to]
+     * (the whole ring if from == to) that come after the given entry, or
+     * from the start of the interval if it's null
+     */
+    ArrayList<DictionaryEntry> page(long from, long to, DictionaryEntry after,
+            int max);
+}
@@ -0,0 +1,216 @@
+package wagyx001.pa1.core;
+
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The key filters of the nodes we've looked words up at, so that a
+ * lookup for a word that doesn't exist can be answered without routing
+ * it anywhere.
+ *
+ * Owners are noted as lookups find them and their filters are fetched
+ * by <code>refresh</code>, which only gets a filter sent again when its
+ * version has changed. In between, the owners tell us about words they
+ * get (<code>add</code>) along with their cache invalidations, and we
+ * add the words we route to them ourselves. A filter whose node can't
+ * be reached, or that claims a key a lookup found somewhere else, is
+ * dropped, and so is everything when the ring changes shape.
+ *
+ * Lookups don't lock: they go through a copy of the filters we have,
+ * swapped for a new one whenever that changes (which is seldom).
+ *
+ * This makes "not found" eventually consistent. A word written to its
+ * owner by another node only gets into our copy of the owner's filter
+ * when the owner next tells us about its new words (every
+ * <code>Consts.WORD_CACHE_INVALIDATE_INTERVAL_MS</code>) or we next
+ * fetch its filter, so until then a lookup here can say the word isn't
+ * there although the insert has succeeded. If telling us fails, the
+ * owner sends its whole filter the next time we ask for it, even though
+ * the version hasn't changed. Words written through this
+ * node are added straight away. Set -Dchord.keyfilter.negatives=false
+ * to always route lookups instead (see
+ * <code>Consts.KEY_FILTER_NEGATIVES</code>).
+ */
+public class FilterDirectory {
+
+    private static Logger log = Logger.getLogger(FilterDirectory.class);
+
+    private final AsyncNode async;
+    // who we are, so owners know who to tell about new words; null for
+    // a client, which then only gets new words on the next version
+    private final NodeInfo reader;
+
+    // owner -> its filter, null until the first one comes
+    private final LinkedHashMap<NodeInfo, KeyFilter> filters;
+    // what's in filters, for lookups; replaced whenever filters changes
+    private volatile Known known = new Known();
+    private final AtomicLong negatives = new AtomicLong();
+
+    /**
+     * The owners we know of and their filters (null where we haven't got
+     * one yet), as of some point; never changed once it's made
+     */
+    private static class Known {
+        final NodeInfo[] owners;
+        final KeyFilter[] filters;
+
+        Known() {
+            owners = new NodeInfo[0];
+            filters = new KeyFilter[0];
+        }
+
+        Known(Map<NodeInfo, KeyFilter> m) {
+            owners = m.keySet().toArray(new NodeInfo[m.size()]);
+            filters = m.values().toArray(new KeyFilter[m.size()]);
+        }
+    }
+
+    public FilterDirectory(AsyncNode async, NodeInfo reader) {
+        this.async = async;
+        this.reader = reader;
+        filters = new LinkedHashMap<NodeInfo, KeyFilter>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<NodeInfo, KeyFilter> e) {
+                return size() > Consts.STUB_CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * True if the word definitely wasn't anywhere in the DHT, going by
+     * our copy of the filter of the node that owns its key. A word
+     * another node has written there lately may not be in that copy yet
+     * (see above), so this can be out of date by the time between the
+     * owner's updates
+     */
+    public boolean definitelyAbsent(String word, long key) {
+        if (!Consts.KEY_FILTER_NEGATIVES) {
+            return false;
+        }
+        for (KeyFilter f : known.filters) {
+            if (f != null && f.covers(key)) {
+                if (f.mightContain(word)) {
+                    return false;
+                }
+                negatives.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remember that a node owns the given key, so that its filter gets
+     * fetched. Any other node's filter that still claims the key is out
+     * of date (the key has moved since it was built), so it's dropped
+     * before it can rule out a word that was written to the new owner
+     */
+    public void noteOwner(NodeInfo owner, long key) {
+        // usually there's nothing to do, which needs no lock to tell
+        Known k = known;
+        boolean noted = false;
+        boolean outOfDate = false;
+        for (int i = 0; i < k.owners.length; i++) {
+            if (k.owners[i].equals(owner)) {
+                noted = true;
+            } else if (k.filters[i] != null && k.filters[i].covers(key)) {
+                outOfDate = true;
+            }
+        }
+        if (noted && !outOfDate) {
+            return;
+        }
+        synchronized (filters) {
+            Iterator<Map.Entry<NodeInfo, KeyFilter>> it = 
+                    filters.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<NodeInfo, KeyFilter> e = it.next();
+                if (e.getValue() != null && e.getValue().covers(key) 
+                        && !e.getKey().equals(owner)) {
+                    log.debug("Dropping the filter of node " + e.getKey().id 
+                            + ", key " + Ring.toString(key) + " is now at node " 
+                            + owner.id);
+                    it.remove();
+                }
+            }
+            if (!filters.containsKey(owner)) {
+                filters.put(owner, null);
+            }
+            known = new Known(filters);
+        }
+    }
+
+    /**
+     * Put a word a node has just got into whichever filter covers it
+     */
+    public void add(String word) {
+        long key = Util.getHash(word);
+        for (KeyFilter f : known.filters) {
+            if (f != null && f.covers(key)) {
+                f.add(word);
+            }
+        }
+    }
+
+    /**
+     * Forget every filter, e.g. because keys have moved between nodes
+     */
+    public void clear() {
+        synchronized (filters) {
+            filters.clear();
+            known = new Known();
+        }
+    }
+
+    /**
+     * Lookups answered here because a filter ruled the word out
+     */
+    public long getNegatives() {
+        return negatives.get();
+    }
+
+    public int size() {
+        return known.owners.length;
+    }
+
+    /**
+     * Ask each owner for its filter if it has a newer one than ours
+     */
+    public void refresh() {
+        Known k = known;
+        for (int i = 0; i < k.owners.length; i++) {
+            final NodeInfo owner = k.owners[i];
+            final long version = k.filters[i] == null
+                    ? -1 : k.filters[i].getVersion();
+            async.call(owner, new AsyncNode.RemoteCall<KeyFilter>() {
+                @Override
+                public KeyFilter call(INode node) throws RemoteException {
+                    return node.getKeyFilter(version, reader);
+                }
+            }).handle(new BiFunction<KeyFilter, Throwable, Void>() {
+                @Override
+                public Void apply(KeyFilter filter, Throwable t) {
+                    synchronized (filters) {
+                        if (t != null) {
+                            log.debug("Dropping the filter of node "
+                                    + owner.id + ": " + t);
+                            filters.remove(owner);
+                        } else if (filter != null
+                                && filters.containsKey(owner)) {
+                            filters.put(owner, filter);
+                        }
+                        known = new Known(filters);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+}
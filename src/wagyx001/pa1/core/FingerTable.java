@@ -1,37 +1,157 @@
 package wagyx001.pa1.core;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.HashMap;
 
-public class FingerTable implements Serializable {
+/**
+ * A node's fingers. Each finger carries the whole NodeInfo of the node it
+ * points at, so a node can route to it without asking the SuperNode
+ * where it lives.
+ * 
+ * Most fingers point at the same few nodes, so on the wire each distinct
+ * node is written once and the fingers are varint indexes into that list.
+ */
+public class FingerTable implements Externalizable {
     
-    static final long serialVersionUID = 1392184724L;
+    static final long serialVersionUID = 1392184726L;
 
-    ArrayList<Integer> vals;
+    // finger i (1 based) is at nodes[i-1]
+    NodeInfo[] nodes;
+    int size;
     
     public FingerTable() {
-        vals = new ArrayList<Integer>();
+        nodes = new NodeInfo[Consts.FINGERTABLE_SIZE];
+        size = 0;
     }
     
-    public ArrayList<Integer> getVals() {
-        return vals;
+    /**
+     * Copy of another finger table, so a node can change a finger without
+     * touching the table that other threads may be routing with
+     */
+    public FingerTable(FingerTable other) {
+        nodes = other.nodes.clone();
+        size = other.size;
     }
     
-    public void add(Integer v) {
-        vals.add(v);
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readFields(in);
+    }
+    
+    void write(DataOutput out) throws IOException {
+        ArrayList<NodeInfo> distinct = new ArrayList<NodeInfo>();
+        HashMap<NodeInfo, Integer> index = new HashMap<NodeInfo, Integer>();
+        int[] fingers = new int[size];
+        for (int i=0; i<size; i++) {
+            Integer at = index.get(nodes[i]);
+            if (at == null) {
+                at = distinct.size();
+                distinct.add(nodes[i]);
+                index.put(nodes[i], at);
+            }
+            fingers[i] = at;
+        }
+        Varint.writeInt(out, distinct.size());
+        for (NodeInfo ni : distinct) {
+            ni.write(out);
+        }
+        Varint.writeInt(out, size);
+        for (int i=0; i<size; i++) {
+            Varint.writeInt(out, fingers[i]);
+        }
+    }
+    
+    static FingerTable read(DataInput in) throws IOException {
+        FingerTable ft = new FingerTable();
+        ft.readFields(in);
+        return ft;
+    }
+    
+    private void readFields(DataInput in) throws IOException {
+        NodeInfo[] distinct = new NodeInfo[count(in)];
+        for (int i=0; i<distinct.length; i++) {
+            distinct[i] = NodeInfo.read(in);
+        }
+        size = count(in);
+        nodes = new NodeInfo[Math.max(size, Consts.FINGERTABLE_SIZE)];
+        for (int i=0; i<size; i++) {
+            int at = Varint.readInt(in);
+            if (at < 0 || at >= distinct.length) {
+                throw new IOException("bad finger index " + at);
+            }
+            nodes[i] = distinct[at];
+        }
     }
     
-    public void add(int v) {
-        vals.add(new Integer(v));
+    // a table has at most one finger per bit of the ring
+    private static int count(DataInput in) throws IOException {
+        int n = Varint.readInt(in);
+        if (n < 0 || n > 64) {
+            throw new IOException("bad finger count " + n);
+        }
+        return n;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Get the node at the given (0 based) position
+     */
+    public NodeInfo get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        return nodes[i];
+    }
+    
+    /**
+     * Get the id of the node at the given (0 based) position
+     */
+    public long getId(int i) {
+        return get(i).id;
+    }
+    
+    /**
+     * Point the finger at the given (0 based) position at another node
+     */
+    public void set(int i, NodeInfo ni) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        nodes[i] = ni;
+    }
+    
+    public void add(NodeInfo ni) {
+        if (size == nodes.length) {
+            NodeInfo[] grown = new NodeInfo[nodes.length * 2];
+            System.arraycopy(nodes, 0, grown, 0, size);
+            nodes = grown;
+        }
+        nodes[size++] = ni;
     }
     
     @Override
     public String toString() {
-        String s = "Finger Table:\n";
-        for (int i=0; i<vals.size(); i++) {
-            s += "[" + (i+1) + " | " + vals.get(i) + "]\n";
+        StringBuilder s = new StringBuilder("Finger Table:\n");
+        for (int i=0; i<size; i++) {
+            s.append("[").append(i+1).append(" | ")
+                    .append(Ring.toString(nodes[i].id)).append(" @ ")
+                    .append(nodes[i].ipAddress).append("]\n");
         }
-        return s;
+        return s.toString();
     }
     
-}
\ No newline at end of file
+}
@@ -0,0 +1,25 @@
+package wagyx001.pa1.core;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value read off something else whenever it's asked for, e.g. how many
+ * entries a dictionary holds (see <code>Metrics</code>)
+ */
+public class Gauge implements GaugeMBean {
+
+    private volatile LongSupplier source;
+
+    Gauge(LongSupplier source) {
+        this.source = source;
+    }
+
+    void setSource(LongSupplier source) {
+        this.source = source;
+    }
+
+    @Override
+    public long getValue() {
+        return source.getAsLong();
+    }
+}
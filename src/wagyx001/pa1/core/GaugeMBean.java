@@ -0,0 +1,9 @@
+package wagyx001.pa1.core;
+
+/**
+ * What JMX shows of a <code>Gauge</code>
+ */
+public interface GaugeMBean {
+
+    public long getValue();
+}
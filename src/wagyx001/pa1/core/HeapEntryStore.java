@@ -0,0 +1,274 @@
+package wagyx001.pa1.core;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Keeps entries as objects on the heap.
+ *
+ * Entries are indexed two ways: a concurrent hash map on the word
+ * (matched case-insensitively) for O(1) lookup, insert and remove, and a
+ * concurrent skip list ordered by ring key so that the entries in a key
+ * range can be pulled out in O(log n + k) when a node hands keys over to
+ * another node. Neither takes a lock to read, so reads never wait for
+ * writers. Changes to a word are made inside the hash map's update of
+ * that word, which keeps the two indexes in step word by word while
+ * writers of different words go ahead side by side.
+ */
+class HeapEntryStore implements EntryStore, Serializable {
+
+    static final long serialVersionUID = 61523908L;
+
+    private volatile ConcurrentHashMap<Word, DictionaryEntry> byWord =
+            new ConcurrentHashMap<Word, DictionaryEntry>();
+    // rough heap size of the words and definitions (two bytes a char)
+    private final AtomicLong dataBytes = new AtomicLong();
+
+    // the same entries in ring key order. Both indexes are replaced only
+    // by load, which is only used before the store is shared
+    private volatile ConcurrentSkipListMap<DictionaryEntry, DictionaryEntry>
+            byKey = new ConcurrentSkipListMap<DictionaryEntry, DictionaryEntry>(
+                    new KeyOrder());
+
+    @Override
+    public void put(final DictionaryEntry e) {
+        byWord.compute(new Word(e.getWord()),
+                new BiFunction<Word, DictionaryEntry, DictionaryEntry>() {
+            @Override
+            public DictionaryEntry apply(Word w, DictionaryEntry old) {
+                // add before removing, so the word is never missing from
+                // a range being read
+                byKey.put(e, e);
+                if (old != null) {
+                    if (byKey.comparator().compare(old, e) != 0) {
+                        byKey.remove(old);
+                    }
+                    dataBytes.addAndGet(-dataBytes(old));
+                }
+                dataBytes.addAndGet(dataBytes(e));
+                return e;
+            }
+        });
+    }
+
+    /**
+     * Sizes the hash index for all of them up front rather than growing it
+     * as they come in
+     */
+    @Override
+    public void load(ArrayList<DictionaryEntry> sorted) {
+        if (!byWord.isEmpty()) {
+            for (DictionaryEntry e : sorted) {
+                put(e);
+            }
+            return;
+        }
+        ConcurrentHashMap<Word, DictionaryEntry> words =
+                new ConcurrentHashMap<Word, DictionaryEntry>(sorted.size());
+        ConcurrentSkipListMap<DictionaryEntry, DictionaryEntry> keys =
+                new ConcurrentSkipListMap<DictionaryEntry, DictionaryEntry>(
+                        byKey.comparator());
+        long bytes = 0;
+        for (DictionaryEntry e : sorted) {
+            DictionaryEntry old = words.put(new Word(e.getWord()), e);
+            if (old != null) {
+                keys.remove(old);
+                bytes -= dataBytes(old);
+            }
+            keys.put(e, e);
+            bytes += dataBytes(e);
+        }
+        byWord = words;
+        byKey = keys;
+        dataBytes.set(bytes);
+    }
+
+    private static long dataBytes(DictionaryEntry e) {
+        return 2L * (e.getWord().length() + e.getDefinition().length());
+    }
+
+    @Override
+    public DictionaryEntry get(String word) {
+        return byWord.get(new Word(word));
+    }
+
+    @Override
+    public boolean remove(String word) {
+        final boolean[] removed = new boolean[1];
+        byWord.computeIfPresent(new Word(word),
+                new BiFunction<Word, DictionaryEntry, DictionaryEntry>() {
+            @Override
+            public DictionaryEntry apply(Word w, DictionaryEntry old) {
+                byKey.remove(old);
+                dataBytes.addAndGet(-dataBytes(old));
+                removed[0] = true;
+                return null;
+            }
+        });
+        return removed[0];
+    }
+
+    @Override
+    public int size() {
+        return byWord.size();
+    }
+
+    @Override
+    public long dataBytes() {
+        return dataBytes.get();
+    }
+
+    @Override
+    public ArrayList<DictionaryEntry> all() {
+        return new ArrayList<DictionaryEntry>(byKey.values());
+    }
+
+    @Override
+    public ArrayList<DictionaryEntry> range(long from, long to) {
+        ArrayList<DictionaryEntry> result = new ArrayList<DictionaryEntry>();
+        if (Ring.compare(from, to) < 0) {
+            result.addAll(keysBetween(from + 1, to).values());
+        } else {
+            // the range wraps around zero
+            if (from != Ring.MASK) {
+                result.addAll(keysBetween(from + 1, Ring.MASK).values());
+            }
+            result.addAll(keysBetween(0, to).values());
+        }
+        return result;
+    }
+
+    @Override
+    public ArrayList<DictionaryEntry> page(long from, long to,
+            DictionaryEntry after, int max) {
+        // the interval as one or two runs of keys, in ring order from
+        // <code>from</code>
+        ArrayList<long[]> runs = new ArrayList<long[]>(2);
+        if (Ring.compare(from, to) < 0) {
+            runs.add(new long[] { from + 1, to });
+        } else {
+            if (from != Ring.MASK) {
+                runs.add(new long[] { from + 1, Ring.MASK });
+            }
+            runs.add(new long[] { 0, to });
+        }
+        // start in the run holding <code>after</code>
+        int first = 0;
+        for (int r = 0; after != null && r < runs.size(); r++) {
+            if (Ring.compare(runs.get(r)[0], after.getKey()) <= 0
+                    && Ring.compare(after.getKey(), runs.get(r)[1]) <= 0) {
+                first = r;
+            }
+        }
+        ArrayList<DictionaryEntry> page = new ArrayList<DictionaryEntry>();
+        for (int r = first; r < runs.size() && page.size() < max; r++) {
+            NavigableMap<DictionaryEntry, DictionaryEntry> run =
+                    keysBetween(runs.get(r)[0], runs.get(r)[1]);
+            if (r == first && after != null) {
+                run = run.tailMap(after, false);
+            }
+            for (DictionaryEntry e : run.values()) {
+                if (page.size() == max) {
+                    break;
+                }
+                page.add(e);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Entries with keys in [lo, hi], where lo <= hi
+     */
+    private ConcurrentNavigableMap<DictionaryEntry, DictionaryEntry>
+            keysBetween(long lo, long hi) {
+        ConcurrentNavigableMap<DictionaryEntry, DictionaryEntry> tail =
+                byKey.tailMap(new DictionaryEntry(lo), true);
+        if (hi == Ring.MASK) {
+            return tail;
+        }
+        return tail.headMap(new DictionaryEntry(hi + 1), false);
+    }
+
+    /**
+     * Case insensitive hash of a word, folded the same way as
+     * <code>String.equalsIgnoreCase</code> compares characters
+     */
+    static int foldedHash(String word) {
+        int h = 0;
+        for (int i = 0; i < word.length(); i++) {
+            h = 31 * h + Character.toLowerCase(
+                    Character.toUpperCase(word.charAt(i)));
+        }
+        // spread the bits so that the low ones used for the slot are mixed
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A word as a hash key, equal to the same word in any case
+     */
+    static final class Word implements Serializable {
+
+        static final long serialVersionUID = 40918273L;
+
+        private final String word;
+        private final int hash;
+
+        Word(String word) {
+            this.word = word;
+            this.hash = foldedHash(word);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Word)) {
+                return false;
+            }
+            Word w = (Word) o;
+            return hash == w.hash && word.equalsIgnoreCase(w.word);
+        }
+    }
+
+    /**
+     * Orders entries by (unsigned) ring key, then case-insensitively by word.
+     * Range placeholders have no word and sort first among their key
+     */
+    static class KeyOrder
+            implements Comparator<DictionaryEntry>, Serializable {
+
+        static final long serialVersionUID = 8172634L;
+
+        @Override
+        public int compare(DictionaryEntry a, DictionaryEntry b) {
+            int c = Ring.compare(a.getKey(), b.getKey());
+            if (c != 0) {
+                return c;
+            }
+            return compareWords(a, b);
+        }
+
+        static int compareWords(DictionaryEntry a, DictionaryEntry b) {
+            if (a.getWord() == null) {
+                return b.getWord() == null ? 0 : -1;
+            }
+            if (b.getWord() == null) {
+                return 1;
+            }
+            return String.CASE_INSENSITIVE_ORDER.compare(
+                    a.getWord(), b.getWord());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package wagyx001.pa1.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, e.g. call times in microseconds,
+ * cheap enough to record on every call from any number of threads.
+ *
+ * As in HdrHistogram, values are counted in buckets that are linear
+ * within each power of two: values under 64 get a bucket each, and above
+ * that each power of two is split into 32 buckets, so a percentile is
+ * off by at most about 3%. Recording is one atomic increment; there are
+ * no locks, and reading while values are recorded gives a result that's
+ * a little out of date rather than a wrong one.
+ */
+public class Histogram implements HistogramMBean {
+
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKETS = 2 * SUB_BUCKETS
+            + (63 - 6) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Count a value (negative values count as 0)
+     */
+    public void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    /**
+     * Count the time since <code>startNanos</code> (from
+     * <code>System.nanoTime</code>), in microseconds
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        // value >>> shift is in [32, 64)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS
+                + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * The largest value that goes into a bucket
+     */
+    private static long highest(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long top = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    private long[] snapshot() {
+        long[] c = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+        }
+        return c;
+    }
+
+    @Override
+    public long getCount() {
+        long n = 0;
+        for (long c : snapshot()) {
+            n += c;
+        }
+        return n;
+    }
+
+    @Override
+    public double getMean() {
+        long[] c = snapshot();
+        long n = 0;
+        double sum = 0;
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] != 0) {
+                n += c[i];
+                // the middle of the bucket
+                long lowest = i == 0 ? 0 : highest(i - 1) + 1;
+                sum += c[i] * ((lowest + highest(i)) / 2.0);
+            }
+        }
+        return n == 0 ? 0 : sum / n;
+    }
+
+    @Override
+    public long getMax() {
+        long[] c = snapshot();
+        for (int i = c.length - 1; i >= 0; i--) {
+            if (c[i] != 0) {
+                return highest(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The value that the given share (0 to 1) of values are at or under,
+     * rounded up to the top of its bucket
+     */
+    public long getPercentile(double p) {
+        long[] c = snapshot();
+        long n = 0;
+        for (long x : c) {
+            n += x;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < c.length; i++) {
+            seen += c[i];
+            if (seen >= rank) {
+                return highest(i);
+            }
+        }
+        return highest(c.length - 1);
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public long getP90() {
+        return getPercentile(0.9);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    @Override
+    public long getP999() {
+        return getPercentile(0.999);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " mean=" + String.format("%.1f", getMean())
+                + " p50=" + getP50()
+                + " p90=" + getP90()
+                + " p99=" + getP99()
+                + " p999=" + getP999()
+                + " max=" + getMax();
+    }
+}
@@ -0,0 +1,27 @@
+package wagyx001.pa1.core;
+
+/**
+ * What JMX shows of a <code>Histogram</code>. Values are in whatever
+ * unit the histogram's name ends with
+ */
+public interface HistogramMBean {
+
+    public long getCount();
+
+    public double getMean();
+
+    public long getMax();
+
+    public long getP50();
+
+    public long getP90();
+
+    public long getP99();
+
+    public long getP999();
+
+    /**
+     * Start again from nothing
+     */
+    public void reset();
+}
@@ -11,18 +11,54 @@ import java.util.ArrayList;
 public interface INode extends Remote {
     boolean addWordDefinition(DictionaryEntry entry) 
             throws RemoteException;
+    boolean[] addWordDefinitions(ArrayList<DictionaryEntry> entries)
+            throws RemoteException;
     NodeInfo getNodeInfo()                      
             throws RemoteException;
     public void join() 
             throws RemoteException;
-    public ArrayList<NodeInfo> resolveKey(int key) 
+    public ArrayList<NodeInfo> resolveKey(long key) 
             throws RemoteException;
     public void addToMyDictionary(DictionaryEntry entry)
             throws RemoteException;
-    public void update(FingerTable fingerTable, int predecessorId)
+    public void addAllToMyDictionary(ArrayList<DictionaryEntry> entries)
+            throws RemoteException;
+    public void update(FingerTable fingerTable, NodeInfo predecessor)
+            throws RemoteException;
+    public ScanPage scanEntries(long from, long to, String resumeToken,
+            int pageSize)
             throws RemoteException;
-    public WordDictionary getWordDictionary()
+    public NodeStats getNodeStats()
             throws RemoteException;
     public DictionaryEntry getWord(String word)
             throws RemoteException;
+    public RoutedReply getWordIfOwner(String word)
+            throws RemoteException;
+    public RoutedReply addWordIfOwner(DictionaryEntry entry)
+            throws RemoteException;
+    public NodeInfo getPredecessor()
+            throws RemoteException;
+    public NodeInfo getSuccessor()
+            throws RemoteException;
+    public void notifyPredecessor(NodeInfo candidate)
+            throws RemoteException;
+    public ArrayList<NodeInfo> getSuccessorList()
+            throws RemoteException;
+    public void addReplicas(NodeInfo owner, long from, 
+            ArrayList<DictionaryEntry> entries)
+            throws RemoteException;
+    public DictionaryEntry getStoredWord(String word)
+            throws RemoteException;
+    public DictionaryEntry getCacheableWord(String word, NodeInfo reader)
+            throws RemoteException;
+    public void invalidateCachedWords(ArrayList<String> words)
+            throws RemoteException;
+    public KeyFilter getKeyFilter(long knownVersion, NodeInfo reader)
+            throws RemoteException;
+    public boolean receiveTransferChunk(TransferChunk chunk)
+            throws RemoteException;
+    public RouteStep routeStep(long key)
+            throws RemoteException;
+    public ArrayList<Trace> getTraces(int max)
+            throws RemoteException;
 }
@@ -2,6 +2,7 @@ package wagyx001.pa1.core;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 
 /**
  * Interface to define the stub for the
@@ -12,12 +13,16 @@ public interface ISuperNode extends Remote {
             throws RemoteException;
     public NodeInfo initiate(String url)    
             throws RemoteException;
-    public boolean hasJoined(int nodeId)    
+    public NodeInfo rejoin(String url, NodeInfo previous)
             throws RemoteException;
-    public NodeInfo getNodeInfo(int nodeId) 
+    public boolean hasJoined(long nodeId)    
             throws RemoteException;
-    public FingerTable getNewFingerTable(int nodeId)
+    public NodeInfo getNodeInfo(long nodeId) 
             throws RemoteException;
-    public int getPredecessor(int id)
+    public FingerTable getNewFingerTable(long nodeId)
+            throws RemoteException;
+    public NodeInfo getPredecessor(long id)
+            throws RemoteException;
+    public ArrayList<NodeInfo> getNodeInfos()
             throws RemoteException;
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+package wagyx001.pa1.core;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the words a node owns, so that other nodes can tell
+ * a word doesn't exist without routing the lookup to its owner.
+ *
+ * A filter covers the ring interval (from, to] that its node owned when
+ * it was built, and only answers for keys in there; a filter that covers
+ * nothing is what a node publishes while its range is still on its way
+ * to it. Words can be added to a filter (by its node, and by the nodes
+ * it tells about new words) but not taken out, so each rebuild gets a
+ * new version and the filter grows less accurate as it fills up past
+ * what it was sized for. Words are matched case-insensitively.
+ *
+ * Bits are only ever set, and are set atomically, so lookups and adds
+ * never lock. A lookup racing an add may or may not see its word.
+ *
+ * Sent on the wire as varints and the raw bit array.
+ */
+public class KeyFilter implements Externalizable {
+
+    static final long serialVersionUID = 7261534L;
+
+    private long version;
+    private boolean covering;
+    private long from;
+    private long to;
+    private int hashes;
+    private AtomicLongArray bits;
+    private int capacity;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Only for deserialization
+     */
+    public KeyFilter() {
+    }
+
+    /**
+     * An empty filter for the interval (from, to] (the whole ring if
+     * from == to), sized to hold the given number of words with about
+     * <code>Consts.KEY_FILTER_FALSE_POSITIVES</code> of other words
+     * getting through
+     */
+    public KeyFilter(long version, long from, long to, int capacity) {
+        this.version = version;
+        this.covering = true;
+        this.from = from;
+        this.to = to;
+        this.capacity = Math.max(capacity, 64);
+        double p = Consts.KEY_FILTER_FALSE_POSITIVES;
+        double m = -this.capacity * Math.log(p) / (Math.log(2) * Math.log(2));
+        bits = new AtomicLongArray((int) Math.ceil(m / 64));
+        hashes = Math.max(1, (int) Math.round(
+                (double) bits.length() * 64 / this.capacity * Math.log(2)));
+    }
+
+    /**
+     * A filter that covers no keys, so it never rules a word out
+     */
+    public static KeyFilter coveringNothing(long version) {
+        KeyFilter f = new KeyFilter();
+        f.version = version;
+        f.bits = new AtomicLongArray(0);
+        return f;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Whether this filter can answer for the given key
+     */
+    public boolean covers(long key) {
+        return covering && Ring.inHalfOpen(key, from, to);
+    }
+
+    /**
+     * Whether this filter has taken in more words than it was sized for
+     */
+    public boolean isFull() {
+        return count.get() > capacity;
+    }
+
+    public void add(String word) {
+        if (bits.length() == 0) {
+            return;
+        }
+        long h = hash(word);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long m = (long) bits.length() * 64;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (((h1 + (long) i * h2) & Long.MAX_VALUE) % m);
+            long mask = 1L << bit;
+            long old = bits.get(bit >>> 6);
+            while ((old & mask) == 0
+                    && !bits.compareAndSet(bit >>> 6, old, old | mask)) {
+                old = bits.get(bit >>> 6);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * False means the word is definitely not in the filter
+     */
+    public boolean mightContain(String word) {
+        if (bits.length() == 0) {
+            return true;
+        }
+        long h = hash(word);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long m = (long) bits.length() * 64;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (((h1 + (long) i * h2) & Long.MAX_VALUE) % m);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64 bit hash of the case-folded word (FNV-1a, then mixed)
+     */
+    private static long hash(String word) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < word.length(); i++) {
+            h ^= Character.toLowerCase(Character.toUpperCase(word.charAt(i)));
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        Varint.writeUnsigned(out, version);
+        out.writeBoolean(covering);
+        Varint.writeUnsigned(out, from);
+        Varint.writeUnsigned(out, to);
+        Varint.writeInt(out, hashes);
+        Varint.writeInt(out, capacity);
+        Varint.writeInt(out, count.get());
+        Varint.writeInt(out, bits.length());
+        for (int i = 0; i < bits.length(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        version = Varint.readUnsigned(in);
+        covering = in.readBoolean();
+        from = Varint.readUnsigned(in);
+        to = Varint.readUnsigned(in);
+        hashes = Varint.readInt(in);
+        capacity = Varint.readInt(in);
+        count.set(Varint.readInt(in));
+        bits = new AtomicLongArray(Varint.readInt(in));
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, in.readLong());
+        }
+    }
+
+    public String toString() {
+        return "KeyFilter[v" + version + " (" + Ring.toString(from) + ", "
+                + Ring.toString(to) + "] " + count + "/" + capacity + " words, "
+                + bits.length() * 8 + " bytes]";
+    }
+}
@@ -0,0 +1,250 @@
+package wagyx001.pa1.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Nodes and a SuperNode all in this process, for simulations. Install it
+ * with <code>Transports.set</code> before anything asks for a transport.
+ *
+ * A call runs the method straight away on the caller's thread, after
+ * waiting out the one way latency (plus up to <code>jitter</code> more),
+ * and the reply waits it out again. Each request and each reply is lost
+ * with probability <code>loss</code>: a lost request fails with a
+ * ConnectException without the method running, a lost reply fails with a
+ * RemoteException after it has run. Arguments and results go through
+ * <code>WireCodec</code>, so that callers and callees never share objects
+ * (as with a real transport) and the bytes sent can be counted.
+ */
+public class MemoryTransport implements Transport {
+
+    private static final String SUPERNODE = "supernode";
+
+    private final ConcurrentHashMap<String, Object> exported =
+            new ConcurrentHashMap<String, Object>();
+    // calls each exported object has been sent
+    private final ConcurrentHashMap<String, AtomicLong> received =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private volatile double loss;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * A network with no latency that loses nothing
+     */
+    public MemoryTransport() {
+    }
+
+    /**
+     * Set the one way latency (plus up to jitter more, uniformly) and the
+     * chance of each message being lost. Calls already on their way keep
+     * the old conditions
+     */
+    public void setConditions(long latency, long jitter, TimeUnit unit,
+            double loss) {
+        this.latencyNanos = unit.toNanos(latency);
+        this.jitterNanos = unit.toNanos(jitter);
+        this.loss = loss;
+    }
+
+    @Override
+    public INode getNode(NodeInfo ni) {
+        return (INode) stub(INode.class, address(ni));
+    }
+
+    @Override
+    public ISuperNode getSuperNode() {
+        return (ISuperNode) stub(ISuperNode.class, SUPERNODE);
+    }
+
+    @Override
+    public void exportNode(INode node, NodeInfo ni) throws RemoteException {
+        exported.put(address(ni), node);
+    }
+
+    @Override
+    public void exportSuperNode(ISuperNode superNode) throws RemoteException {
+        exported.put(SUPERNODE, superNode);
+    }
+
+    /**
+     * Stop taking calls for a node, as if its process had died
+     */
+    public void unexportNode(NodeInfo ni) {
+        exported.remove(address(ni));
+    }
+
+    /**
+     * Calls made, whether or not they got through
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Requests and replies lost
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * Bytes of arguments and results sent
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Calls that have reached the given node
+     */
+    public long getReceived(NodeInfo ni) {
+        AtomicLong n = received.get(address(ni));
+        return n == null ? 0 : n.get();
+    }
+
+    /**
+     * Start counting calls, lost messages and bytes from zero
+     */
+    public void resetCounts() {
+        calls.set(0);
+        lost.set(0);
+        bytes.set(0);
+        received.clear();
+    }
+
+    private static String address(NodeInfo ni) {
+        return ni.ipAddress + ":" + ni.portNumber;
+    }
+
+    private Object stub(Class<?> iface, String address) {
+        return Proxy.newProxyInstance(iface.getClassLoader(),
+                new Class<?>[] { iface }, new Invoker(iface, address));
+    }
+
+    /**
+     * Wait out one message's trip, and say whether it got there
+     */
+    private boolean travel() {
+        long delay = latencyNanos;
+        if (jitterNanos > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitterNanos + 1);
+        }
+        if (delay > 0) {
+            LockSupport.parkNanos(delay);
+        }
+        if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+            lost.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy values the way they'd arrive over the wire
+     */
+    private Object[] copy(Object[] values) throws IOException {
+        if (values == null) {
+            return null;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        for (Object v : values) {
+            WireCodec.write(out, v);
+        }
+        out.flush();
+        bytes.addAndGet(buf.size());
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(buf.toByteArray()));
+        Object[] copies = new Object[values.length];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = WireCodec.read(in);
+        }
+        return copies;
+    }
+
+    /**
+     * Carries out the calls made on a stub
+     */
+    private class Invoker implements InvocationHandler {
+
+        private final Class<?> iface;
+        private final String address;
+
+        Invoker(Class<?> iface, String address) {
+            this.iface = iface;
+            this.address = address;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "MemoryStub[" + iface.getSimpleName() + " @ "
+                        + address + "]";
+            }
+            calls.incrementAndGet();
+            Object target = exported.get(address);
+            if (!travel() || target == null) {
+                throw new ConnectException("couldn't reach " + address);
+            }
+            AtomicLong n = received.get(address);
+            if (n == null) {
+                received.putIfAbsent(address, new AtomicLong());
+                n = received.get(address);
+            }
+            n.incrementAndGet();
+
+            Object result;
+            try {
+                result = method.invoke(target, copy(args));
+            } catch (InvocationTargetException ex) {
+                Throwable t = ex.getCause();
+                if (!travel()) {
+                    throw new RemoteException("reply from " + address
+                            + " was lost");
+                }
+                if (t instanceof RuntimeException || t instanceof Error) {
+                    throw t;
+                }
+                for (Class<?> declared : method.getExceptionTypes()) {
+                    if (declared.isInstance(t)) {
+                        throw t;
+                    }
+                }
+                throw new ServerException("unexpected exception from "
+                        + method.getName(), (Exception) t);
+            }
+            if (!travel()) {
+                throw new RemoteException("reply from " + address
+                        + " was lost");
+            }
+            return copy(new Object[] { result })[0];
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package wagyx001.pa1.core;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Numbers the methods of a remote interface so a call can name its method
+ * in two bytes. Methods are numbered in order of name and parameter
+ * types, so both ends of a connection agree as long as they have the same
+ * version of the interface.
+ */
+class MethodTable {
+
+    private static final HashMap<Class<?>, MethodTable> tables =
+            new HashMap<Class<?>, MethodTable>();
+
+    private final Method[] methods;
+    private final HashMap<Method, Short> ids = new HashMap<Method, Short>();
+
+    private MethodTable(Class<?> iface) {
+        methods = iface.getMethods();
+        Arrays.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(Method a, Method b) {
+                return signature(a).compareTo(signature(b));
+            }
+        });
+        for (short i = 0; i < methods.length; i++) {
+            ids.put(methods[i], i);
+        }
+    }
+
+    static synchronized MethodTable of(Class<?> iface) {
+        MethodTable table = tables.get(iface);
+        if (table == null) {
+            table = new MethodTable(iface);
+            tables.put(iface, table);
+        }
+        return table;
+    }
+
+    short idOf(Method m) {
+        return ids.get(m);
+    }
+
+    Method get(short id) throws IOException {
+        if (id < 0 || id >= methods.length) {
+            throw new IOException("no method number " + id);
+        }
+        return methods[id];
+    }
+
+    private static String signature(Method m) {
+        return m.getName() + Arrays.toString(m.getParameterTypes());
+    }
+}
@@ -0,0 +1,172 @@
+package wagyx001.pa1.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The process's histograms, counters, counter maps and gauges, by name.
+ *
+ * Each one is published as an MBean on the platform MBean server
+ * (wagyx001.pa1:type=Histogram|Counter|CounterMap|Gauge,name=...) when
+ * it's first
+ * asked for, so jconsole or any JMX client can read them. With
+ * -Dchord.metrics.dump.ms set, <code>startDumps</code> also logs all of
+ * them that often. Names say what's measured and end with the unit, e.g.
+ * "node.getWord.us"; histograms of times are in microseconds.
+ *
+ * Nodes sharing a process (see <code>Simulation</code>) share metrics.
+ */
+public class Metrics {
+
+    private static final Logger log = Logger.getLogger(Metrics.class);
+
+    private static final ConcurrentHashMap<String, Histogram> histograms =
+            new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentHashMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentHashMap<String, CounterMap> counterMaps =
+            new ConcurrentHashMap<String, CounterMap>();
+    private static final ConcurrentHashMap<String, Gauge> gauges =
+            new ConcurrentHashMap<String, Gauge>();
+
+    private static ScheduledExecutorService dumper;
+
+    public static Histogram histogram(String name) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            Histogram made = new Histogram();
+            h = histograms.putIfAbsent(name, made);
+            if (h == null) {
+                h = made;
+                register("Histogram", name, made, HistogramMBean.class);
+            }
+        }
+        return h;
+    }
+
+    public static Counter counter(String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            Counter made = new Counter();
+            c = counters.putIfAbsent(name, made);
+            if (c == null) {
+                c = made;
+                register("Counter", name, made, CounterMBean.class);
+            }
+        }
+        return c;
+    }
+
+    public static CounterMap counterMap(String name) {
+        CounterMap c = counterMaps.get(name);
+        if (c == null) {
+            CounterMap made = new CounterMap();
+            c = counterMaps.putIfAbsent(name, made);
+            if (c == null) {
+                c = made;
+                register("CounterMap", name, made, CounterMapMXBean.class);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Publish a value that's read off something else. A later gauge with
+     * the same name replaces the earlier one's source
+     */
+    public static void gauge(String name, LongSupplier source) {
+        Gauge g = gauges.get(name);
+        if (g != null) {
+            g.setSource(source);
+            return;
+        }
+        Gauge made = new Gauge(source);
+        g = gauges.putIfAbsent(name, made);
+        if (g != null) {
+            g.setSource(source);
+        } else {
+            register("Gauge", name, made, GaugeMBean.class);
+        }
+    }
+
+    private static <T> void register(String type, String name, T metric,
+            Class<T> iface) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            // interfaces named ...MXBean get open types, so that JMX
+            // clients can show their maps
+            server.registerMBean(new StandardMBean(metric, iface,
+                    iface.getName().endsWith("MXBean")),
+                    new ObjectName("wagyx001.pa1:type=" + type + ",name="
+                            + ObjectName.quote(name)));
+        } catch (JMException ex) {
+            log.warn("Couldn't publish " + name + " over JMX: " + ex);
+        }
+    }
+
+    /**
+     * Every metric, one per line, in name order
+     */
+    public static String snapshot() {
+        TreeMap<String, Object> all = new TreeMap<String, Object>();
+        all.putAll(histograms);
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            all.put(e.getKey(), e.getValue().getCount());
+        }
+        for (Map.Entry<String, CounterMap> e : counterMaps.entrySet()) {
+            for (Map.Entry<String, Long> c 
+                    : e.getValue().getCounts().entrySet()) {
+                all.put(e.getKey() + "." + c.getKey(), c.getValue());
+            }
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            all.put(e.getKey(), e.getValue().getValue());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : all.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue())
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Log a snapshot every <code>Consts.METRICS_DUMP_MS</code>, if that's
+     * set
+     */
+    public static synchronized void startDumps() {
+        if (Consts.METRICS_DUMP_MS <= 0 || dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        dumper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                log.info("Metrics:\n" + snapshot());
+            }
+        }, Consts.METRICS_DUMP_MS, Consts.METRICS_DUMP_MS,
+                TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,62 @@
+package wagyx001.pa1.core;
+
+/**
+ * 64-bit MurmurHash3-style ring hash.
+ *
+ * Characters are case-folded and packed four at a time into a 64 bit block
+ * which is then mixed, so hashing a word doesn't allocate anything.
+ */
+public class MurmurRingHash implements RingHash {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long SEED = 0x9747b28c5ef1d3a7L;
+
+    @Override
+    public long hash(CharSequence val, int bits) {
+        int len = val.length();
+        long h = SEED;
+        int i = 0;
+        // body: four chars per block
+        for (; i + 4 <= len; i += 4) {
+            long k = lower(val.charAt(i))
+                    | ((long) lower(val.charAt(i + 1)) << 16)
+                    | ((long) lower(val.charAt(i + 2)) << 32)
+                    | ((long) lower(val.charAt(i + 3)) << 48);
+            h ^= mixK(k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        // tail: whatever is left over
+        long k = 0;
+        for (int shift = 0; i < len; i++, shift += 16) {
+            k |= (long) lower(val.charAt(i)) << shift;
+        }
+        h ^= mixK(k);
+        h ^= len;
+        return fmix(h) >>> (64 - bits);
+    }
+
+    /**
+     * Upper then lower, as <code>equalsIgnoreCase</code> folds, so words
+     * that compare equal (the Kelvin sign and 'k', say) hash alike
+     */
+    private static char lower(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static long mixK(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        k *= C2;
+        return k;
+    }
+
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
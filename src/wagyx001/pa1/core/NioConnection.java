@@ -0,0 +1,336 @@
+package wagyx001.pa1.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One connection of the NIO transport, used for any number of calls at
+ * once.
+ *
+ * Everything on the wire is a frame: a four byte length, then an eight
+ * byte request id, a one byte type and the body. A request's body is the
+ * method number and its arguments; a reply's body is whether the call
+ * worked and then its result or exception. Replies carry the id of their
+ * request, so they can come back in any order and a caller never waits
+ * for anyone else's call.
+ */
+class NioConnection {
+
+    private static final Logger log = Logger.getLogger(NioConnection.class);
+
+    static final byte REQUEST = 0;
+    static final byte REPLY = 1;
+
+    // what the read buffer goes back to after holding a bigger frame
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final NioLoop loop;
+    final SocketChannel channel;
+    // set by the loop thread once the channel is registered
+    SelectionKey key;
+    // handles requests that come in on the connection, null on our end
+    // of connections we made
+    private final NioTransport.Dispatcher dispatcher;
+    // called once the connection has closed
+    private final Runnable onClose;
+
+    // the rest are only used by the loop thread
+    private ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    // whether we're waiting for the socket to take more of our writes, and
+    // whether we've stopped reading until a worker is free for a request
+    private boolean writing;
+    private boolean paused;
+    private final ConcurrentLinkedQueue<ByteBuffer> writes =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final ConcurrentHashMap<Long, CompletableFuture<DataInputStream>> pending =
+            new ConcurrentHashMap<Long, CompletableFuture<DataInputStream>>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioConnection(NioLoop loop, SocketChannel channel,
+            NioTransport.Dispatcher dispatcher, Runnable onClose) {
+        this.loop = loop;
+        this.channel = channel;
+        this.dispatcher = dispatcher;
+        this.onClose = onClose;
+    }
+
+    /**
+     * A frame being built. Its length is filled in by
+     * <code>toBuffer</code>
+     */
+    static class FrameOut extends DataOutputStream {
+
+        FrameOut(long id, byte type) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeInt(0);
+            writeLong(id);
+            writeByte(type);
+        }
+
+        ByteBuffer toBuffer() {
+            ByteBuffer buf = ByteBuffer.wrap(
+                    ((ByteArrayOutputStream) out).toByteArray());
+            buf.putInt(0, buf.capacity() - 4);
+            return buf;
+        }
+    }
+
+    long nextId() {
+        return nextId.incrementAndGet();
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Send a request. The future gets the body of the reply
+     */
+    CompletableFuture<DataInputStream> call(long id, FrameOut request) {
+        CompletableFuture<DataInputStream> reply =
+                new CompletableFuture<DataInputStream>();
+        pending.put(id, reply);
+        if (closed.get()) {
+            pending.remove(id);
+            reply.completeExceptionally(new ConnectException(
+                    "connection to " + peer() + " is closed"));
+            return reply;
+        }
+        send(request.toBuffer());
+        return reply;
+    }
+
+    /**
+     * Stop waiting for the reply to a request, e.g. after a timeout
+     */
+    void forget(long id) {
+        pending.remove(id);
+    }
+
+    /**
+     * Send the reply to a request we were sent
+     */
+    void reply(long id, boolean ok, Object result) throws IOException {
+        FrameOut frame = new FrameOut(id, REPLY);
+        frame.writeBoolean(ok);
+        WireCodec.write(frame, result);
+        send(frame.toBuffer());
+    }
+
+    private void send(ByteBuffer frame) {
+        if (closed.get()) {
+            return;
+        }
+        writes.add(frame);
+        if (flushQueued.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * Write out as much of the queue as the socket takes (loop thread only)
+     */
+    void flush() {
+        flushQueued.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            ByteBuffer buf;
+            while ((buf = writes.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    // socket's full, carry on when it has room
+                    writing = true;
+                    updateInterest();
+                    return;
+                }
+                writes.poll();
+            }
+            writing = false;
+            updateInterest();
+        } catch (IOException ex) {
+            close(ex);
+        }
+    }
+
+    private void updateInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps((paused ? 0 : SelectionKey.OP_READ)
+                    | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /**
+     * Carry on reading after stopping for want of a worker, starting with
+     * the requests we already have (loop thread only)
+     */
+    void resume() {
+        if (!paused || closed.get()) {
+            return;
+        }
+        paused = false;
+        readBuf.flip();
+        handleFrames();
+        readBuf.compact();
+        fitReadBuffer();
+        updateInterest();
+    }
+
+    /**
+     * Read whatever has arrived and handle each whole frame (loop thread
+     * only)
+     */
+    void onReadable() {
+        if (paused) {
+            return;
+        }
+        try {
+            if (channel.read(readBuf) < 0) {
+                close(null);
+                return;
+            }
+        } catch (IOException ex) {
+            close(ex);
+            return;
+        }
+        readBuf.flip();
+        handleFrames();
+        readBuf.compact();
+        fitReadBuffer();
+        if (paused) {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Handle each whole frame in the read buffer (flipped for reading),
+     * stopping at a request no worker can take yet
+     */
+    private void handleFrames() {
+        while (readBuf.remaining() >= 4 && !closed.get()) {
+            int start = readBuf.position();
+            int len = readBuf.getInt(start);
+            if (len < 9 || len > Consts.NIO_MAX_FRAME_BYTES) {
+                close(new IOException("bad frame length " + len));
+                return;
+            }
+            if (readBuf.remaining() < 4 + len) {
+                break;
+            }
+            byte[] frame = new byte[len];
+            readBuf.position(start + 4);
+            readBuf.get(frame);
+            if (!received(frame)) {
+                // keep it for when we carry on
+                log.debug("No worker free, not reading from " + peer());
+                readBuf.position(start);
+                paused = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Make room in the read buffer for a frame bigger than it, or give
+     * the room back once such a frame has gone
+     */
+    private void fitReadBuffer() {
+        int held = readBuf.position();
+        int needed = held >= 4 ? 4 + readBuf.getInt(0) : 0;
+        if (needed > 4 + Consts.NIO_MAX_FRAME_BYTES) {
+            // a bad length, which closes the connection on the next read
+            return;
+        }
+        int size = Math.max(READ_BUFFER_BYTES, needed);
+        if (size > readBuf.capacity()
+                || (size < readBuf.capacity() && held <= size)) {
+            ByteBuffer fitted = ByteBuffer.allocate(size);
+            readBuf.flip();
+            fitted.put(readBuf);
+            readBuf = fitted;
+        }
+    }
+
+    /**
+     * Handle a frame, returning false if it's a request that no worker
+     * can take yet
+     */
+    private boolean received(byte[] frame) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        try {
+            long id = in.readLong();
+            byte type = in.readByte();
+            if (type == REQUEST && dispatcher != null) {
+                return dispatcher.dispatch(this, id, in);
+            } else if (type == REPLY) {
+                CompletableFuture<DataInputStream> reply = pending.remove(id);
+                if (reply != null) {
+                    reply.complete(in);
+                }
+            } else {
+                close(new IOException("unexpected frame type " + type));
+            }
+        } catch (IOException ex) {
+            close(ex);
+        }
+        return true;
+    }
+
+    /**
+     * Close the connection and fail every call still waiting on it
+     */
+    void close(Exception cause) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (cause != null) {
+            log.warn("Closing connection to " + peer() + ": " + cause);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // closing anyway
+        }
+        for (Long id : pending.keySet()) {
+            CompletableFuture<DataInputStream> reply = pending.remove(id);
+            if (reply != null) {
+                reply.completeExceptionally(new ConnectException(
+                        "connection to " + peer() + " closed", cause));
+            }
+        }
+        if (onClose != null) {
+            onClose.run();
+        }
+    }
+
+    private String peer() {
+        return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+}
@@ -0,0 +1,125 @@
+package wagyx001.pa1.core;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The one thread that does all of the NIO transport's socket work: it
+ * accepts connections, reads frames and writes queued frames for every
+ * connection in the process. Anything that touches a selection key is
+ * handed to this thread with <code>execute</code>.
+ */
+class NioLoop implements Runnable {
+
+    private static final Logger log = Logger.getLogger(NioLoop.class);
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+
+    NioLoop() throws IOException {
+        selector = Selector.open();
+        Thread t = new Thread(this, "nio-loop");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Run a task on the loop thread, in the order tasks were given
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Start accepting connections, whose requests go to the dispatcher
+     */
+    void listen(final ServerSocketChannel server,
+            final NioTransport.Dispatcher dispatcher) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.register(selector, SelectionKey.OP_ACCEPT, dispatcher);
+                } catch (ClosedChannelException ex) {
+                    log.error("Server socket closed before it was used: " + ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start reading from a connection
+     */
+    void register(final NioConnection c) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+                } catch (ClosedChannelException ex) {
+                    c.close(ex);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+                    NioConnection c = (NioConnection) key.attachment();
+                    if (key.isReadable()) {
+                        c.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        c.flush();
+                    }
+                }
+            } catch (IOException ex) {
+                log.error("Selector failed: " + ex);
+            } catch (RuntimeException ex) {
+                log.error("NIO loop task failed: " + ex, ex);
+            }
+        }
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        NioConnection c = new NioConnection(this, channel,
+                (NioTransport.Dispatcher) key.attachment(), null);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        log.debug("Accepted connection from " + channel.socket().getRemoteSocketAddress());
+    }
+}
@@ -0,0 +1,671 @@
+package wagyx001.pa1.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A binary request/response protocol over <code>java.nio</code> channels.
+ *
+ * Each process keeps at most one connection to each peer, and every call
+ * to that peer from any thread is pipelined over it (see
+ * <code>NioConnection</code> for the framing). All sockets are run by one
+ * selector thread; incoming requests are carried out by workers, at most
+ * <code>Consts.NIO_WORKERS</code> at a time. When too many requests are
+ * waiting for a worker, a connection that brings another one stops being
+ * read until a worker is free, so the backlog stays in the senders'
+ * sockets rather than in our heap. A request that makes calls of its own
+ * (a lookup walking the ring, a write passed on to replicas) gives up its
+ * place while it waits for their replies and takes one again afterwards,
+ * so requests waiting on each other across nodes can't take every
+ * worker and leave the calls they wait for unread. It keeps its thread
+ * while it waits, though, and no more than
+ * <code>Consts.NIO_MAX_THREADS</code> threads are used: past that, new
+ * requests wait for a thread, and a call that was waiting on one of
+ * them times out rather than the process growing threads without bound.
+ * A node listens on the port in its NodeInfo and the SuperNode on
+ * <code>Consts.SUPERNODE_PORT</code>, so no RMI registry is needed and
+ * several nodes can share a host.
+ *
+ * Stubs are dynamic proxies of INode and ISuperNode, so callers can't
+ * tell this apart from RMI: a call that can't get through fails with a
+ * RemoteException, and an exception thrown by the remote method is thrown
+ * again by the stub. A call made through a stub inside <code>send</code>
+ * doesn't wait for its reply at all: the caller gets a future of it
+ * instead, so it has no thread tied up however many calls it has out.
+ */
+public class NioTransport implements Transport {
+
+    private static final Logger log = Logger.getLogger(NioTransport.class);
+
+    private NioLoop loop;
+    // up to NIO_MAX_THREADS threads, which go after a minute idle; how
+    // many requests are carried out at once is up to the counts below
+    private ThreadPoolExecutor workers;
+    // requests being carried out that aren't waiting on calls of their
+    // own, requests being carried out at all (each has a thread), and
+    // requests waiting to start, all guarded by slots
+    private final Object slots = new Object();
+    private int running;
+    private int threads;
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+    // connections that stopped reading because no worker was free
+    private final ConcurrentLinkedQueue<NioConnection> stalled =
+            new ConcurrentLinkedQueue<NioConnection>();
+    // the transport whose request the current thread is carrying out
+    private static final ThreadLocal<NioTransport> carryingOut =
+            new ThreadLocal<NioTransport>();
+    // set while send makes a call: the stub leaves its reply here
+    // rather than waiting for it
+    private static final ThreadLocal<Sending> sending =
+            new ThreadLocal<Sending>();
+    // give the replies to sent calls to whoever wants them (off the loop
+    // thread, since they may well make calls of their own), and time
+    // them out
+    private ExecutorService replies;
+    private ScheduledThreadPoolExecutor timeouts;
+    private Thread keepAlive;
+    private final HashMap<String, NioConnection> connections =
+            new HashMap<String, NioConnection>();
+
+    private static class Sending {
+        CompletableFuture<Object> reply;
+    }
+
+    @Override
+    public INode getNode(NodeInfo ni) {
+        return (INode) stub(INode.class, ni.ipAddress, ni.portNumber);
+    }
+
+    @Override
+    public ISuperNode getSuperNode() {
+        return (ISuperNode) stub(ISuperNode.class, Consts.SUPERNODE_URL,
+                Consts.SUPERNODE_PORT);
+    }
+
+    @Override
+    public void exportNode(INode node, NodeInfo ni) throws RemoteException {
+        listen(ni.portNumber, new Dispatcher(node, INode.class));
+    }
+
+    @Override
+    public void exportSuperNode(ISuperNode superNode) throws RemoteException {
+        listen(Consts.SUPERNODE_PORT,
+                new Dispatcher(superNode, ISuperNode.class));
+    }
+
+    private Object stub(Class<?> iface, String host, int port) {
+        return Proxy.newProxyInstance(iface.getClassLoader(),
+                new Class<?>[] { iface }, new Invoker(iface, host, port));
+    }
+
+    private synchronized NioLoop loop() throws RemoteException {
+        if (loop == null) {
+            try {
+                loop = new NioLoop();
+            } catch (IOException ex) {
+                throw new RemoteException("couldn't start the NIO loop", ex);
+            }
+            // no more requests are handed over than there are threads, so
+            // the queue only holds one while a thread is on its way back
+            workers = new ThreadPoolExecutor(Consts.NIO_MAX_THREADS,
+                    Consts.NIO_MAX_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "nio-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            workers.allowCoreThreadTimeOut(true);
+            replies = Executors.newFixedThreadPool(Consts.ASYNC_THREADS,
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "nio-reply");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "nio-timeout");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timeouts.setRemoveOnCancelPolicy(true);
+        }
+        return loop;
+    }
+
+    /**
+     * Make the one call the given code makes on a stub of ours without
+     * waiting for its reply. Whatever the code does with the stub's
+     * return value is lost (it only gets a stand-in), so it should
+     * return it as it is and leave the rest to the future.
+     * @return the result of the call, or its exception wrapped in a
+     * <code>CompletionException</code>
+     */
+    @SuppressWarnings("unchecked")
+    static <T> CompletableFuture<T> send(INode node,
+            AsyncNode.RemoteCall<T> call) throws RemoteException {
+        Sending s = new Sending();
+        sending.set(s);
+        try {
+            call.call(node);
+        } finally {
+            sending.remove();
+        }
+        if (s.reply == null) {
+            throw new IllegalArgumentException(
+                    "the call didn't go through a stub of ours");
+        }
+        return (CompletableFuture<T>) (CompletableFuture<?>) s.reply;
+    }
+
+    /**
+     * Have the given action run when the reply comes to the call just
+     * sent on this thread, if there is such a call (see
+     * <code>send</code>)
+     * @return true if there was
+     */
+    static boolean whenReplied(BiConsumer<Object, Throwable> action) {
+        Sending s = sending.get();
+        if (s == null || s.reply == null) {
+            return false;
+        }
+        s.reply = s.reply.whenComplete(action);
+        return true;
+    }
+
+    private void listen(int port, Dispatcher dispatcher) throws RemoteException {
+        NioLoop l = loop();
+        try {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            l.listen(server, dispatcher);
+            keepAlive();
+            log.info("Listening on port " + port);
+        } catch (IOException ex) {
+            throw new RemoteException("couldn't listen on port " + port, ex);
+        }
+    }
+
+    /**
+     * Our threads are all daemons, so that clients can exit. Like RMI,
+     * keep the process running for good once it has something exported
+     */
+    private synchronized void keepAlive() {
+        if (keepAlive != null) {
+            return;
+        }
+        keepAlive = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException ex) {
+                    // let the process go
+                }
+            }
+        }, "nio-keepalive");
+        keepAlive.start();
+    }
+
+    /**
+     * Get our connection to the given peer, making one if we don't have
+     * one that's still open
+     */
+    private NioConnection connection(String host, int port)
+            throws RemoteException {
+        final String peer = host + ":" + port;
+        synchronized (connections) {
+            NioConnection c = connections.get(peer);
+            if (c != null && !c.isClosed()) {
+                return c;
+            }
+        }
+        // connect outside the lock so a dead peer doesn't hold up the rest
+        NioLoop l = loop();
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().connect(new InetSocketAddress(host, port),
+                    Consts.NIO_CONNECT_TIMEOUT_MS);
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+        } catch (IOException ex) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // never got going anyway
+                }
+            }
+            throw new ConnectException("couldn't connect to " + peer, ex);
+        }
+        final NioConnection[] made = new NioConnection[1];
+        made[0] = new NioConnection(l, channel, null, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (connections) {
+                    if (connections.get(peer) == made[0]) {
+                        connections.remove(peer);
+                    }
+                }
+            }
+        });
+        synchronized (connections) {
+            NioConnection c = connections.get(peer);
+            if (c != null && !c.isClosed()) {
+                // someone else got there first
+                made[0].close(null);
+                return c;
+            }
+            connections.put(peer, made[0]);
+        }
+        l.register(made[0]);
+        return made[0];
+    }
+
+    /**
+     * Sends the calls made on a stub
+     */
+    private class Invoker implements InvocationHandler {
+
+        private final Class<?> iface;
+        private final MethodTable methods;
+        private final String host;
+        private final int port;
+
+        Invoker(Class<?> iface, String host, int port) {
+            this.iface = iface;
+            this.methods = MethodTable.of(iface);
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "NioStub[" + iface.getSimpleName() + " @ " + host
+                        + ":" + port + "]";
+            }
+            NioConnection c = connection(host, port);
+            long id = c.nextId();
+            NioConnection.FrameOut request =
+                    new NioConnection.FrameOut(id, NioConnection.REQUEST);
+            request.writeShort(methods.idOf(method));
+            if (args != null) {
+                for (Object arg : args) {
+                    WireCodec.write(request, arg);
+                }
+            }
+
+            Sending s = sending.get();
+            if (s != null && s.reply == null) {
+                s.reply = later(c, id, request, method);
+                return standIn(method.getReturnType());
+            }
+
+            DataInputStream reply;
+            NioTransport carrying = carryingOut.get();
+            if (carrying != null) {
+                carrying.leaveSlot();
+            }
+            try {
+                reply = c.call(id, request).get(Consts.NIO_CALL_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                c.forget(id);
+                throw new RemoteException("no reply to " + method.getName()
+                        + " from " + host + ":" + port);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RemoteException) {
+                    throw ex.getCause();
+                }
+                throw new RemoteException("call to " + host + ":" + port
+                        + " failed", ex.getCause());
+            } catch (InterruptedException ex) {
+                c.forget(id);
+                Thread.currentThread().interrupt();
+                throw new RemoteException("interrupted waiting for "
+                        + host + ":" + port);
+            } finally {
+                if (carrying != null) {
+                    carrying.retakeSlot();
+                }
+            }
+
+            return result(reply, method);
+        }
+
+        /**
+         * Send a request and give back a future of its result, which
+         * fails if there's no reply in time
+         */
+        private CompletableFuture<Object> later(final NioConnection c,
+                final long id, NioConnection.FrameOut request,
+                final Method method) {
+            final CompletableFuture<Object> result =
+                    new CompletableFuture<Object>();
+            final ScheduledFuture<?> timeout = timeouts.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    c.forget(id);
+                    result.completeExceptionally(new CompletionException(
+                            new RemoteException("no reply to "
+                                    + method.getName() + " from " + host
+                                    + ":" + port)));
+                }
+            }, Consts.NIO_CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            c.call(id, request).whenComplete(
+                    new BiConsumer<DataInputStream, Throwable>() {
+                @Override
+                public void accept(final DataInputStream reply, Throwable t) {
+                    timeout.cancel(false);
+                    if (t != null) {
+                        result.completeExceptionally(new CompletionException(t));
+                        return;
+                    }
+                    replies.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                result.complete(result(reply, method));
+                            } catch (Throwable e) {
+                                result.completeExceptionally(
+                                        new CompletionException(e));
+                            }
+                        }
+                    });
+                }
+            });
+            return result;
+        }
+
+        /**
+         * The result of a call from the body of its reply, or the
+         * exception it threw
+         */
+        private Object result(DataInputStream reply, Method method)
+                throws Throwable {
+            boolean ok = reply.readBoolean();
+            Object result = WireCodec.read(reply);
+            if (ok) {
+                return result;
+            }
+            Throwable t = (Throwable) result;
+            if (t instanceof RuntimeException || t instanceof Error) {
+                throw t;
+            }
+            for (Class<?> declared : method.getExceptionTypes()) {
+                if (declared.isInstance(t)) {
+                    throw t;
+                }
+            }
+            throw new ServerException("unexpected exception from "
+                    + method.getName(), (Exception) t);
+        }
+    }
+
+    /**
+     * What a stub returns for a call whose result comes later
+     */
+    private static Object standIn(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        }
+        return null;
+    }
+
+    /**
+     * Carries out the requests that come in for one exported object
+     */
+    class Dispatcher {
+
+        private final Object target;
+        private final MethodTable methods;
+
+        Dispatcher(Object target, Class<?> iface) {
+            this.target = target;
+            this.methods = MethodTable.of(iface);
+        }
+
+        /**
+         * Hand a request to a worker, or queue it for the next one free.
+         * @return false if too many requests are already waiting for one,
+         * in which case the connection is told to carry on when one is
+         */
+        boolean dispatch(final NioConnection c, final long id,
+                final DataInputStream in) {
+            Runnable request = new Runnable() {
+                @Override
+                public void run() {
+                    carryingOut.set(NioTransport.this);
+                    try {
+                        carryOut(c, id, in);
+                    } finally {
+                        carryingOut.remove();
+                        finished();
+                    }
+                }
+            };
+            synchronized (slots) {
+                if (!canStart()) {
+                    if (waiting.size() >= Consts.NIO_WORKER_QUEUE) {
+                        // a slot can only come free after this, as every
+                        // one is taken, and that will resume us
+                        stalled.add(c);
+                        return false;
+                    }
+                    waiting.add(request);
+                    return true;
+                }
+                running++;
+                threads++;
+            }
+            workers.execute(request);
+            return true;
+        }
+
+        /**
+         * Carry out a request and reply to it, whatever goes wrong: a
+         * caller that gets no reply waits out its whole timeout
+         */
+        private void carryOut(NioConnection c, long id, DataInputStream in) {
+            boolean ok = false;
+            Object result = null;
+            boolean replied = false;
+            try {
+                try {
+                    Method m = methods.get(in.readShort());
+                    Object[] args = new Object[m.getParameterTypes().length];
+                    for (int i = 0; i < args.length; i++) {
+                        args[i] = WireCodec.read(in);
+                    }
+                    result = m.invoke(target, args);
+                    ok = true;
+                } catch (InvocationTargetException ex) {
+                    result = ex.getCause();
+                } catch (IOException ex) {
+                    result = new RemoteException("bad request: " + ex);
+                } catch (IllegalAccessException ex) {
+                    result = new RemoteException("bad request: " + ex);
+                } catch (RuntimeException ex) {
+                    // arguments of the wrong types, among others
+                    result = new RemoteException("bad request: " + ex);
+                }
+                reply(c, id, ok, result);
+                replied = true;
+            } finally {
+                if (!replied) {
+                    // an Error on its way up
+                    reply(c, id, false, new RemoteException(
+                            "couldn't carry out the request"));
+                }
+            }
+        }
+
+        private void reply(NioConnection c, long id, boolean ok,
+                Object result) {
+            try {
+                c.reply(id, ok, result);
+            } catch (IOException ex) {
+                log.error("Couldn't send reply: " + ex);
+                try {
+                    c.reply(id, false, new RemoteException(
+                            "couldn't send reply: " + ex));
+                } catch (IOException e) {
+                    c.close(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for a call made on another thread on behalf of the request the
+     * current thread is carrying out, if any, without holding its slot
+     */
+    static <T> T join(CompletableFuture<T> f) {
+        NioTransport carrying = carryingOut.get();
+        if (carrying == null) {
+            return f.join();
+        }
+        carrying.leaveSlot();
+        try {
+            return f.join();
+        } finally {
+            carrying.retakeSlot();
+        }
+    }
+
+    /**
+     * Whether there's a slot and a thread for another request (with slots
+     * held)
+     */
+    private boolean canStart() {
+        return running < Consts.NIO_WORKERS
+                && threads < Consts.NIO_MAX_THREADS;
+    }
+
+    /**
+     * Give up the current thread's slot while its request waits for a
+     * call of its own, starting a waiting request if there's a thread
+     * for it
+     */
+    private void leaveSlot() {
+        synchronized (slots) {
+            running--;
+        }
+        startWaiting();
+    }
+
+    /**
+     * Give up the current thread's slot and the thread, as its request
+     * is done
+     */
+    private void finished() {
+        synchronized (slots) {
+            running--;
+            threads--;
+        }
+        startWaiting();
+    }
+
+    private void startWaiting() {
+        ArrayList<Runnable> starting = new ArrayList<Runnable>();
+        synchronized (slots) {
+            while (canStart() && !waiting.isEmpty()) {
+                starting.add(waiting.poll());
+                running++;
+                threads++;
+            }
+        }
+        for (Runnable r : starting) {
+            workers.execute(r);
+        }
+        resumeStalled();
+    }
+
+    /**
+     * Take a slot back after a call made while carrying out a request.
+     * The request is under way already, so this doesn't wait for a slot
+     * to come free; requests that come in meanwhile wait a bit longer
+     */
+    private void retakeSlot() {
+        synchronized (slots) {
+            running++;
+        }
+    }
+
+    /**
+     * Let a connection that stopped reading for want of a worker go on
+     */
+    private void resumeStalled() {
+        final NioConnection c = stalled.poll();
+        if (c != null) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    c.resume();
+                }
+            });
+        }
+    }
+}
@@ -1,26 +1,67 @@
 package wagyx001.pa1.core;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 /**
  * Class to hold info that a node needs to function in the DHT
+ * 
+ * Sent on the wire as varint id, UTF-8 ip address and varint port
  */
-public class NodeInfo implements Serializable, Comparable {
+public class NodeInfo implements Externalizable, Comparable {
     
     public static long serialVersionUID = 2341234L;
     
-    public int id;
+    public long id;
 //    public int predecessorNodeId;
     public String ipAddress;
     public int portNumber;
 //    public FingerTable fingerTable;
     
-    public NodeInfo(int id, String ipAddress, int portNumber) {
+    public NodeInfo(long id, String ipAddress, int portNumber) {
         this.id = id;
         this.ipAddress = ipAddress;
         this.portNumber = portNumber;
     }
     
+    /**
+     * Only for deserialization
+     */
+    public NodeInfo() {
+    }
+    
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readFields(in);
+    }
+    
+    void write(DataOutput out) throws IOException {
+        Varint.writeUnsigned(out, id);
+        Varint.writeString(out, ipAddress);
+        Varint.writeInt(out, portNumber);
+    }
+    
+    static NodeInfo read(DataInput in) throws IOException {
+        NodeInfo ni = new NodeInfo();
+        ni.readFields(in);
+        return ni;
+    }
+    
+    private void readFields(DataInput in) throws IOException {
+        id = Varint.readUnsigned(in);
+        ipAddress = Varint.readString(in);
+        portNumber = Varint.readInt(in);
+    }
+    
     /**
      * Update this nodeinfo with new finger table and predecessor id info
      * because a new node has joined 
@@ -48,32 +89,49 @@ public class NodeInfo implements Serializable, Comparable {
     
     public String toString() {
         return  "<Node Info>\n"
-                + "id:\t\t\t" + id + "\n"
+                + "id:\t\t\t" + Ring.toString(id) + "\n"
                 + "ip address:\t\t" + ipAddress + "\n"
                 + "port number:\t" + portNumber + "\n";
 //                + "predecessor id:\t" + predecessorNodeId + "\n"
 //                + fingerTable;
     }
 
+    /**
+     * Two NodeInfos are the same node if id, ip address and port all match
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NodeInfo)) {
+            return false;
+        }
+        NodeInfo ni = (NodeInfo) o;
+        return ni.id == this.id
+                && ni.portNumber == this.portNumber
+                && (ni.ipAddress == null
+                    ? this.ipAddress == null
+                    : ni.ipAddress.equals(this.ipAddress));
+    }
+
+    @Override
+    public int hashCode() {
+        int h = Long.hashCode(id);
+        h = 31 * h + (ipAddress == null ? 0 : ipAddress.hashCode());
+        h = 31 * h + portNumber;
+        return h;
+    }
+
     /**
      * Comparison method to implement Comparable interface.
-     * Compares NodeInfo based on id values
+     * Compares NodeInfo based on (unsigned) id values
      * @param t: Object to compare to
      * @return 0 if same, -1 if less than, +1 if more than
      */
     @Override
     public int compareTo(Object t) {
         NodeInfo ni = (NodeInfo) t;
-        if (ni.id > this.id) {
-            return -1;
-        } else if (ni.id < this.id) {
-            return 1;
-        } else if (ni.id == this.id) {
-            return 0;
-        } else {
-            System.err.println(
-                    "ERROR: objects not comparable: " + this + " and " + ni);
-            return 0;
-        }
+        return Integer.signum(Ring.compare(this.id, ni.id));
     }
 }
\ No newline at end of file
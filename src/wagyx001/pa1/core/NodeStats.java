@@ -0,0 +1,74 @@
+package wagyx001.pa1.core;
+
+import java.io.Serializable;
+
+/**
+ * A summary of a node's state that's cheap to get no matter how many
+ * words the node holds (see <code>INode.getNodeStats</code>)
+ */
+public class NodeStats implements Serializable {
+
+    static final long serialVersionUID = 5512093L;
+
+    public NodeInfo node;
+    public NodeInfo predecessor;
+    public NodeInfo successor;
+    public int successorListSize;
+
+    // words this node owns, and the copies it keeps for its predecessors
+    public long entries;
+    public long entryBytes;
+    public long replicaEntries;
+    public long replicaBytes;
+
+    public int openTransfers;
+    public long stubCacheHits;
+    public long stubCacheMisses;
+
+    // words fetched from other nodes and kept (see WordCache)
+    public int wordCacheSize;
+    public long wordCacheHits;
+    public long wordCacheMisses;
+    public long wordCacheInvalidations;
+
+    // this node's key filter, how many other nodes' filters it has, and
+    // the lookups those answered without going anywhere
+    public String keyFilter;
+    public int knownFilters;
+    public long filterNegatives;
+
+    // requests this node has traced hop by hop (see Tracer)
+    public long traced;
+
+    public String toString() {
+        return "<Node Stats>\n"
+                + "id:\t\t\t" + Ring.toString(node.id) + "\n"
+                + "predecessor:\t\t" + idOf(predecessor) + "\n"
+                + "successor:\t\t" + idOf(successor) + "\n"
+                + "successor list:\t\t" + successorListSize + " nodes\n"
+                + "words:\t\t\t" + entries + " (" + entryBytes + " bytes)\n"
+                + "replica words:\t\t" + replicaEntries
+                        + " (" + replicaBytes + " bytes)\n"
+                + "open transfers:\t\t" + openTransfers + "\n"
+                + "stub cache:\t\t" + stubCacheHits + " hits, "
+                        + stubCacheMisses + " misses\n"
+                + "word cache:\t\t" + wordCacheSize + " words, "
+                        + wordCacheHits + " hits, " + wordCacheMisses 
+                        + " misses (" + hitRate() + "), "
+                        + wordCacheInvalidations + " invalidated\n"
+                + "key filter:\t\t" + keyFilter + "\n"
+                + "known filters:\t\t" + knownFilters + " ("
+                        + filterNegatives + " lookups ruled out)\n"
+                + "traced requests:\t" + traced + "\n";
+    }
+
+    private String hitRate() {
+        long total = wordCacheHits + wordCacheMisses;
+        return total == 0 ? "-" 
+                : String.format("%.1f%%", 100.0 * wordCacheHits / total);
+    }
+
+    private static String idOf(NodeInfo ni) {
+        return ni == null ? "unknown" : Ring.toString(ni.id);
+    }
+}
@@ -0,0 +1,714 @@
+package wagyx001.pa1.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps entries outside the Java heap, so that a node can hold many more
+ * of them without the garbage collector having to trace them.
+ *
+ * Each entry is a record in a direct buffer arena: ring key, word length,
+ * definition length, then the UTF-8 word and definition. A record is
+ * never changed once it's written, so the heap only holds primitive
+ * arrays whatever the number of entries: an open addressing hash table
+ * (record address and folded word hash) to find a word, and the key
+ * order (key and record address, sorted) to find a range. Entries are
+ * only turned back into objects when they're read.
+ *
+ * The key order is a sorted pair of arrays built now and then, plus the
+ * entries added since, appended in the order they came. Entries that
+ * have been replaced or removed are left in it and skipped by checking
+ * with the hash table, until enough of them build up to be worth
+ * dropping. A page binary searches the sorted arrays and only reads the
+ * records it returns, so costs O(log n + page size + entries added
+ * since the last build).
+ *
+ * Replaced and removed records are garbage in the arena until there is
+ * as much garbage as live data, when the buffer with the most garbage
+ * has its live records copied to the end of the arena and is dropped,
+ * one buffer per write until there's less garbage again.
+ *
+ * Writers take turns. Readers don't lock at all: the arrays they read
+ * are only ever swapped for new ones or have slots set atomically, and
+ * the only thing a writer can do to them is drop a buffer they were
+ * about to read from after moving its records, in which case they look
+ * again.
+ */
+class OffHeapEntryStore implements EntryStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float MAX_LOAD = 0.6f;
+
+    // a removed entry's slot, which lookups go on past
+    private static final long TOMBSTONE = -1;
+    // what a lookup finds when a record it needs has just been moved
+    private static final long MOVED = -2;
+
+    // key, word and definition lengths in front of every record
+    private static final int RECORD_HEADER = 16;
+
+    // fewest entries added to the key order before it's sorted again
+    private static final int MIN_ADDED = 1024;
+
+    // size of each arena buffer
+    private final int bufferBytes;
+
+    // the arena: an address is (buffer index << 32 | offset) + 1, so that
+    // 0 can mean an empty slot. A new array is swapped in whenever a
+    // buffer is added or dropped, and buffer indexes aren't reused, so an
+    // address always means the record it was written as or nothing
+    private volatile ByteBuffer[] buffers = new ByteBuffer[0];
+    // garbage bytes in each buffer
+    private long[] garbage = new long[0];
+    private volatile long liveBytes;
+    private long garbageBytes;
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private volatile KeyOrder order = new KeyOrder(new long[0], new long[0]);
+    // entries in the key order that have been replaced or removed
+    private int stale;
+    private volatile int size;
+
+    /**
+     * The hash table. Readers see an address and the hash next to it
+     * written before it; a writer that outgrows the table builds a new one
+     */
+    private static class Table {
+        final AtomicLongArray addrs;
+        final int[] hashes;
+        // live and removed slots
+        int used;
+
+        Table(int capacity) {
+            addrs = new AtomicLongArray(capacity);
+            hashes = new int[capacity];
+        }
+    }
+
+    /**
+     * The key order: entries sorted by key, and the ones added since
+     */
+    private static class KeyOrder {
+        final long[] keys;
+        final long[] addrs;
+        final long[] addedKeys;
+        final long[] addedAddrs;
+        // set after the arrays, so readers only look at what's filled in
+        volatile int added;
+
+        KeyOrder(long[] keys, long[] addrs) {
+            this.keys = keys;
+            this.addrs = addrs;
+            int n = Math.max(MIN_ADDED, 4 * (int) Math.sqrt(keys.length));
+            addedKeys = new long[n];
+            addedAddrs = new long[n];
+        }
+    }
+
+    OffHeapEntryStore() {
+        this(Consts.OFFHEAP_BUFFER_BYTES);
+    }
+
+    OffHeapEntryStore(int bufferBytes) {
+        this.bufferBytes = bufferBytes;
+    }
+
+    /**
+     * Arena buffers still in use, i.e. not dropped by compaction
+     */
+    int buffersInUse() {
+        int n = 0;
+        for (ByteBuffer b : buffers) {
+            if (b != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void put(DictionaryEntry e) {
+        int h = HeapEntryStore.foldedHash(e.getWord());
+        Table t = table;
+        int slot = findSlot(t, e.getWord(), h);
+        long addr = write(e);
+        if (slot >= 0) {
+            long old = t.addrs.get(slot);
+            t.addrs.set(slot, addr);
+            discard(old);
+            stale++;
+        } else {
+            if (t.used + 1 > t.addrs.length() * MAX_LOAD) {
+                t = rehash(size + 1);
+            }
+            insert(t, addr, h);
+            size++;
+        }
+        addToOrder(e.getKey(), addr);
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void load(ArrayList<DictionaryEntry> sorted) {
+        if (size > 0) {
+            for (DictionaryEntry e : sorted) {
+                put(e);
+            }
+            return;
+        }
+        // already in key order, so that's the key order
+        Table t = rehash(sorted.size());
+        stale = 0;
+        long[] keys = new long[sorted.size()];
+        long[] addrs = new long[sorted.size()];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            DictionaryEntry e = sorted.get(i);
+            int h = HeapEntryStore.foldedHash(e.getWord());
+            int slot = findSlot(t, e.getWord(), h);
+            keys[i] = e.getKey();
+            addrs[i] = write(e);
+            if (slot >= 0) {
+                // the same word again, which replaces it
+                discard(t.addrs.get(slot));
+                t.addrs.set(slot, addrs[i]);
+                stale++;
+            } else {
+                insert(t, addrs[i], h);
+                n++;
+            }
+        }
+        order = new KeyOrder(keys, addrs);
+        size = n;
+    }
+
+    @Override
+    public DictionaryEntry get(String word) {
+        int h = HeapEntryStore.foldedHash(word);
+        while (true) {
+            long addr = findAddr(table, word, h);
+            if (addr == 0) {
+                return null;
+            }
+            DictionaryEntry e = addr == MOVED ? null : read(addr);
+            if (e != null) {
+                return e;
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(String word) {
+        Table t = table;
+        int slot = findSlot(t, word, HeapEntryStore.foldedHash(word));
+        if (slot < 0) {
+            return false;
+        }
+        long old = t.addrs.get(slot);
+        t.addrs.set(slot, TOMBSTONE);
+        size--;
+        stale++;
+        discard(old);
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long dataBytes() {
+        return liveBytes;
+    }
+
+    @Override
+    public ArrayList<DictionaryEntry> all() {
+        // going round from the top key is just key order
+        return page(Ring.MASK, Ring.MASK, null, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public ArrayList<DictionaryEntry> range(long from, long to) {
+        return page(from, to, null, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public ArrayList<DictionaryEntry> page(long from, long to,
+            DictionaryEntry after, int max) {
+        while (true) {
+            ArrayList<DictionaryEntry> page = tryPage(from, to, after, max);
+            if (page != null) {
+                return page;
+            }
+        }
+    }
+
+    /**
+     * A page, or null if a writer moved records out from under it
+     */
+    private ArrayList<DictionaryEntry> tryPage(long from, long to,
+            DictionaryEntry after, int max) {
+        KeyOrder o = order;
+        Table t = table;
+        long last = position(from, to);
+        long first = after == null ? 0 : position(from, after.getKey());
+        RingOrder ringOrder = new RingOrder(from);
+        ArrayList<DictionaryEntry> page = new ArrayList<DictionaryEntry>();
+
+        // the sorted entries going round from the first key, until there
+        // are enough of them (and all the ones at the key that made it)
+        int n = o.keys.length;
+        int start = lowerBound(o.keys, (from + 1 + first) & Ring.MASK);
+        long bound = last;
+        boolean full = false;
+        for (int i = 0; i < n; i++) {
+            int at = (start + i) % n;
+            long pos = position(from, o.keys[at]);
+            if (Ring.compare(pos, first) < 0 || Ring.compare(pos, last) > 0
+                    || (full && pos != bound)) {
+                break;
+            }
+            if (!addCurrent(t, o.addrs[at], after, ringOrder, page)) {
+                return null;
+            }
+            if (!full && page.size() >= max) {
+                full = true;
+                bound = pos;
+            }
+        }
+        // and the ones added since that come before where that got to
+        int added = o.added;
+        for (int i = 0; i < added; i++) {
+            long pos = position(from, o.addedKeys[i]);
+            if (Ring.compare(pos, first) >= 0 && Ring.compare(pos, bound) <= 0
+                    && !addCurrent(t, o.addedAddrs[i], after, ringOrder, page)) {
+                return null;
+            }
+        }
+        Collections.sort(page, ringOrder);
+        // a word replaced since the sort can be in there twice
+        ArrayList<DictionaryEntry> result = new ArrayList<DictionaryEntry>(
+                Math.min(page.size(), max));
+        for (DictionaryEntry e : page) {
+            if (result.size() == max) {
+                break;
+            }
+            if (result.isEmpty() || ringOrder.compare(
+                    result.get(result.size() - 1), e) != 0) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the entry for the word in a record, as it is now, to a page
+     * (unless it's been removed since, is already on the end of the page,
+     * or doesn't come after <code>after</code>).
+     * @return false if a record it needed has been moved
+     */
+    private boolean addCurrent(Table t, long addr, DictionaryEntry after,
+            RingOrder ringOrder, ArrayList<DictionaryEntry> page) {
+        DictionaryEntry e = read(addr);
+        if (e == null) {
+            return false;
+        }
+        long now = findAddr(t, e.getWord(),
+                HeapEntryStore.foldedHash(e.getWord()));
+        if (now == MOVED) {
+            return false;
+        }
+        if (now == 0) {
+            return true;
+        }
+        if (now != addr) {
+            e = read(now);
+            if (e == null) {
+                return false;
+            }
+        }
+        if (after != null && ringOrder.compare(e, after) <= 0) {
+            return true;
+        }
+        // the sorted entries come a key at a time, so an older copy of the
+        // word is with the others at its key
+        for (int i = page.size() - 1; i >= 0
+                && page.get(i).getKey() == e.getKey(); i--) {
+            if (page.get(i).getWord().equalsIgnoreCase(e.getWord())) {
+                return true;
+            }
+        }
+        page.add(e);
+        return true;
+    }
+
+    /**
+     * Index of the first key that isn't below the given one
+     */
+    private static int lowerBound(long[] keys, long key) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Ring.compare(keys[mid], key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == keys.length ? 0 : lo;
+    }
+
+    /**
+     * Where a key comes going round the ring from just after base: base + 1
+     * is 0 and base itself is last, so the interval (base, x] is the keys
+     * at positions up to position(base, x) (unsigned)
+     */
+    private static long position(long base, long key) {
+        return (key - base - 1) & Ring.MASK;
+    }
+
+    /**
+     * Orders entries by their position going round the ring from a base,
+     * then case-insensitively by word
+     */
+    private static class RingOrder implements Comparator<DictionaryEntry> {
+
+        private final long base;
+
+        RingOrder(long base) {
+            this.base = base;
+        }
+
+        @Override
+        public int compare(DictionaryEntry a, DictionaryEntry b) {
+            int c = Ring.compare(position(base, a.getKey()),
+                    position(base, b.getKey()));
+            if (c != 0) {
+                return c;
+            }
+            return HeapEntryStore.KeyOrder.compareWords(a, b);
+        }
+    }
+
+    /**
+     * Address of the record for the given word, 0 if it isn't in the
+     * table, or MOVED if a record on the way has just been moved
+     */
+    private long findAddr(Table t, String word, int h) {
+        AtomicLongArray a = t.addrs;
+        int mask = a.length() - 1;
+        long addr;
+        for (int i = h & mask, n = 0; (addr = a.get(i)) != 0 && n < a.length();
+                i = (i + 1) & mask, n++) {
+            if (addr == TOMBSTONE || t.hashes[i] != h) {
+                continue;
+            }
+            String found = readWord(addr);
+            if (found == null) {
+                return MOVED;
+            }
+            if (found.equalsIgnoreCase(word)) {
+                return addr;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Slot holding the given word, or -1. Only for writers, who never
+     * see a moved record
+     */
+    private int findSlot(Table t, String word, int h) {
+        AtomicLongArray a = t.addrs;
+        int mask = a.length() - 1;
+        long addr;
+        for (int i = h & mask; (addr = a.get(i)) != 0; i = (i + 1) & mask) {
+            if (addr != TOMBSTONE && t.hashes[i] == h
+                    && readWord(addr).equalsIgnoreCase(word)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void insert(Table t, long addr, int h) {
+        AtomicLongArray a = t.addrs;
+        int mask = a.length() - 1;
+        int i = h & mask;
+        long at;
+        while ((at = a.get(i)) != 0 && at != TOMBSTONE) {
+            i = (i + 1) & mask;
+        }
+        if (at == 0) {
+            t.used++;
+        }
+        t.hashes[i] = h;
+        a.set(i, addr);
+    }
+
+    /**
+     * Swap in a new table, without the removed slots, big enough for the
+     * given number of entries
+     */
+    private Table rehash(int entries) {
+        int capacity = INITIAL_CAPACITY;
+        while (entries > capacity * MAX_LOAD / 2) {
+            capacity *= 2;
+        }
+        Table old = table;
+        Table t = new Table(capacity);
+        for (int i = 0; i < old.addrs.length(); i++) {
+            long addr = old.addrs.get(i);
+            if (addr != 0 && addr != TOMBSTONE) {
+                insert(t, addr, old.hashes[i]);
+            }
+        }
+        table = t;
+        return t;
+    }
+
+    /**
+     * Note a new record in the key order, sorting the added ones in when
+     * there's no room left for them
+     */
+    private void addToOrder(long key, long addr) {
+        KeyOrder o = order;
+        if (o.added == o.addedKeys.length) {
+            o = rebuildOrder(-1, null, null);
+        }
+        int i = o.added;
+        o.addedKeys[i] = key;
+        o.addedAddrs[i] = addr;
+        o.added = i + 1;
+    }
+
+    /**
+     * Swap in a new key order with the added entries sorted in, and the
+     * replaced and removed ones left out if there are a lot of them. The
+     * records of the given buffer are being moved: the ones that were
+     * moved are at their new addresses, and the rest left out
+     */
+    private KeyOrder rebuildOrder(int movedBuffer, long[] movedFrom,
+            long[] movedTo) {
+        KeyOrder o = order;
+        boolean dropStale = stale > size / 2;
+        int added = o.added;
+        Integer[] sorted = new Integer[added];
+        for (int i = 0; i < added; i++) {
+            sorted[i] = i;
+        }
+        final long[] addedKeys = o.addedKeys;
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Ring.compare(addedKeys[a], addedKeys[b]);
+            }
+        });
+        long[] keys = new long[o.keys.length + added];
+        long[] addrs = new long[keys.length];
+        Table t = table;
+        int n = 0;
+        for (int i = 0, j = 0; i < o.keys.length || j < added; ) {
+            long key;
+            long addr;
+            if (j == added || (i < o.keys.length
+                    && Ring.compare(o.keys[i], addedKeys[sorted[j]]) <= 0)) {
+                key = o.keys[i];
+                addr = o.addrs[i++];
+            } else {
+                key = addedKeys[sorted[j]];
+                addr = o.addedAddrs[sorted[j++]];
+            }
+            if (movedFrom != null && bufferOf(addr) == movedBuffer) {
+                int k = Arrays.binarySearch(movedFrom, addr);
+                if (k < 0) {
+                    continue;
+                }
+                addr = movedTo[k];
+            }
+            if (dropStale) {
+                String word = readWord(addr);
+                int slot = findSlot(t, word, HeapEntryStore.foldedHash(word));
+                if (slot < 0 || t.addrs.get(slot) != addr) {
+                    continue;
+                }
+            }
+            keys[n] = key;
+            addrs[n++] = addr;
+        }
+        if (dropStale) {
+            stale = 0;
+        }
+        o = new KeyOrder(Arrays.copyOf(keys, n), Arrays.copyOf(addrs, n));
+        order = o;
+        return o;
+    }
+
+    /**
+     * Append a record for an entry to the arena, returning its address
+     */
+    private long write(DictionaryEntry e) {
+        byte[] word = e.getWord().getBytes(StandardCharsets.UTF_8);
+        byte[] definition = e.getDefinition().getBytes(StandardCharsets.UTF_8);
+        return write(e.getKey(), word, definition);
+    }
+
+    private long write(long key, byte[] word, byte[] definition) {
+        int length = RECORD_HEADER + word.length + definition.length;
+        ByteBuffer[] bufs = buffers;
+        ByteBuffer buf = bufs.length == 0 ? null : bufs[bufs.length - 1];
+        if (buf == null || buf.remaining() < length) {
+            buf = ByteBuffer.allocateDirect(
+                    Math.max(bufferBytes, length));
+            bufs = Arrays.copyOf(bufs, bufs.length + 1);
+            bufs[bufs.length - 1] = buf;
+            garbage = Arrays.copyOf(garbage, bufs.length);
+            buffers = bufs;
+        }
+        long addr = ((long) (bufs.length - 1) << 32 | buf.position()) + 1;
+        buf.putLong(key);
+        buf.putInt(word.length);
+        buf.putInt(definition.length);
+        buf.put(word);
+        buf.put(definition);
+        liveBytes += length;
+        return addr;
+    }
+
+    /**
+     * Mark a record as garbage
+     */
+    private void discard(long addr) {
+        ByteBuffer buf = buffers[bufferOf(addr)];
+        int length = recordLength(buf, offsetOf(addr));
+        liveBytes -= length;
+        garbageBytes += length;
+        garbage[bufferOf(addr)] += length;
+    }
+
+    /**
+     * Once there's as much garbage as there is live data, move the live
+     * records out of the buffer with the most garbage and drop it
+     */
+    private void compactIfNeeded() {
+        if (garbageBytes <= liveBytes
+                || garbageBytes <= bufferBytes) {
+            return;
+        }
+        ByteBuffer[] bufs = buffers;
+        int victim = -1;
+        // not the one being written to
+        for (int i = 0; i < bufs.length - 1; i++) {
+            if (bufs[i] != null
+                    && (victim < 0 || garbage[i] > garbage[victim])) {
+                victim = i;
+            }
+        }
+        if (victim >= 0) {
+            compact(victim);
+        }
+    }
+
+    private void compact(int victim) {
+        ByteBuffer buf = buffers[victim];
+        Table t = table;
+        long[] movedFrom = new long[16];
+        long[] movedTo = new long[16];
+        int moved = 0;
+        long movedBytes = 0;
+        int end = buf.position();
+        for (int off = 0; off < end; off += recordLength(buf, off)) {
+            long addr = ((long) victim << 32 | off) + 1;
+            String word = readWord(addr);
+            int slot = findSlot(t, word, HeapEntryStore.foldedHash(word));
+            if (slot < 0 || t.addrs.get(slot) != addr) {
+                continue;
+            }
+            byte[] wordBytes = new byte[buf.getInt(off + 8)];
+            byte[] definition = new byte[buf.getInt(off + 12)];
+            get(buf, off + RECORD_HEADER, wordBytes);
+            get(buf, off + RECORD_HEADER + wordBytes.length, definition);
+            long to = write(buf.getLong(off), wordBytes, definition);
+            t.addrs.set(slot, to);
+            if (moved == movedFrom.length) {
+                movedFrom = Arrays.copyOf(movedFrom, moved * 2);
+                movedTo = Arrays.copyOf(movedTo, moved * 2);
+            }
+            // in address order, since the buffer is walked front to back
+            movedFrom[moved] = addr;
+            movedTo[moved++] = to;
+            movedBytes += recordLength(buf, off);
+        }
+        rebuildOrder(victim, Arrays.copyOf(movedFrom, moved),
+                Arrays.copyOf(movedTo, moved));
+        // the moved records were counted again as they were written
+        liveBytes -= movedBytes;
+        garbageBytes -= garbage[victim];
+        garbage[victim] = 0;
+        ByteBuffer[] bufs = buffers.clone();
+        bufs[victim] = null;
+        buffers = bufs;
+    }
+
+    private static int bufferOf(long addr) {
+        return (int) ((addr - 1) >>> 32);
+    }
+
+    private static int offsetOf(long addr) {
+        return (int) (addr - 1);
+    }
+
+    private static int recordLength(ByteBuffer buf, int off) {
+        return RECORD_HEADER + buf.getInt(off + 8) + buf.getInt(off + 12);
+    }
+
+    /**
+     * The word in a record, or null if its buffer has been dropped
+     */
+    private String readWord(long addr) {
+        ByteBuffer buf = buffers[bufferOf(addr)];
+        if (buf == null) {
+            return null;
+        }
+        int off = offsetOf(addr);
+        byte[] word = new byte[buf.getInt(off + 8)];
+        get(buf, off + RECORD_HEADER, word);
+        return new String(word, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Turn a record back into an entry, or null if its buffer has been
+     * dropped
+     */
+    private DictionaryEntry read(long addr) {
+        ByteBuffer buf = buffers[bufferOf(addr)];
+        if (buf == null) {
+            return null;
+        }
+        int off = offsetOf(addr);
+        byte[] word = new byte[buf.getInt(off + 8)];
+        byte[] definition = new byte[buf.getInt(off + 12)];
+        get(buf, off + RECORD_HEADER, word);
+        get(buf, off + RECORD_HEADER + word.length, definition);
+        return new DictionaryEntry(new String(word, StandardCharsets.UTF_8),
+                new String(definition, StandardCharsets.UTF_8),
+                buf.getLong(off));
+    }
+
+    /**
+     * Absolute bulk get, without moving the buffer's position
+     */
+    private static void get(ByteBuffer buf, int off, byte[] dst) {
+        ByteBuffer view = buf.duplicate();
+        view.position(off);
+        view.get(dst);
+    }
+}
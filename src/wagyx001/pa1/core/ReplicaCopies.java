@@ -0,0 +1,174 @@
+package wagyx001.pa1.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The copies a node keeps of its predecessors' words, kept apart by the
+ * node that owns them along with the range of keys that node last told
+ * us it owns, (from, owner].
+ *
+ * A copy is only read while its owner still claims the key, so copies
+ * left behind when an owner's range shrinks aren't served; they're
+ * dropped when the owner tells us its new range. All of an owner's
+ * copies go when it no longer sends us any (<code>drop</code>).
+ * Lookups don't lock.
+ */
+public class ReplicaCopies {
+
+    private final ConcurrentHashMap<NodeInfo, Copies> byOwner =
+            new ConcurrentHashMap<NodeInfo, Copies>();
+
+    private static class Copies {
+        final NodeInfo owner;
+        final WordDictionary dictionary = new WordDictionary();
+        // start of the owner's range, its own id until it tells us
+        // (which is the whole ring)
+        volatile long from;
+        // bumped whenever the owner sends us something
+        volatile long stamp;
+
+        Copies(NodeInfo owner) {
+            this.owner = owner;
+            this.from = owner.id;
+        }
+
+        boolean covers(long key) {
+            return Ring.inHalfOpen(key, from, owner.id);
+        }
+    }
+
+    /**
+     * Keep copies of words owned by owner, whose range now starts after
+     * from. from == owner.id means the owner doesn't know, so the range
+     * we have is kept
+     */
+    public void add(NodeInfo owner, long from, ArrayList<DictionaryEntry> entries) {
+        Copies c;
+        while (true) {
+            c = byOwner.get(owner);
+            if (c == null) {
+                Copies fresh = new Copies(owner);
+                c = byOwner.putIfAbsent(owner, fresh);
+                if (c == null) {
+                    c = fresh;
+                }
+            }
+            synchronized (c) {
+                // unless it was dropped while we weren't looking
+                if (byOwner.get(owner) == c) {
+                    addTo(c, from, entries);
+                    return;
+                }
+            }
+        }
+    }
+
+    // with c locked
+    private void addTo(Copies c, long from, ArrayList<DictionaryEntry> entries) {
+        c.stamp++;
+        if (from != c.owner.id && from != c.from) {
+            c.from = from;
+            // whatever the owner no longer has
+            for (DictionaryEntry e
+                    : c.dictionary.getEntriesInRange(c.owner.id, from)) {
+                c.dictionary.removeEntry(e);
+            }
+        }
+        for (DictionaryEntry e : entries) {
+            c.dictionary.addEntry(e);
+        }
+    }
+
+    /**
+     * Look a word up in the copies of whichever owner claims it. If more
+     * than one does (one of them hasn't caught up with a join yet), the
+     * nearest owner after the key is the one to believe
+     */
+    public DictionaryEntry getEntry(String word) {
+        long key = Ring.hash(word);
+        Copies best = null;
+        for (Copies c : byOwner.values()) {
+            if (c.covers(key) && (best == null
+                    || Ring.compare(Ring.distance(key, c.owner.id),
+                            Ring.distance(key, best.owner.id)) < 0)) {
+                best = c;
+            }
+        }
+        return best == null ? null : best.dictionary.getEntry(word);
+    }
+
+    /**
+     * Take out every copy with a key in (from, to], whoever it's from,
+     * as those keys are now ours. Owners in that range are gone (or they'd
+     * be between us and our predecessor), so the rest of theirs go too
+     */
+    public ArrayList<DictionaryEntry> takeRange(long from, long to) {
+        ArrayList<DictionaryEntry> taken = new ArrayList<DictionaryEntry>();
+        Iterator<Copies> it = byOwner.values().iterator();
+        while (it.hasNext()) {
+            Copies c = it.next();
+            synchronized (c) {
+                for (DictionaryEntry e
+                        : c.dictionary.getEntriesInRange(from, to)) {
+                    c.dictionary.removeEntry(e);
+                    taken.add(e);
+                }
+                if (Ring.inHalfOpen(c.owner.id, from, to)) {
+                    it.remove();
+                }
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * The owners we have copies from
+     */
+    public ArrayList<NodeInfo> owners() {
+        return new ArrayList<NodeInfo>(byOwner.keySet());
+    }
+
+    /**
+     * How many times owner has sent us something, for <code>drop</code>
+     */
+    public long stamp(NodeInfo owner) {
+        Copies c = byOwner.get(owner);
+        return c == null ? -1 : c.stamp;
+    }
+
+    /**
+     * Drop all of owner's copies, unless it's sent us more since stamp
+     * was taken. Returns how many were dropped
+     */
+    public int drop(NodeInfo owner, long stamp) {
+        Copies c = byOwner.get(owner);
+        if (c == null) {
+            return 0;
+        }
+        synchronized (c) {
+            if (c.stamp != stamp) {
+                return 0;
+            }
+            byOwner.remove(owner, c);
+            return c.dictionary.size();
+        }
+    }
+
+    public int size() {
+        int n = 0;
+        for (Copies c : byOwner.values()) {
+            n += c.dictionary.size();
+        }
+        return n;
+    }
+
+    public long dataBytes() {
+        long n = 0;
+        for (Copies c : byOwner.values()) {
+            n += c.dictionary.dataBytes();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,108 @@
+package wagyx001.pa1.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which replica of a key to read from.
+ *
+ * For every node we read from we keep a moving average of how long its
+ * reads take (nearness) and how many of our reads it has in flight
+ * (load). Replicas are tried lowest score first, where the score is the
+ * average latency scaled by the number in flight. Nodes we've never read
+ * from score zero so they get tried, and a node that fails gets a big
+ * penalty so we move off it.
+ */
+public class ReplicaSelector {
+
+    // weight of the newest sample in the latency average
+    private static final double ALPHA = 0.2;
+    // latency (ns) charged to a node when a read from it fails
+    private static final double FAILURE_PENALTY_NANOS = 1e9;
+    // forget everything once we're tracking this many nodes
+    private static final int MAX_TRACKED = 4096;
+
+    private final ConcurrentHashMap<NodeInfo, Stats> stats =
+            new ConcurrentHashMap<NodeInfo, Stats>();
+    private final Random rand = new Random();
+
+    private static class Stats {
+        volatile double avgNanos;
+        final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    /**
+     * The given replicas, best one to read from first
+     */
+    public ArrayList<NodeInfo> order(List<NodeInfo> replicas) {
+        ArrayList<NodeInfo> ordered = new ArrayList<NodeInfo>(replicas);
+        // shuffle first so that replicas with equal scores share the load
+        Collections.shuffle(ordered, rand);
+        Collections.sort(ordered, new Comparator<NodeInfo>() {
+            @Override
+            public int compare(NodeInfo a, NodeInfo b) {
+                return Double.compare(score(a), score(b));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * A read from the node is starting
+     */
+    public void started(NodeInfo ni) {
+        get(ni).inFlight.incrementAndGet();
+    }
+
+    /**
+     * A read from the node finished in the given time
+     */
+    public void finished(NodeInfo ni, long nanos) {
+        Stats s = get(ni);
+        s.inFlight.decrementAndGet();
+        sample(s, nanos);
+    }
+
+    /**
+     * A read from the node failed
+     */
+    public void failed(NodeInfo ni) {
+        Stats s = get(ni);
+        s.inFlight.decrementAndGet();
+        sample(s, FAILURE_PENALTY_NANOS);
+    }
+
+    private double score(NodeInfo ni) {
+        Stats s = stats.get(ni);
+        if (s == null) {
+            return 0;
+        }
+        return s.avgNanos * (1 + s.inFlight.get());
+    }
+
+    private void sample(Stats s, double nanos) {
+        // racy, but a lost sample only makes the average a little staler
+        s.avgNanos = s.avgNanos == 0
+                ? nanos : ALPHA * nanos + (1 - ALPHA) * s.avgNanos;
+    }
+
+    private Stats get(NodeInfo ni) {
+        Stats s = stats.get(ni);
+        if (s == null) {
+            if (stats.size() >= MAX_TRACKED) {
+                stats.clear();
+            }
+            Stats fresh = new Stats();
+            s = stats.putIfAbsent(ni, fresh);
+            if (s == null) {
+                s = fresh;
+            }
+        }
+        return s;
+    }
+}
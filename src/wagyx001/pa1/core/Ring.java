@@ -0,0 +1,104 @@
+package wagyx001.pa1.core;
+
+/**
+ * Arithmetic on the Chord identifier ring.
+ *
+ * Ids are unsigned M bit values kept in a <code>long</code>, so with M = 64
+ * they use the whole range of the type and must be compared with
+ * <code>Long.compareUnsigned</code>. All of the interval tests here go
+ * clockwise around the ring from <code>from</code> to <code>to</code>.
+ */
+public class Ring {
+
+    // number of bits in an id, and the mask that keeps a value within them
+    public static final int M = Consts.M;
+    public static final long MASK = M == 64 ? -1L : (1L << M) - 1;
+
+    private static final RingHash hashFunction;
+
+    static {
+        if (M < 1 || M > 64) {
+            throw new IllegalStateException(
+                    "ring size must be between 1 and 64 bits, not " + M);
+        }
+        if ("sha1".equalsIgnoreCase(Consts.RING_HASH)) {
+            hashFunction = new Sha1RingHash();
+        } else if ("murmur".equalsIgnoreCase(Consts.RING_HASH)) {
+            hashFunction = new MurmurRingHash();
+        } else {
+            throw new IllegalStateException(
+                    "unknown ring hash: " + Consts.RING_HASH);
+        }
+    }
+
+    private Ring() {
+    }
+
+    /**
+     * Hash a string (word or node address) to its id on the ring
+     */
+    public static long hash(CharSequence val) {
+        return hashFunction.hash(val, M);
+    }
+
+    /**
+     * id + delta, wrapped around the ring
+     */
+    public static long add(long id, long delta) {
+        return (id + delta) & MASK;
+    }
+
+    /**
+     * Start of the i'th finger (1 based) of the node with the given id,
+     * i.e. id + 2^(i-1) mod 2^M
+     */
+    public static long fingerStart(long id, int i) {
+        return add(id, 1L << (i - 1));
+    }
+
+    /**
+     * Unsigned comparison of two ids
+     */
+    public static int compare(long a, long b) {
+        return Long.compareUnsigned(a, b);
+    }
+
+    /**
+     * Clockwise distance from <code>from</code> to <code>to</code>
+     */
+    public static long distance(long from, long to) {
+        return (to - from) & MASK;
+    }
+
+    /**
+     * True if key is in the half open interval (from, to].
+     * If from == to the interval is the whole ring.
+     */
+    public static boolean inHalfOpen(long key, long from, long to) {
+        if (from == to) {
+            return true;
+        }
+        long d = distance(from, key);
+        return d != 0 && Long.compareUnsigned(d, distance(from, to)) <= 0;
+    }
+
+    /**
+     * True if key is in the open interval (from, to).
+     * If from == to the interval is the whole ring except that id.
+     */
+    public static boolean inOpen(long key, long from, long to) {
+        if (from == to) {
+            return key != from;
+        }
+        long d = distance(from, key);
+        return d != 0 && Long.compareUnsigned(d, distance(from, to)) < 0;
+    }
+
+    public static String toString(long id) {
+        return Long.toUnsignedString(id);
+    }
+
+    public static long parse(String id) {
+        return Long.parseUnsignedLong(id.trim());
+    }
+}
@@ -0,0 +1,17 @@
+package wagyx001.pa1.core;
+
+/**
+ * A deterministic hash function that places strings (words, node addresses)
+ * on the identifier ring.
+ *
+ * Implementations must return the same value for the same string on every
+ * call and in every JVM, ignore case (so that "Word" and "word" land on the
+ * same node), and only use the low <code>bits</code> bits of the result.
+ */
+public interface RingHash {
+
+    /**
+     * Hash the given characters to an unsigned id in [0, 2^bits)
+     */
+    long hash(CharSequence val, int bits);
+}
@@ -0,0 +1,94 @@
+package wagyx001.pa1.core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * A (possibly stale) local picture of which nodes are on the ring.
+ *
+ * The owner of a key is the first known node clockwise from it, so as long
+ * as the view is complete a key can be sent straight to its owner. The view
+ * is filled from the SuperNode and the paths that <code>resolveKey</code>
+ * returns, and nodes are dropped from it when calls on them fail.
+ */
+public class RingView {
+
+    private final TreeMap<Long, NodeInfo> nodes;
+    private final Random rand = new Random();
+
+    public RingView() {
+        nodes = new TreeMap<Long, NodeInfo>(new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return Ring.compare(a, b);
+            }
+        });
+    }
+
+    /**
+     * Replace the whole view with the given nodes
+     */
+    public synchronized void reset(ArrayList<NodeInfo> nis) {
+        nodes.clear();
+        learnAll(nis);
+    }
+
+    public synchronized void learn(NodeInfo ni) {
+        nodes.put(ni.id, ni);
+    }
+
+    public synchronized void learnAll(ArrayList<NodeInfo> nis) {
+        for (NodeInfo ni : nis) {
+            nodes.put(ni.id, ni);
+        }
+    }
+
+    /**
+     * Drop a node from the view (if the view still has that same node)
+     */
+    public synchronized void forget(NodeInfo ni) {
+        NodeInfo known = nodes.get(ni.id);
+        if (ni.equals(known)) {
+            nodes.remove(ni.id);
+        }
+    }
+
+    /**
+     * The node we think owns the key, i.e. the first node at or after it
+     * on the ring, or null if we don't know of any nodes
+     */
+    public synchronized NodeInfo ownerOf(long key) {
+        Map.Entry<Long, NodeInfo> e = nodes.ceilingEntry(key);
+        if (e == null) {
+            e = nodes.firstEntry();
+        }
+        return e == null ? null : e.getValue();
+    }
+
+    /**
+     * Any node in the view, or null if it's empty
+     */
+    public synchronized NodeInfo any() {
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        int skip = rand.nextInt(nodes.size());
+        for (NodeInfo ni : nodes.values()) {
+            if (skip-- == 0) {
+                return ni;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+}
@@ -0,0 +1,39 @@
+package wagyx001.pa1.core;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * Java RMI. Nodes and the SuperNode are bound by name in the RMI registry
+ * of the host they run on, so there can only be one node per host.
+ */
+public class RmiTransport implements Transport {
+
+    @Override
+    public INode getNode(NodeInfo ni) throws RemoteException, NotBoundException {
+        Registry registry = LocateRegistry.getRegistry(ni.ipAddress);
+        return (INode) registry.lookup(Consts.NODE_RMI_DESC);
+    }
+
+    @Override
+    public ISuperNode getSuperNode() throws RemoteException, NotBoundException {
+        Registry registry = LocateRegistry.getRegistry(Consts.SUPERNODE_URL);
+        return (ISuperNode) registry.lookup(Consts.SUPERNODE_RMI_DESC);
+    }
+
+    @Override
+    public void exportNode(INode node, NodeInfo ni) throws RemoteException {
+        INode stub = (INode) UnicastRemoteObject.exportObject(node, 0);
+        LocateRegistry.getRegistry().rebind(Consts.NODE_RMI_DESC, stub);
+    }
+
+    @Override
+    public void exportSuperNode(ISuperNode superNode) throws RemoteException {
+        ISuperNode stub =
+                (ISuperNode) UnicastRemoteObject.exportObject(superNode, 0);
+        LocateRegistry.getRegistry().rebind(Consts.SUPERNODE_RMI_DESC, stub);
+    }
+}
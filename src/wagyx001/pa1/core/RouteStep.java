@@ -0,0 +1,31 @@
+package wagyx001.pa1.core;
+
+import java.io.Serializable;
+
+/**
+ * One step of looking a key up iteratively: either the node that owns the
+ * key, or the next node to ask about it.
+ */
+public class RouteStep implements Serializable {
+
+    static final long serialVersionUID = 48120593L;
+
+    public boolean owner;
+    public NodeInfo node;
+    // time (us) the node that answered spent working it out
+    public long micros = -1;
+
+    public static RouteStep owner(NodeInfo node) {
+        RouteStep s = new RouteStep();
+        s.owner = true;
+        s.node = node;
+        return s;
+    }
+
+    public static RouteStep next(NodeInfo node) {
+        RouteStep s = new RouteStep();
+        s.owner = false;
+        s.node = node;
+        return s;
+    }
+}
@@ -0,0 +1,78 @@
+package wagyx001.pa1.core;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+
+/**
+ * Reply to a request sent straight to the node that the caller thinks owns
+ * a key.
+ *
+ * If the node does own the key, <code>owner</code> is true and
+ * <code>entry</code> holds the result (for a lookup). Otherwise the node
+ * has done nothing except route the key itself, and <code>path</code> is
+ * what <code>resolveKey</code> returned (real owner first) so the caller
+ * can fix its view of the ring and try again. If the node traced the
+ * request (see <code>Tracer</code>), <code>trace</code> says what it did.
+ *
+ * Sent on the wire in the same compact form as the values it holds, so
+ * the path doesn't cost an ArrayList and a NodeInfo class descriptor.
+ */
+public class RoutedReply implements Externalizable {
+
+    static final long serialVersionUID = 73451982L;
+
+    public boolean owner;
+    public DictionaryEntry entry;
+    public ArrayList<NodeInfo> path;
+    public Trace trace;
+
+    public static RoutedReply owned(DictionaryEntry entry) {
+        RoutedReply r = new RoutedReply();
+        r.owner = true;
+        r.entry = entry;
+        return r;
+    }
+
+    public static RoutedReply notOwned(ArrayList<NodeInfo> path) {
+        RoutedReply r = new RoutedReply();
+        r.owner = false;
+        r.path = path;
+        return r;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeBoolean(owner);
+        out.writeBoolean(entry != null);
+        if (entry != null) {
+            entry.write(out);
+        }
+        Varint.writeInt(out, path == null ? 0 : path.size() + 1);
+        if (path != null) {
+            for (NodeInfo ni : path) {
+                ni.write(out);
+            }
+        }
+        out.writeObject(trace);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) 
+            throws IOException, ClassNotFoundException {
+        owner = in.readBoolean();
+        if (in.readBoolean()) {
+            entry = DictionaryEntry.read(in);
+        }
+        int n = Varint.readInt(in);
+        if (n > 0) {
+            path = new ArrayList<NodeInfo>(n - 1);
+            for (int i = 0; i < n - 1; i++) {
+                path.add(NodeInfo.read(in));
+            }
+        }
+        trace = (Trace) in.readObject();
+    }
+}
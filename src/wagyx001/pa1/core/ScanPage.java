@@ -0,0 +1,67 @@
+package wagyx001.pa1.core;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+
+/**
+ * One page of a scan of a node's dictionary (see
+ * <code>INode.scanEntries</code>).
+ *
+ * <code>resumeToken</code> is passed back to get the next page, and is
+ * null once the scan is done. It's only good for the same key range on
+ * the same node; entries added or removed during a scan may or may not
+ * be seen, but no entry that's there the whole time is missed or
+ * returned twice.
+ */
+public class ScanPage implements Externalizable {
+
+    static final long serialVersionUID = 39182746L;
+
+    public ArrayList<DictionaryEntry> entries;
+    public String resumeToken;
+
+    public ScanPage() {
+    }
+
+    public ScanPage(ArrayList<DictionaryEntry> entries, String resumeToken) {
+        this.entries = entries;
+        this.resumeToken = resumeToken;
+    }
+
+    /**
+     * Token that resumes a scan just after the given entry
+     */
+    public static String tokenAfter(DictionaryEntry last) {
+        // the key is worked out from the word, so the word is all we need
+        return last.getWord();
+    }
+
+    /**
+     * The entry a token resumes after, or null to start at the beginning
+     */
+    public static DictionaryEntry resumeAfter(String token) {
+        return token == null ? null : new DictionaryEntry(token, "");
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        Varint.writeInt(out, entries.size());
+        for (DictionaryEntry e : entries) {
+            e.write(out);
+        }
+        Varint.writeString(out, resumeToken);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int n = Varint.readInt(in);
+        entries = new ArrayList<DictionaryEntry>(n);
+        for (int i = 0; i < n; i++) {
+            entries.add(DictionaryEntry.read(in));
+        }
+        resumeToken = Varint.readString(in);
+    }
+}
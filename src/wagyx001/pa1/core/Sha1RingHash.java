@@ -0,0 +1,80 @@
+package wagyx001.pa1.core;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-1 ring hash, as in the original Chord paper.
+ *
+ * The top <code>bits</code> bits of the digest are used as the id.
+ * Each thread keeps its own digest and output buffer, and characters are
+ * fed to the digest one at a time as UTF-8, so a call doesn't allocate.
+ */
+public class Sha1RingHash implements RingHash {
+
+    private static final int DIGEST_LEN = 20;
+
+    private static final ThreadLocal<MessageDigest> digests =
+            new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("SHA-1");
+                    } catch (NoSuchAlgorithmException ex) {
+                        throw new IllegalStateException(
+                                "SHA-1 is not available: " + ex);
+                    }
+                }
+            };
+
+    private static final ThreadLocal<byte[]> buffers =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[DIGEST_LEN];
+                }
+            };
+
+    @Override
+    public long hash(CharSequence val, int bits) {
+        MessageDigest md = digests.get();
+        byte[] out = buffers.get();
+        for (int i = 0; i < val.length(); i++) {
+            int c = val.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < val.length()) {
+                c = Character.toCodePoint((char) c, val.charAt(++i));
+            }
+            // folded as equalsIgnoreCase does, upper then lower
+            updateUtf8(md, Character.toLowerCase(Character.toUpperCase(c)));
+        }
+        try {
+            md.digest(out, 0, DIGEST_LEN);
+        } catch (DigestException ex) {
+            throw new IllegalStateException("SHA-1 digest failed: " + ex);
+        }
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (out[i] & 0xff);
+        }
+        return h >>> (64 - bits);
+    }
+
+    private static void updateUtf8(MessageDigest md, int cp) {
+        if (cp < 0x80) {
+            md.update((byte) cp);
+        } else if (cp < 0x800) {
+            md.update((byte) (0xc0 | (cp >> 6)));
+            md.update((byte) (0x80 | (cp & 0x3f)));
+        } else if (cp < 0x10000) {
+            md.update((byte) (0xe0 | (cp >> 12)));
+            md.update((byte) (0x80 | ((cp >> 6) & 0x3f)));
+            md.update((byte) (0x80 | (cp & 0x3f)));
+        } else {
+            md.update((byte) (0xf0 | (cp >> 18)));
+            md.update((byte) (0x80 | ((cp >> 12) & 0x3f)));
+            md.update((byte) (0x80 | ((cp >> 6) & 0x3f)));
+            md.update((byte) (0x80 | (cp & 0x3f)));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package wagyx001.pa1.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded cache of remote INode stubs, keyed by NodeInfo (id, ip, port).
+ *
+ * Getting a stub can be expensive (with RMI it's two network round trips
+ * to the node's registry), so we only do it on a miss. Callers should
+ * <code>invalidate</code> a node's stub when a call on it fails with a
+ * <code>RemoteException</code> so that the next call goes back to the
+ * registry. Roughly the least recently used stubs are dropped when the
+ * cache is full (see <code>ApproxLruMap</code>); looking a stub up takes
+ * no lock.
+ *
+ * The stubs handed out count every call made on them in
+ * <code>Metrics</code>: by node (keyed "&lt;ip&gt;:&lt;port&gt;" in the
+ * "calls.to" counter map), by
+ * method with how long it took ("calls.&lt;method&gt;.us"), and the
+ * calls that failed ("calls.failed").
+ */
+public class StubCache {
+
+    private final int capacity;
+    private final ApproxLruMap<NodeInfo, INode> stubs;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static final ConcurrentHashMap<Method, Histogram> callTimes =
+            new ConcurrentHashMap<Method, Histogram>();
+    private static final Counter failedCalls = Metrics.counter("calls.failed");
+    private static final CounterMap callsTo = Metrics.counterMap("calls.to");
+
+    public StubCache(int capacity) {
+        this.capacity = capacity;
+        this.stubs = new ApproxLruMap<NodeInfo, INode>(capacity);
+    }
+
+    /**
+     * Get the stub for the given node, going to the transport only if we
+     * don't already have one
+     */
+    public INode getNode(NodeInfo ni) throws RemoteException, NotBoundException {
+        INode node = stubs.get(ni);
+        if (node != null) {
+            hits.incrementAndGet();
+            return node;
+        }
+        misses.incrementAndGet();
+        node = counted(Transports.get().getNode(ni), ni);
+        stubs.put(ni, node);
+        return node;
+    }
+
+    /**
+     * Wrap a stub so that the calls made on it are counted
+     */
+    private static INode counted(final INode stub, NodeInfo ni) {
+        final String target = ni.ipAddress + ":" + ni.portNumber;
+        return (INode) Proxy.newProxyInstance(INode.class.getClassLoader(),
+                new Class<?>[] { INode.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, final Method method,
+                    Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    } else if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return stub.toString();
+                }
+                callsTo.increment(target);
+                final long start = System.nanoTime();
+                boolean sent = false;
+                try {
+                    Object result = method.invoke(stub, args);
+                    // a call sent without waiting is timed to its reply
+                    sent = NioTransport.whenReplied(
+                            new BiConsumer<Object, Throwable>() {
+                        @Override
+                        public void accept(Object r, Throwable t) {
+                            if (t != null) {
+                                failedCalls.increment();
+                            }
+                            callTime(method).recordSince(start);
+                        }
+                    });
+                    return result;
+                } catch (InvocationTargetException ex) {
+                    failedCalls.increment();
+                    throw ex.getCause();
+                } finally {
+                    if (!sent) {
+                        callTime(method).recordSince(start);
+                    }
+                }
+            }
+        });
+    }
+
+    private static Histogram callTime(Method method) {
+        Histogram h = callTimes.get(method);
+        if (h == null) {
+            h = Metrics.histogram("calls." + method.getName() + ".us");
+            callTimes.putIfAbsent(method, h);
+        }
+        return h;
+    }
+
+    /**
+     * Forget the stub for the given node, e.g. after a call on it failed
+     */
+    public void invalidate(NodeInfo ni) {
+        if (stubs.remove(ni) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    public int size() {
+        return stubs.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return "StubCache[size=" + size() + "/" + capacity
+                + " hits=" + getHits()
+                + " misses=" + getMisses()
+                + " invalidations=" + getInvalidations() + "]";
+    }
+}
@@ -0,0 +1,148 @@
+package wagyx001.pa1.core;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * What happened to one sampled request (see <code>Tracer</code>): each
+ * call the node it came into made on the way to answering it, with when
+ * it started and ended, how long getting the other node's stub took and,
+ * for lookup steps, how long the other node spent on it. What's left of
+ * a hop's time is the network.
+ *
+ * Times are microseconds from when the request came in, going by the
+ * clock of the node it came into.
+ */
+public class Trace implements Serializable {
+
+    static final long serialVersionUID = 30719164L;
+
+    public long id;
+    public String operation;
+    // the word or key the request was about
+    public String subject;
+    public NodeInfo origin;
+    public long startedAt;
+    public long micros = -1;
+    // what answered the request without going to another node, if
+    // anything did (e.g. "word cache")
+    public String answeredBy;
+    public final ArrayList<Hop> hops = new ArrayList<Hop>();
+
+    private transient long startNanos;
+
+    /**
+     * One call made for a traced request
+     */
+    public static class Hop implements Serializable {
+
+        static final long serialVersionUID = 81920375L;
+
+        public NodeInfo node;
+        public String call;
+        public long enter;
+        public long exit = -1;
+        public long stubMicros = -1;
+        // time the other node says it spent, if it says
+        public long remoteMicros = -1;
+        public boolean failed;
+
+        private transient Trace trace;
+    }
+
+    Trace(long id, String operation, String subject, NodeInfo origin) {
+        this.id = id;
+        this.operation = operation;
+        this.subject = subject;
+        this.origin = origin;
+        this.startedAt = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    private long now() {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * Note that a call to the given node is starting. Null-safe, like
+     * the rest of the hop methods: with no trace, there's no hop
+     */
+    public static Hop enter(Trace trace, NodeInfo node, String call) {
+        if (trace == null) {
+            return null;
+        }
+        Hop hop = new Hop();
+        hop.trace = trace;
+        hop.node = node;
+        hop.call = call;
+        hop.enter = trace.now();
+        synchronized (trace.hops) {
+            trace.hops.add(hop);
+        }
+        return hop;
+    }
+
+    /**
+     * Note that the hop's stub has been got, so the call itself starts
+     */
+    public static void stubFound(Hop hop) {
+        if (hop != null) {
+            hop.stubMicros = hop.trace.now() - hop.enter;
+        }
+    }
+
+    /**
+     * Note that the call has come back (or failed)
+     */
+    public static void exit(Hop hop, boolean ok) {
+        if (hop != null) {
+            hop.exit = hop.trace.now();
+            hop.failed = !ok;
+        }
+    }
+
+    /**
+     * Note that the request was answered here, by the given thing
+     */
+    public static void answered(Trace trace, String by) {
+        if (trace != null) {
+            trace.answeredBy = by;
+        }
+    }
+
+    void finish() {
+        micros = now();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("trace ").append(Long.toHexString(id)).append(": ")
+                .append(operation).append(' ').append(subject)
+                .append(" at node ").append(Ring.toString(origin.id))
+                .append(", ").append(new Date(startedAt))
+                .append(", ").append(micros).append("us");
+        if (answeredBy != null) {
+            sb.append(", answered by ").append(answeredBy);
+        }
+        sb.append('\n');
+        synchronized (hops) {
+            for (Hop h : hops) {
+                sb.append(String.format("  %8d %8d  %-20s node %s",
+                        h.enter, h.exit, h.call, Ring.toString(h.node.id)));
+                if (h.stubMicros >= 0) {
+                    sb.append("  stub ").append(h.stubMicros).append("us");
+                }
+                if (h.remoteMicros >= 0) {
+                    sb.append("  remote ").append(h.remoteMicros).append("us");
+                }
+                if (h.failed) {
+                    sb.append("  FAILED");
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
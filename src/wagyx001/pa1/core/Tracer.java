@@ -0,0 +1,79 @@
+package wagyx001.pa1.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks which requests to trace (<code>Consts.TRACE_SAMPLE_RATE</code>
+ * of them) and keeps the last <code>Consts.TRACE_BUFFER_SIZE</code>
+ * finished traces, so slow routes can be looked into afterwards without
+ * logging every request.
+ */
+public class Tracer {
+
+    private final Trace[] buffer;
+    private int next;
+    private long finished;
+
+    public Tracer() {
+        buffer = new Trace[Math.max(1, Consts.TRACE_BUFFER_SIZE)];
+    }
+
+    /**
+     * A new trace if this request is one of the sampled ones, else null
+     */
+    public Trace start(String operation, String subject, NodeInfo origin) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (Consts.TRACE_SAMPLE_RATE <= 0
+                || random.nextDouble() >= Consts.TRACE_SAMPLE_RATE) {
+            return null;
+        }
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        return new Trace(id, operation, subject, origin);
+    }
+
+    /**
+     * Keep a trace now that its request has been answered. Null-safe
+     */
+    public void finish(Trace trace) {
+        if (trace == null) {
+            return;
+        }
+        trace.finish();
+        synchronized (buffer) {
+            buffer[next] = trace;
+            next = (next + 1) % buffer.length;
+            finished++;
+        }
+    }
+
+    /**
+     * Up to max of the latest traces, newest first
+     */
+    public ArrayList<Trace> recent(int max) {
+        ArrayList<Trace> traces = new ArrayList<Trace>();
+        synchronized (buffer) {
+            for (int i = 1; i <= buffer.length && traces.size() < max; i++) {
+                Trace t = buffer[(next - i + buffer.length) % buffer.length];
+                if (t == null) {
+                    break;
+                }
+                traces.add(t);
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * Traces kept since this node started, including ones since pushed
+     * out of the buffer
+     */
+    public long getFinished() {
+        synchronized (buffer) {
+            return finished;
+        }
+    }
+}
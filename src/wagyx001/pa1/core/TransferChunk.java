@@ -0,0 +1,115 @@
+package wagyx001.pa1.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * One piece of a range of keys being handed from one node to another.
+ *
+ * A transfer is a session of chunks numbered from 0, all carrying the
+ * same session id, source node and key range (from, to]. The last chunk
+ * has <code>last</code> set; the receiver only takes the entries on once
+ * it has that one. The entries themselves are gzipped, as a count
+ * followed by length-prefixed UTF-8 words and definitions.
+ */
+public class TransferChunk implements Serializable {
+
+    static final long serialVersionUID = 61294377L;
+
+    public final long sessionId;
+    public final NodeInfo source;
+    public final long from;
+    public final long to;
+    public final int seq;
+    public final boolean last;
+    public final int count;
+    private final byte[] data;
+
+    public TransferChunk(long sessionId, NodeInfo source, long from, long to,
+            int seq, boolean last, List<DictionaryEntry> entries)
+            throws IOException {
+        this.sessionId = sessionId;
+        this.source = source;
+        this.from = from;
+        this.to = to;
+        this.seq = seq;
+        this.last = last;
+        this.count = entries.size();
+        this.data = pack(entries);
+    }
+
+    /**
+     * Unpack the entries in this chunk
+     */
+    public ArrayList<DictionaryEntry> getEntries() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(data)));
+        try {
+            int n = in.readInt();
+            ArrayList<DictionaryEntry> entries = new ArrayList<DictionaryEntry>(n);
+            for (int i = 0; i < n; i++) {
+                entries.add(new DictionaryEntry(readString(in), readString(in)));
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Size of the packed entries in bytes
+     */
+    public int getDataSize() {
+        return data.length;
+    }
+
+    /**
+     * Rough number of bytes an entry takes in a chunk before compression,
+     * used to decide where to cut chunks
+     */
+    public static int rawSize(DictionaryEntry entry) {
+        return 8 + entry.getWord().length() + entry.getDefinition().length();
+    }
+
+    private static byte[] pack(List<DictionaryEntry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeInt(entries.size());
+        for (DictionaryEntry entry : entries) {
+            writeString(out, entry.getWord());
+            writeString(out, entry.getDefinition());
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferChunk[session=" + sessionId + " from node " + source.id
+                + " keys (" + Ring.toString(from) + ", " + Ring.toString(to)
+                + "] #" + seq + (last ? " (last)" : "") + " " + count
+                + " entries, " + data.length + " bytes]";
+    }
+}
@@ -0,0 +1,79 @@
+package wagyx001.pa1.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Collects the chunks of incoming range transfers until each one is
+ * complete.
+ *
+ * Chunks of a session must arrive in order. A session whose sender has
+ * gone quiet for longer than <code>Consts.TRANSFER_SESSION_TIMEOUT_MS</code>
+ * is dropped, and nothing from it is ever handed on.
+ */
+public class TransferReceiver {
+
+    private static class Session {
+        int nextSeq;
+        long touched;
+        final ArrayList<DictionaryEntry> entries = new ArrayList<DictionaryEntry>();
+    }
+
+    private final HashMap<Long, Session> sessions = new HashMap<Long, Session>();
+
+    /**
+     * Take in one chunk.
+     * @return every entry in the session once its last chunk is in,
+     * otherwise null
+     */
+    public ArrayList<DictionaryEntry> receive(TransferChunk chunk)
+            throws IOException {
+        // unpack outside the lock, it's the slow part
+        ArrayList<DictionaryEntry> entries = chunk.getEntries();
+        long now = System.currentTimeMillis();
+        synchronized (sessions) {
+            Session s = sessions.get(chunk.sessionId);
+            if (s == null) {
+                if (chunk.seq != 0) {
+                    throw new IOException("no session for " + chunk);
+                }
+                dropStale(now);
+                s = new Session();
+                sessions.put(chunk.sessionId, s);
+            }
+            if (chunk.seq != s.nextSeq) {
+                sessions.remove(chunk.sessionId);
+                throw new IOException("expected chunk #" + s.nextSeq
+                        + " but got " + chunk);
+            }
+            s.nextSeq++;
+            s.touched = now;
+            s.entries.addAll(entries);
+            if (chunk.last) {
+                sessions.remove(chunk.sessionId);
+                return s.entries;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Number of transfers still waiting for chunks
+     */
+    public int getOpenSessions() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    private void dropStale(long now) {
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().touched > Consts.TRANSFER_SESSION_TIMEOUT_MS) {
+                it.remove();
+            }
+        }
+    }
+}
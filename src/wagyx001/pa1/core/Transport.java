@@ -0,0 +1,34 @@
+package wagyx001.pa1.core;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+/**
+ * How processes reach each other's nodes and the SuperNode, and how they
+ * make their own available. Which one is used is picked with
+ * -Dchord.transport (see <code>Transports</code>); every process in the
+ * system must use the same one.
+ */
+public interface Transport {
+
+    /**
+     * Get a stub for the node at the given address
+     */
+    public INode getNode(NodeInfo ni) throws RemoteException, NotBoundException;
+
+    /**
+     * Get a stub for the SuperNode
+     */
+    public ISuperNode getSuperNode() throws RemoteException, NotBoundException;
+
+    /**
+     * Start taking calls for the given node, which has been given the
+     * given address by the SuperNode
+     */
+    public void exportNode(INode node, NodeInfo ni) throws RemoteException;
+
+    /**
+     * Start taking calls for the SuperNode
+     */
+    public void exportSuperNode(ISuperNode superNode) throws RemoteException;
+}
@@ -0,0 +1,43 @@
+package wagyx001.pa1.core;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Hands out the transport picked with -Dchord.transport=<name>:
+ * "rmi" (the default) or "nio". A process that runs its nodes in
+ * memory (see <code>MemoryTransport</code>) sets its transport itself.
+ */
+public class Transports {
+
+    private static Transport transport;
+
+    public static synchronized Transport get() {
+        if (transport == null) {
+            if (Consts.TRANSPORT.equalsIgnoreCase("rmi")) {
+                transport = new RmiTransport();
+            } else if (Consts.TRANSPORT.equalsIgnoreCase("nio")) {
+                transport = new NioTransport();
+            } else {
+                throw new IllegalArgumentException(
+                        "Unknown transport: " + Consts.TRANSPORT);
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Use the given transport rather than the one -Dchord.transport names
+     */
+    public static synchronized void set(Transport t) {
+        transport = t;
+    }
+
+    /**
+     * Wait for calls made on other threads while carrying out a remote
+     * call, so that the transport can use this thread's place for other
+     * incoming calls meanwhile
+     */
+    public static <T> T join(CompletableFuture<T> f) {
+        return NioTransport.join(f);
+    }
+}
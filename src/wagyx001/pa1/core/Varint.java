@@ -0,0 +1,72 @@
+package wagyx001.pa1.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Variable length encodings used by the compact wire formats.
+ *
+ * Numbers are written seven bits to a byte, low bits first, with the top
+ * bit set on every byte but the last; a ring id of up to 32 bits takes at
+ * most five bytes and a port three. Strings are a varint byte count
+ * (plus one, so that zero can mean null) and then their UTF-8 bytes.
+ */
+public class Varint {
+
+    // longest string we'll read: nothing we write comes near it, and a
+    // bad length mustn't get us to allocate gigabytes
+    private static final int MAX_STRING_BYTES = Consts.NIO_MAX_FRAME_BYTES;
+
+    public static void writeUnsigned(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    public static long readUnsigned(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
+    public static void writeInt(DataOutput out, int v) throws IOException {
+        writeUnsigned(out, v & 0xFFFFFFFFL);
+    }
+
+    public static int readInt(DataInput in) throws IOException {
+        return (int) readUnsigned(in);
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            writeInt(out, 0);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, b.length + 1);
+        out.write(b);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int n = readInt(in);
+        if (n == 0) {
+            return null;
+        }
+        if (n < 0 || n - 1 > MAX_STRING_BYTES) {
+            throw new IOException("bad string length " + (n - 1));
+        }
+        byte[] b = new byte[n - 1];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,262 @@
+package wagyx001.pa1.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of call arguments and results for the NIO transport.
+ *
+ * Each value starts with a one byte tag. The types that make up nearly
+ * all of the traffic (numbers, strings, lists, NodeInfo, DictionaryEntry,
+ * FingerTable, RoutedReply, RouteStep) have their own compact encoding,
+ * the same varint one their Externalizable forms use for RMI; anything
+ * else falls back to Java serialization.
+ *
+ * Values are read from a whole frame, so a count or length that's
+ * negative or more than the bytes left in it is refused before anything
+ * is allocated for it, and serialized values may only be of our own
+ * types, the JDK's collections and boxed values, and exceptions.
+ */
+class WireCodec {
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte STRING = 5;
+    private static final byte BOOLEANS = 6;
+    private static final byte LIST = 7;
+    private static final byte NODE_INFO = 8;
+    private static final byte ENTRY = 9;
+    private static final byte FINGER_TABLE = 10;
+    private static final byte ROUTED_REPLY = 11;
+    private static final byte ROUTE_STEP = 12;
+    private static final byte SERIALIZED = 13;
+
+    private static final ObjectInputFilter SERIALIZED_TYPES =
+            new ObjectInputFilter() {
+        @Override
+        public Status checkInput(FilterInfo info) {
+            Class<?> c = info.serialClass();
+            if (c == null) {
+                return Status.UNDECIDED;
+            }
+            while (c.isArray()) {
+                c = c.getComponentType();
+            }
+            String name = c.getName();
+            if (c.isPrimitive()
+                    || name.startsWith("wagyx001.pa1.core.")
+                    || name.startsWith("java.util.")
+                    || name.startsWith("java.lang.")
+                    || (Throwable.class.isAssignableFrom(c)
+                            && name.startsWith("java."))) {
+                return Status.ALLOWED;
+            }
+            return Status.REJECTED;
+        }
+    };
+
+    static void write(DataOutputStream out, Object v) throws IOException {
+        if (v == null) {
+            out.writeByte(NULL);
+        } else if (v instanceof Boolean) {
+            out.writeByte((Boolean) v ? TRUE : FALSE);
+        } else if (v instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) v);
+        } else if (v instanceof boolean[]) {
+            boolean[] b = (boolean[]) v;
+            out.writeByte(BOOLEANS);
+            out.writeInt(b.length);
+            for (int i = 0; i < b.length; i++) {
+                out.writeBoolean(b[i]);
+            }
+        } else if (v instanceof ArrayList) {
+            List<?> list = (List<?>) v;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object o : list) {
+                write(out, o);
+            }
+        } else if (v instanceof NodeInfo) {
+            out.writeByte(NODE_INFO);
+            writeNodeInfo(out, (NodeInfo) v);
+        } else if (v instanceof DictionaryEntry) {
+            out.writeByte(ENTRY);
+            writeEntry(out, (DictionaryEntry) v);
+        } else if (v instanceof FingerTable) {
+            out.writeByte(FINGER_TABLE);
+            ((FingerTable) v).write(out);
+        } else if (v instanceof RoutedReply) {
+            RoutedReply r = (RoutedReply) v;
+            out.writeByte(ROUTED_REPLY);
+            out.writeBoolean(r.owner);
+            write(out, r.entry);
+            write(out, r.path);
+            write(out, r.trace);
+        } else if (v instanceof RouteStep) {
+            RouteStep s = (RouteStep) v;
+            out.writeByte(ROUTE_STEP);
+            out.writeBoolean(s.owner);
+            writeNodeInfo(out, s.node);
+            out.writeLong(s.micros);
+        } else if (v instanceof Serializable) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(v);
+            oos.close();
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        } else {
+            throw new IOException("can't send a " + v.getClass().getName());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case STRING:
+                return readString(in);
+            case BOOLEANS: {
+                boolean[] b = new boolean[length(in)];
+                for (int i = 0; i < b.length; i++) {
+                    b[i] = in.readBoolean();
+                }
+                return b;
+            }
+            case LIST: {
+                // every element takes at least its tag
+                int n = length(in);
+                ArrayList<Object> list = new ArrayList<Object>(n);
+                for (int i = 0; i < n; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case NODE_INFO:
+                return readNodeInfo(in);
+            case ENTRY:
+                return readEntry(in);
+            case FINGER_TABLE:
+                return FingerTable.read(in);
+            case ROUTED_REPLY: {
+                RoutedReply r = new RoutedReply();
+                r.owner = in.readBoolean();
+                r.entry = (DictionaryEntry) read(in);
+                r.path = (ArrayList<NodeInfo>) read(in);
+                r.trace = (Trace) read(in);
+                return r;
+            }
+            case ROUTE_STEP: {
+                RouteStep s = new RouteStep();
+                s.owner = in.readBoolean();
+                s.node = readNodeInfo(in);
+                s.micros = in.readLong();
+                return s;
+            }
+            case SERIALIZED: {
+                byte[] b = new byte[length(in)];
+                in.readFully(b);
+                ObjectInputStream ois =
+                        new ObjectInputStream(new ByteArrayInputStream(b));
+                ois.setObjectInputFilter(SERIALIZED_TYPES);
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException("can't read a value: " + ex);
+                } finally {
+                    ois.close();
+                }
+            }
+            default:
+                throw new IOException("unknown tag " + tag);
+        }
+    }
+
+    private static void writeNodeInfo(DataOutputStream out, NodeInfo ni)
+            throws IOException {
+        ni.write(out);
+    }
+
+    private static NodeInfo readNodeInfo(DataInputStream in) throws IOException {
+        return NodeInfo.read(in);
+    }
+
+    private static void writeEntry(DataOutputStream out, DictionaryEntry e)
+            throws IOException {
+        e.write(out);
+    }
+
+    private static DictionaryEntry readEntry(DataInputStream in)
+            throws IOException {
+        return DictionaryEntry.read(in);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n == -1) {
+            return null;
+        }
+        byte[] b = new byte[checkLength(in, n)];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a count or length, which can't be more than what's left of the
+     * frame since everything it counts takes at least a byte
+     */
+    private static int length(DataInputStream in) throws IOException {
+        return checkLength(in, in.readInt());
+    }
+
+    private static int checkLength(DataInputStream in, int n)
+            throws IOException {
+        if (n < 0 || n > in.available()) {
+            throw new IOException("bad length " + n + " with "
+                    + in.available() + " bytes left");
+        }
+        return n;
+    }
+}
@@ -0,0 +1,432 @@
+package wagyx001.pa1.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of words a node has fetched from other nodes, so that a
+ * popular word doesn't have to be routed to its owner on every lookup.
+ *
+ * Admission is W-TinyLFU: a new word goes into a small LRU window, and
+ * when it falls out of the window it only gets into the main cache
+ * (a segmented LRU of probation and protected entries) if it has been
+ * asked for more often than the main cache's next victim, going by a
+ * count-min sketch of recent lookups whose counts are halved now and
+ * then so that old popularity fades. One-off lookups therefore can't
+ * push out words that keep being asked for.
+ *
+ * Entries expire <code>ttl</code> ms after they were fetched, and owners
+ * drop stale ones sooner with <code>invalidate</code>. Words are matched
+ * case-insensitively. The cache is split into segments by word, each
+ * with its own lock for the writers; lookups don't lock.
+ */
+public class WordCache {
+
+    private static final int SEGMENTS = 8;
+    // lookups a segment notes for its policy before it stops noting them
+    private static final int READ_BUFFER = 128;
+
+    private final Segment[] segments;
+    private final long ttl;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    // bumped by every invalidation, whether or not the word was cached
+    private final AtomicLong epoch = new AtomicLong();
+
+    public WordCache(int capacity, long ttl) {
+        this.ttl = ttl;
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+        }
+    }
+
+    /**
+     * The cached entry for a word, or null if we don't have a fresh one
+     */
+    public DictionaryEntry get(String word) {
+        String key = fold(word);
+        DictionaryEntry e = segmentFor(key).get(key, System.currentTimeMillis());
+        (e == null ? misses : hits).incrementAndGet();
+        return e;
+    }
+
+    /**
+     * Where invalidations have got to; pass it to <code>put</code> to
+     * avoid caching a word that was changed while it was being fetched
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Cache an entry fetched from another node, unless something has been
+     * invalidated since the fetch started (at the given epoch)
+     */
+    public void put(DictionaryEntry entry, long fetchedAt) {
+        String key = fold(entry.getWord());
+        segmentFor(key).put(key, entry, System.currentTimeMillis() + ttl,
+                fetchedAt);
+    }
+
+    /**
+     * Drop a word, e.g. because its owner says it has changed
+     */
+    public void invalidate(String word) {
+        epoch.incrementAndGet();
+        String key = fold(word);
+        if (segmentFor(key).remove(key)) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop everything, e.g. when the keys have moved between nodes
+     */
+    public void clear() {
+        epoch.incrementAndGet();
+        for (Segment s : segments) {
+            invalidations.addAndGet(s.clear());
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Share of lookups answered from the cache
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "WordCache[size=" + size()
+                + " hits=" + getHits()
+                + " misses=" + getMisses()
+                + " evictions=" + getEvictions()
+                + " invalidations=" + getInvalidations() + "]";
+    }
+
+    private static String fold(String word) {
+        return word.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % SEGMENTS];
+    }
+
+    private static class Item {
+        final DictionaryEntry entry;
+        final long expiresAt;
+
+        Item(DictionaryEntry entry, long expiresAt) {
+            this.entry = entry;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * One W-TinyLFU cache. Lookups only read a concurrent map of the
+     * entries and note the word in a small buffer; the policy (a
+     * LinkedHashMap per region in insertion order, least recently used
+     * first, where an entry is moved to the back by taking it out and
+     * putting it back) catches up on those under the segment's lock,
+     * taken by whichever lookup finds it free, or by the next writer. If
+     * the buffer fills up before then, lookups stop being noted, so a
+     * lookup never waits
+     */
+    private class Segment {
+
+        private final int windowCapacity;
+        private final int protectedCapacity;
+        private final int mainCapacity;
+
+        // what lookups read
+        private final ConcurrentHashMap<String, Item> data =
+                new ConcurrentHashMap<String, Item>();
+
+        // the policy, and everything that changes data, under lock
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<String, Item> window =
+                new LinkedHashMap<String, Item>();
+        private final LinkedHashMap<String, Item> probation =
+                new LinkedHashMap<String, Item>();
+        private final LinkedHashMap<String, Item> protectedItems =
+                new LinkedHashMap<String, Item>();
+        private final FrequencySketch sketch;
+
+        // words looked up that the policy hasn't caught up on yet
+        private final AtomicReferenceArray<String> reads =
+                new AtomicReferenceArray<String>(READ_BUFFER);
+        private final AtomicInteger readCount = new AtomicInteger();
+
+        Segment(int capacity) {
+            windowCapacity = Math.max(1, capacity / 100);
+            mainCapacity = Math.max(1, capacity - windowCapacity);
+            protectedCapacity = Math.max(1, mainCapacity * 4 / 5);
+            sketch = new FrequencySketch(capacity);
+        }
+
+        DictionaryEntry get(String key, long now) {
+            Item item = data.get(key);
+            int n = readCount.get();
+            if (n < READ_BUFFER && readCount.compareAndSet(n, n + 1)) {
+                reads.lazySet(n, key);
+            }
+            if (n >= READ_BUFFER / 2 && lock.tryLock()) {
+                try {
+                    drainReads(now);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (item == null || item.expiresAt <= now) {
+                return null;
+            }
+            return item.entry;
+        }
+
+        /**
+         * Catch the policy up on the lookups since last time
+         */
+        private void drainReads(long now) {
+            int n = Math.min(readCount.get(), READ_BUFFER);
+            for (int i = 0; i < n; i++) {
+                String key = reads.getAndSet(i, null);
+                if (key != null) {
+                    onRead(key, now);
+                }
+            }
+            readCount.set(0);
+        }
+
+        private void onRead(String key, long now) {
+            sketch.increment(key);
+            Item item = window.remove(key);
+            if (item != null) {
+                window.put(key, item);
+            } else if ((item = protectedItems.remove(key)) != null) {
+                protectedItems.put(key, item);
+            } else if ((item = probation.remove(key)) != null) {
+                // asked for again while on probation: keep it for longer
+                protectedItems.put(key, item);
+                if (protectedItems.size() > protectedCapacity) {
+                    Iterator<Map.Entry<String, Item>> it =
+                            protectedItems.entrySet().iterator();
+                    Map.Entry<String, Item> demoted = it.next();
+                    it.remove();
+                    probation.put(demoted.getKey(), demoted.getValue());
+                }
+            } else {
+                return;
+            }
+            if (item.expiresAt <= now) {
+                removeLocked(key);
+            }
+        }
+
+        /**
+         * Cache an entry unless the epoch has moved on from fetchedAt. It's
+         * checked under the lock: an invalidation bumps the epoch before
+         * it takes the lock to remove the word, so either we see the bump
+         * or it removes what we put
+         */
+        void put(String key, DictionaryEntry entry, long expiresAt,
+                long fetchedAt) {
+            lock.lock();
+            try {
+                if (epoch.get() != fetchedAt) {
+                    return;
+                }
+                drainReads(System.currentTimeMillis());
+                putLocked(key, new Item(entry, expiresAt));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void putLocked(String key, Item item) {
+            // already cached: same place, new entry
+            LinkedHashMap<String, Item> region = window.containsKey(key)
+                    ? window
+                    : protectedItems.containsKey(key) ? protectedItems
+                    : probation.containsKey(key) ? probation : null;
+            if (region != null) {
+                region.put(key, item);
+                data.put(key, item);
+                return;
+            }
+            window.put(key, item);
+            data.put(key, item);
+            if (window.size() <= windowCapacity) {
+                return;
+            }
+            // the window's oldest entry tries to get into the main cache
+            Iterator<Map.Entry<String, Item>> it =
+                    window.entrySet().iterator();
+            Map.Entry<String, Item> candidate = it.next();
+            it.remove();
+            if (probation.size() + protectedItems.size() < mainCapacity) {
+                probation.put(candidate.getKey(), candidate.getValue());
+                return;
+            }
+            LinkedHashMap<String, Item> victims =
+                    probation.isEmpty() ? protectedItems : probation;
+            Iterator<Map.Entry<String, Item>> vit =
+                    victims.entrySet().iterator();
+            Map.Entry<String, Item> victim = vit.next();
+            if (sketch.frequency(candidate.getKey())
+                    > sketch.frequency(victim.getKey())) {
+                vit.remove();
+                data.remove(victim.getKey());
+                probation.put(candidate.getKey(), candidate.getValue());
+            } else {
+                data.remove(candidate.getKey());
+            }
+            evictions.incrementAndGet();
+        }
+
+        boolean remove(String key) {
+            lock.lock();
+            try {
+                return removeLocked(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean removeLocked(String key) {
+            data.remove(key);
+            return window.remove(key) != null
+                    || probation.remove(key) != null
+                    || protectedItems.remove(key) != null;
+        }
+
+        int clear() {
+            lock.lock();
+            try {
+                int n = data.size();
+                data.clear();
+                window.clear();
+                probation.clear();
+                protectedItems.clear();
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            return data.size();
+        }
+    }
+
+    /**
+     * Count-min sketch of how often keys are looked up: four rows of
+     * 4-bit counters, with every count halved once there have been ten
+     * lookups per cache entry so that it reflects recent popularity
+     */
+    private static class FrequencySketch {
+
+        private static final int[] SEEDS = {
+            0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f
+        };
+
+        // 16 counters per long
+        private final long[][] rows = new long[4][];
+        private final int mask;
+        private final int resetAt;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int counters = 16;
+            while (counters < capacity * 2) {
+                counters *= 2;
+            }
+            for (int r = 0; r < rows.length; r++) {
+                rows[r] = new long[counters / 16];
+            }
+            mask = counters - 1;
+            resetAt = Math.max(10, capacity * 10);
+        }
+
+        void increment(String key) {
+            int h = key.hashCode();
+            for (int r = 0; r < rows.length; r++) {
+                int i = index(h, r);
+                int shift = (i & 15) << 2;
+                long word = rows[r][i >>> 4];
+                if (((word >>> shift) & 0xF) < 15) {
+                    rows[r][i >>> 4] = word + (1L << shift);
+                }
+            }
+            if (++additions >= resetAt) {
+                halve();
+            }
+        }
+
+        int frequency(String key) {
+            int h = key.hashCode();
+            int min = 15;
+            for (int r = 0; r < rows.length; r++) {
+                int i = index(h, r);
+                min = Math.min(min,
+                        (int) ((rows[r][i >>> 4] >>> ((i & 15) << 2)) & 0xF));
+            }
+            return min;
+        }
+
+        private int index(int h, int r) {
+            h *= SEEDS[r];
+            h ^= h >>> 15;
+            return h & mask;
+        }
+
+        private void halve() {
+            for (long[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    // halve all 16 counters at once
+                    row[i] = (row[i] >>> 1) & 0x7777777777777777L;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -1,133 +1,268 @@
 package wagyx001.pa1.core;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import org.apache.log4j.Logger;
 
+/**
+ * A set of word/definition pairs.
+ *
+ * The entries themselves are kept by an <code>EntryStore</code>: on the
+ * heap by default, or outside it with -Dchord.store=offheap (see
+ * <code>HeapEntryStore</code> and <code>OffHeapEntryStore</code>).
+ * A word is only ever stored once; adding it again replaces the definition.
+ *
+ * A dictionary opened with <code>DictionaryJournal.open</code> also logs
+ * every change to disk; call <code>sync()</code> to wait for them to be
+ * written.
+ *
+ * Any number of threads can use a dictionary at once. Reads go straight
+ * to the store and never wait for writers. Writers of the same word
+ * take turns (the words are split over a fixed set of locks), so that a
+ * word's changes reach the store and the journal in the same order.
+ */
 public class WordDictionary implements Serializable {
 
-    public static long serialVersionUID = 23984524L;
+    public static long serialVersionUID = 23984525L;
     
     private Integer currentWordIndex;
     private String wordFileName;
-    private ArrayList<DictionaryEntry> entries;
-    private static Logger log;
+    
+    private EntryStore store;
+    
+    // where changes are logged, if anywhere
+    private transient DictionaryJournal journal;
+    
+    // locks for writers, picked by word; all of them are held while the
+    // log is switched over for a snapshot
+    private static final int WRITE_STRIPES = 64;
+    private ReentrantLock[] stripes;
+    
+    private static final Logger log = Logger.getLogger(WordDictionary.class);
     
     public WordDictionary() {
-        log = Logger.getLogger(this.getClass());
-        entries = new ArrayList<DictionaryEntry>();
-        currentWordIndex = 0;
+        init();
     }
     
     public WordDictionary(String wordFileName) {
 	this.wordFileName = wordFileName;
-	currentWordIndex = 0;
-	entries = new ArrayList<DictionaryEntry>();
+	init();
 	parseWordsFile();
     }
+    
+    private void init() {
+        currentWordIndex = 0;
+        stripes = new ReentrantLock[WRITE_STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        store = "offheap".equals(Consts.STORE) 
+                ? new OffHeapEntryStore()
+                : new HeapEntryStore();
+    }
 
+    /**
+     * Add an entry, replacing any entry that has the same word
+     */
     public void addEntry(DictionaryEntry e) {
-        entries.add(e);
+        boolean rotate;
+        ReentrantLock stripe = stripe(e.getWord());
+        stripe.lock();
+        try {
+            store.put(e);
+            rotate = journal(DictionaryJournal.ADD, e);
+        } finally {
+            stripe.unlock();
+        }
+        if (rotate) {
+            rotateJournal();
+        }
+    }
+    
+    private ReentrantLock stripe(String word) {
+        return stripes[HeapEntryStore.foldedHash(word) & (WRITE_STRIPES - 1)];
+    }
+    
+    /**
+     * Fill an empty dictionary with entries that are already in key order
+     * and have no repeated words, as read back from a snapshot
+     */
+    void load(ArrayList<DictionaryEntry> sorted) {
+        store.load(sorted);
+    }
+    
+    void setJournal(DictionaryJournal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Wait until every change so far is on disk (if the dictionary is
+     * being logged at all)
+     */
+    public void sync() throws IOException {
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+    
+    /**
+     * Log a change, returning true if it's time for a snapshot
+     */
+    private boolean journal(byte op, DictionaryEntry e) {
+        return journal != null && journal.append(op, e);
+    }
+    
+    /**
+     * Start a snapshot. The log is switched over while no writer is
+     * between changing the store and logging the change, so the entries
+     * gathered afterwards have every change the old log has. Writers
+     * carry on while they're gathered
+     */
+    private void rotateJournal() {
+        long n;
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            n = journal.rotate();
+        } finally {
+            for (ReentrantLock stripe : stripes) {
+                stripe.unlock();
+            }
+        }
+        if (n >= 0) {
+            journal.snapshot(n, getEntries());
+        }
     }
     
     private void parseWordsFile() {
 	try {
-            BufferedReader reader = 
-                    new BufferedReader(new FileReader(wordFileName));
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                parseWordDefinitionLine(line);
-            }
+            new WordFileReader(wordFileName).read(
+                    new Consumer<ArrayList<DictionaryEntry>>() {
+                @Override
+                public void accept(ArrayList<DictionaryEntry> batch) {
+                    for (DictionaryEntry d : batch) {
+                        addEntry(d);
+                    }
+                }
+            });
 	} catch (IOException e) {
 	    System.err.println("ERROR: Unable to parse words file: " + e);
 	}
     }
 
     /**
-     * Split a line into a DictionaryEntry value
+     * Get the next n entries (in key order) that haven't been handed out yet
      */
-    private DictionaryEntry parseWordDefinitionLine(String line) {
-	String splitCharacter = ":";
-	String spl[] = line.split(splitCharacter);
-        if (spl.length == 1) {
-            // check for oddities 1
-            System.err.println("WARNING: Empty string or odd character (" 
-                    + line + "). Skipping...");
-            return null;
-        }
-        else if (spl.length != 2) {
-            // check for oddities 2
-	    System.err.println("WARNING: Malformed word definition (" 
-                    + spl.length + " elements instead of two.): " + spl[0]);
-	    return null;
-	} else {
-            // add the value
-	    DictionaryEntry d = new DictionaryEntry(spl[0].trim(), spl[1].trim());
-            System.out.println("Adding new dictionary entry (" 
-                    + currentWordIndex +"): " + d);
-            // update word index
-            currentWordIndex++;
-            return d;
-	}
-    }
-
-    public ArrayList<DictionaryEntry> getNEntries(Integer numberOfEntriesToReturn) {
+    public synchronized ArrayList<DictionaryEntry> getNEntries(
+            Integer numberOfEntriesToReturn) {
 	// if trying to get more entries than are left
-	if (currentWordIndex + numberOfEntriesToReturn >= entries.size()) {
-	    int numLeft = currentWordIndex + numberOfEntriesToReturn - entries.size();
+	if (currentWordIndex + numberOfEntriesToReturn > size()) {
+	    int numLeft = size() - currentWordIndex;
 	    System.out.println("WARNING: We've run out of words.");
 	    System.out.println("You'll get the rest (" + numLeft + ")");
 	    // shorten number of entries to return to num left in dictionary
 	    numberOfEntriesToReturn = numLeft;
 	} 
 	
+	ArrayList<DictionaryEntry> all = getEntries();
+	ArrayList<DictionaryEntry> result = new ArrayList<DictionaryEntry>(
+                all.subList(
+                currentWordIndex, 
+                currentWordIndex + numberOfEntriesToReturn));
+	
 	// update current word index
 	currentWordIndex += numberOfEntriesToReturn;
-
+	
 	// return entries
-	return (ArrayList<DictionaryEntry>) 
-                entries.subList(
-                currentWordIndex, 
-                currentWordIndex + numberOfEntriesToReturn);
+	return result;
     }
     
     public String toString() {
-        String str = "WordDictioary:\n";
-        for (DictionaryEntry e : entries)
-            str += e.toString();
-        return str;
+        StringBuilder str = new StringBuilder("WordDictioary:\n");
+        for (DictionaryEntry e : store.all())
+            str.append(e.toString());
+        return str.toString();
+    }
+    
+    /**
+     * Number of entries in this dictionary
+     */
+    public int size() {
+        return store.size();
+    }
+    
+    /**
+     * Rough number of bytes the words and definitions take up
+     */
+    public long dataBytes() {
+        return store.dataBytes();
     }
 
     /**
-     * Get all entries in this dictionary
+     * Get all entries in this dictionary, in key order.
+     * The list is a copy, so it's safe to remove entries while going
+     * through it
      */
     public ArrayList<DictionaryEntry> getEntries() {
-        return entries;
+        return store.all();
+    }
+    
+    /**
+     * Get the entries whose keys are in the ring interval (from, to].
+     * The list is a copy, so it's safe to remove entries while going
+     * through it
+     */
+    public ArrayList<DictionaryEntry> getEntriesInRange(long from, long to) {
+        if (from == to) {
+            return store.all();
+        }
+        return store.range(from, to);
+    }
+    
+    /**
+     * Get up to max entries whose keys are in the ring interval (from, to],
+     * going round the ring from <code>from</code> and starting just after
+     * the given entry, or at the start of the interval if it's null.
+     * from == to means the whole ring
+     */
+    public ArrayList<DictionaryEntry> getPage(long from, long to, 
+            DictionaryEntry after, int max) {
+        return store.page(from, to, after, max);
     }
     
     /**
      * remove a value from the list of entries
      */
     public void removeEntry(DictionaryEntry entry) {
-        entries.remove(entry);
+        boolean rotate = false;
+        ReentrantLock stripe = stripe(entry.getWord());
+        stripe.lock();
+        try {
+            if (store.remove(entry.getWord())) {
+                rotate = journal(DictionaryJournal.REMOVE, entry);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        if (rotate) {
+            rotateJournal();
+        }
     }
     
     /**
      * Get an entry given the word
      */
     public DictionaryEntry getEntry(String word) {
-        for (DictionaryEntry e : entries) {
-            if (e.getWord().equalsIgnoreCase(word)) {
-                return e;
-            }
+        DictionaryEntry entry = store.get(word);
+        if (entry == null) {
+            log.debug("Didn't find entry: " + word);
         }
-        log.warn("Didn't find entry: " + word + " in this dictionary: " + this);
-        return null;
+        return entry;
     }
-	
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,349 @@
+package wagyx001.pa1.core;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streams the entries of a "word : definition" file (UTF-8, one entry per
+ * line) to a consumer in batches.
+ *
+ * The file is split into chunks on line boundaries and each chunk is
+ * memory mapped and parsed by its own task on a fork-join pool. Parsed
+ * batches go through a bounded queue to the consumer, which runs on the
+ * calling thread, so only a few batches are ever on the heap at once no
+ * matter how big the file is. Batches arrive in no particular order.
+ */
+public class WordFileReader {
+
+    private static final Logger log = Logger.getLogger(WordFileReader.class);
+
+    // marks the end of the batch stream
+    private static final ArrayList<DictionaryEntry> END =
+            new ArrayList<DictionaryEntry>(0);
+
+    private final String fileName;
+    private final int batchSize;
+    private final int chunkSize;
+    private final int parallelism;
+
+    private final AtomicLong entriesRead = new AtomicLong();
+    private final AtomicLong linesSkipped = new AtomicLong();
+
+    public WordFileReader(String fileName) {
+        this(fileName, Consts.INSERT_BATCH_SIZE, Consts.INGEST_CHUNK_SIZE,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    public WordFileReader(String fileName, int batchSize, int chunkSize,
+            int parallelism) {
+        this.fileName = fileName;
+        this.batchSize = batchSize;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Parse the whole file, handing each batch of entries to the consumer
+     * as it's ready. Returns once every batch has been consumed
+     */
+    public void read(Consumer<ArrayList<DictionaryEntry>> consumer)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            FileChannel channel = file.getChannel();
+            long[] bounds = chunkBounds(channel);
+            log.debug("Reading " + fileName + " in " + (bounds.length - 1)
+                    + " chunks");
+
+            BlockingQueue<ArrayList<DictionaryEntry>> queue =
+                    new ArrayBlockingQueue<ArrayList<DictionaryEntry>>(
+                    2 * parallelism);
+            AtomicReference<Throwable> failure =
+                    new AtomicReference<Throwable>();
+            AtomicBoolean consumerGone = new AtomicBoolean();
+            pool.execute(new ReadAll(channel, bounds, queue, failure,
+                    consumerGone));
+
+            try {
+                ArrayList<DictionaryEntry> batch;
+                while ((batch = queue.take()) != END) {
+                    consumer.accept(batch);
+                }
+            } catch (InterruptedException ex) {
+                consumerGone.set(true);
+                failure.compareAndSet(null, ex);
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted reading " + fileName);
+            } catch (RuntimeException ex) {
+                // stop the parsers before passing the consumer's error on
+                consumerGone.set(true);
+                failure.compareAndSet(null, ex);
+                throw ex;
+            }
+
+            Throwable t = failure.get();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t != null) {
+                throw new IOException("failed reading " + fileName, t);
+            }
+        } finally {
+            pool.shutdownNow();
+            file.close();
+        }
+        log.info("Read " + entriesRead.get() + " entries from " + fileName
+                + " (" + linesSkipped.get() + " lines skipped)");
+    }
+
+    public long getEntriesRead() {
+        return entriesRead.get();
+    }
+
+    public long getLinesSkipped() {
+        return linesSkipped.get();
+    }
+
+    /**
+     * Split the file into chunks of about chunkSize bytes, each starting
+     * at the beginning of a line. Chunk i is [bounds[i], bounds[i+1])
+     */
+    private long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ArrayList<Long> bounds = new ArrayList<Long>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = chunkSize;
+        while (pos < size) {
+            // move forward to just after the next newline
+            long next = -1;
+            long at = pos;
+            while (next < 0 && at < size) {
+                probe.clear();
+                int n = channel.read(probe, at);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        next = at + i + 1;
+                        break;
+                    }
+                }
+                at += n;
+            }
+            if (next < 0 || next >= size) {
+                break;
+            }
+            bounds.add(next);
+            pos = next + chunkSize;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Runs all of the chunk tasks, then marks the end of the stream
+     */
+    private class ReadAll extends RecursiveAction {
+
+        static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final BlockingQueue<ArrayList<DictionaryEntry>> queue;
+        private final AtomicReference<Throwable> failure;
+        private final AtomicBoolean consumerGone;
+
+        ReadAll(FileChannel channel, long[] bounds,
+                BlockingQueue<ArrayList<DictionaryEntry>> queue,
+                AtomicReference<Throwable> failure,
+                AtomicBoolean consumerGone) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.queue = queue;
+            this.failure = failure;
+            this.consumerGone = consumerGone;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                ArrayList<ReadChunk> chunks = new ArrayList<ReadChunk>();
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    chunks.add(new ReadChunk(channel, bounds[i], bounds[i + 1],
+                            queue, failure));
+                }
+                invokeAll(chunks);
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                // the consumer is waiting on the queue, so this must get
+                // through even if everything else failed
+                boolean done = false;
+                while (!done && !consumerGone.get()) {
+                    try {
+                        done = queue.offer(END, 100, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                        // keep trying, the consumer will drain the queue
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses one chunk of the file
+     */
+    private class ReadChunk extends RecursiveAction {
+
+        static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final BlockingQueue<ArrayList<DictionaryEntry>> queue;
+        private final AtomicReference<Throwable> failure;
+
+        private byte[] line = new byte[256];
+        private ArrayList<DictionaryEntry> batch;
+
+        ReadChunk(FileChannel channel, long start, long end,
+                BlockingQueue<ArrayList<DictionaryEntry>> queue,
+                AtomicReference<Throwable> failure) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.queue = queue;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                MappedByteBuffer buf = channel.map(
+                        FileChannel.MapMode.READ_ONLY, start, end - start);
+                batch = new ArrayList<DictionaryEntry>(batchSize);
+                int len = 0;
+                while (buf.hasRemaining()) {
+                    if (failure.get() != null) {
+                        return;
+                    }
+                    byte b = buf.get();
+                    if (b == '\n') {
+                        parseLine(len);
+                        len = 0;
+                    } else {
+                        if (len == line.length) {
+                            byte[] grown = new byte[line.length * 2];
+                            System.arraycopy(line, 0, grown, 0, len);
+                            line = grown;
+                        }
+                        line[len++] = b;
+                    }
+                }
+                // last line of the file may not end in a newline
+                parseLine(len);
+                if (!batch.isEmpty()) {
+                    emit();
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }
+
+        /**
+         * Turn the first len bytes of the line buffer into an entry.
+         * A line needs exactly one ':' with a word before it
+         */
+        private void parseLine(int len) throws InterruptedException {
+            int colon = -1;
+            for (int i = 0; i < len; i++) {
+                if (line[i] == ':') {
+                    if (colon >= 0) {
+                        skip("more than one ':'", len);
+                        return;
+                    }
+                    colon = i;
+                }
+            }
+            if (colon < 0) {
+                if (trimEnd(0, len) > trimStart(0, len)) {
+                    skip("no ':'", len);
+                }
+                return;
+            }
+            int ws = trimStart(0, colon);
+            int we = trimEnd(0, colon);
+            int ds = trimStart(colon + 1, len);
+            int de = trimEnd(colon + 1, len);
+            if (we <= ws || de <= ds) {
+                skip("empty word or definition", len);
+                return;
+            }
+            batch.add(new DictionaryEntry(
+                    new String(line, ws, we - ws, StandardCharsets.UTF_8),
+                    new String(line, ds, de - ds, StandardCharsets.UTF_8)));
+            entriesRead.incrementAndGet();
+            if (batch.size() == batchSize) {
+                emit();
+            }
+        }
+
+        private void emit() throws InterruptedException {
+            // wait for room in the queue, unless the read has failed
+            while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) {
+                    return;
+                }
+            }
+            batch = new ArrayList<DictionaryEntry>(batchSize);
+        }
+
+        private void skip(String why, int len) {
+            linesSkipped.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Skipping line (" + why + "): "
+                        + new String(line, 0, len, StandardCharsets.UTF_8));
+            }
+        }
+
+        private int trimStart(int from, int to) {
+            while (from < to && isSpace(line[from])) {
+                from++;
+            }
+            return from;
+        }
+
+        private int trimEnd(int from, int to) {
+            while (to > from && isSpace(line[to - 1])) {
+                to--;
+            }
+            return to;
+        }
+
+        private boolean isSpace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package wagyx001.pa1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import wagyx001.pa1.core.DictionaryEntry;
+import wagyx001.pa1.core.MemoryTransport;
+import wagyx001.pa1.core.NodeInfo;
+import wagyx001.pa1.core.Ring;
+import wagyx001.pa1.core.Transports;
+
+/**
+ * A small ring in one JVM over the in-memory transport (as Simulation
+ * runs one): words written through any node can be read back through
+ * every node, and each is kept by the node that owns its key
+ */
+public class RingSimulationTest {
+
+    private static final int NODES = 12;
+    private static final int WORDS = 600;
+
+    private MemoryTransport transport;
+    private SuperNode superNode;
+    private final ArrayList<Node> nodes = new ArrayList<Node>();
+    private final HashMap<NodeInfo, Node> byInfo = new HashMap<NodeInfo, Node>();
+
+    @BeforeClass
+    public static void quietLogs() {
+        BasicConfigurator.resetConfiguration();
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Before
+    public void buildRing() throws Exception {
+        transport = new MemoryTransport();
+        Transports.set(transport);
+        superNode = new SuperNode();
+        transport.exportSuperNode(superNode);
+        for (int i = 0; i < NODES; i++) {
+            Node node = new Node();
+            node.join();
+            NodeInfo ni = node.getNodeInfo();
+            assertNotNull("node " + i + " didn't join", ni);
+            transport.exportNode(node, ni);
+            nodes.add(node);
+            byInfo.put(ni, node);
+            NodeInfo succ = superNode.getNewFingerTable(ni.id).get(0);
+            if (!succ.equals(ni)) {
+                byInfo.get(succ).update(superNode.getNewFingerTable(succ.id),
+                        ni);
+                awaitKeys(node);
+            }
+        }
+        for (Node node : nodes) {
+            long id = node.getNodeInfo().id;
+            node.update(superNode.getNewFingerTable(id),
+                    superNode.getPredecessor(id));
+        }
+        for (Node node : nodes) {
+            awaitKeys(node);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (Node node : nodes) {
+            node.stopMaintenance();
+        }
+        Transports.set(null);
+    }
+
+    @Test
+    public void wordsWrittenAnywhereAreFoundEverywhere() throws Exception {
+        for (int i = 0; i < WORDS; i++) {
+            Node via = nodes.get(i % NODES);
+            assertTrue(via.addWordDefinition(
+                    new DictionaryEntry("word" + i, "def " + i)));
+        }
+        for (int i = 0; i < WORDS; i++) {
+            Node via = nodes.get((i * 7 + 3) % NODES);
+            DictionaryEntry e = via.getWord("WORD" + i);
+            assertNotNull("word" + i + " not found via node "
+                    + via.getNodeInfo().id, e);
+            assertEquals("def " + i, e.getDefinition());
+        }
+        assertNull(nodes.get(0).getWord("never-added"));
+    }
+
+    @Test
+    public void eachWordIsKeptByTheOwnerOfItsKey() throws Exception {
+        ArrayList<DictionaryEntry> batch = new ArrayList<DictionaryEntry>();
+        for (int i = 0; i < WORDS; i++) {
+            batch.add(new DictionaryEntry("word" + i, "def " + i));
+        }
+        boolean[] added = nodes.get(NODES / 2).addWordDefinitions(batch);
+        for (int i = 0; i < WORDS; i++) {
+            assertTrue("word" + i + " wasn't added", added[i]);
+        }
+
+        long total = 0;
+        for (Node node : nodes) {
+            total += node.getNodeStats().entries;
+        }
+        assertEquals(WORDS, total);
+        for (DictionaryEntry e : batch) {
+            NodeInfo owner = ownerOf(e.getKey());
+            assertNotNull(e.getWord() + " isn't at its owner " + owner.id,
+                    byInfo.get(owner).getStoredWord(e.getWord()));
+        }
+    }
+
+    @Test
+    public void lookupsResolveToTheOwnerOfTheKey() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            long key = Ring.hash("key" + i);
+            ArrayList<NodeInfo> path = nodes.get(i % NODES).resolveKey(key);
+            assertNotNull(path);
+            assertEquals(ownerOf(key), path.get(0));
+            assertTrue("path of " + path.size() + " hops",
+                    path.size() <= NODES);
+        }
+    }
+
+    @Test
+    public void wordsWrittenDuringAHandoffEndUpAtTheirOwner() throws Exception {
+        final Map<String, String> written =
+                new ConcurrentHashMap<String, String>();
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int w = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; !stop.get(); i++) {
+                        // new words, and new definitions of a few old ones
+                        String word = i % 3 == 0
+                                ? "again" + w + "-" + (i % 30)
+                                : "race" + w + "-" + i;
+                        String def = "def " + i;
+                        Node via = nodes.get((w + i) % NODES);
+                        try {
+                            if (via.addWordDefinition(
+                                    new DictionaryEntry(word, def))) {
+                                written.put(word, def);
+                            } else {
+                                written.put(word, "?");
+                            }
+                        } catch (Exception ex) {
+                            // we can't tell whether it went in
+                            written.put(word, "?");
+                        }
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        // each new node takes some of its successor's keys while the
+        // words keep coming
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(50);
+            Node node = new Node();
+            node.join();
+            NodeInfo ni = node.getNodeInfo();
+            transport.exportNode(node, ni);
+            nodes.add(node);
+            byInfo.put(ni, node);
+            NodeInfo succ = superNode.getNewFingerTable(ni.id).get(0);
+            byInfo.get(succ).update(superNode.getNewFingerTable(succ.id), ni);
+            awaitKeys(node);
+        }
+        Thread.sleep(50);
+        stop.set(true);
+        for (Thread t : writers) {
+            t.join();
+        }
+        for (Node node : nodes) {
+            long id = node.getNodeInfo().id;
+            node.update(superNode.getNewFingerTable(id),
+                    superNode.getPredecessor(id));
+        }
+        for (Node node : nodes) {
+            awaitKeys(node);
+        }
+
+        assertTrue(written.size() > 100);
+        for (Map.Entry<String, String> w : written.entrySet()) {
+            if (w.getValue().equals("?")) {
+                continue;
+            }
+            DictionaryEntry e = new DictionaryEntry(w.getKey(), w.getValue());
+            NodeInfo owner = ownerOf(e.getKey());
+            DictionaryEntry stored = byInfo.get(owner).getStoredWord(w.getKey());
+            assertNotNull(w.getKey() + " isn't at its owner " + owner.id,
+                    stored);
+            assertEquals(w.getKey(), w.getValue(), stored.getDefinition());
+        }
+    }
+
+    @Test
+    public void aWordIsFoundAfterItsInvalidationIsLost() throws Exception {
+        Node reader = nodes.get(0);
+        String word = "lost";
+        for (int i = 0; ownerOf(Ring.hash(word)).equals(reader.getNodeInfo());
+                i++) {
+            word = "lost" + i;
+        }
+        Node owner = byInfo.get(ownerOf(Ring.hash(word)));
+
+        // the reader gets the owner's filter, and rules the word out
+        long deadline = System.currentTimeMillis() + 10000;
+        while (reader.getNodeStats().filterNegatives == 0) {
+            assertTrue("never got the filter of node "
+                    + owner.getNodeInfo().id,
+                    System.currentTimeMillis() < deadline);
+            assertNull(reader.getWord(word));
+            reader.refreshKeyFilters();
+            Thread.sleep(10);
+        }
+
+        // the word is written, and the message telling the reader is lost
+        assertTrue(owner.addWordDefinition(new DictionaryEntry(word, "def")));
+        transport.setConditions(0, 0, TimeUnit.MILLISECONDS, 1.0);
+        owner.sendInvalidations();
+        while (transport.getLost() == 0) {
+            Thread.sleep(1);
+        }
+        transport.setConditions(0, 0, TimeUnit.MILLISECONDS, 0);
+        assertNull("the invalidation got through", reader.getWord(word));
+
+        // the owner's filter hasn't changed version, but the reader gets
+        // it again all the same
+        deadline = System.currentTimeMillis() + 10000;
+        DictionaryEntry e;
+        while ((e = reader.getWord(word)) == null) {
+            assertTrue(word + " is still ruled out",
+                    System.currentTimeMillis() < deadline);
+            reader.refreshKeyFilters();
+            Thread.sleep(10);
+        }
+        assertEquals("def", e.getDefinition());
+    }
+
+    /**
+     * The first node at or after key, going by the SuperNode's ring
+     */
+    private NodeInfo ownerOf(long key) throws Exception {
+        NodeInfo best = null;
+        for (Node node : nodes) {
+            NodeInfo ni = node.getNodeInfo();
+            if (best == null || Ring.compare(Ring.distance(key, ni.id),
+                    Ring.distance(key, best.id)) < 0) {
+                best = ni;
+            }
+        }
+        return best;
+    }
+
+    private static void awaitKeys(Node node) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (node.isTakingOverKeys()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("node " + node.getNodeInfo().id + " never got its keys",
+                !node.isTakingOverKeys());
+    }
+}
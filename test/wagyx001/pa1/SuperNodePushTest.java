@@ -0,0 +1,79 @@
+package wagyx001.pa1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import wagyx001.pa1.core.Consts;
+import wagyx001.pa1.core.FingerTable;
+import wagyx001.pa1.core.MemoryTransport;
+import wagyx001.pa1.core.NodeInfo;
+import wagyx001.pa1.core.Transports;
+
+/**
+ * A SuperNode that pushes routing info (-Dchord.push=true) leaves every
+ * node with the fingers and predecessor it would compute for it, after
+ * each join and without any stabilization
+ */
+public class SuperNodePushTest {
+
+    private static final int NODES = 24;
+
+    private final ArrayList<Node> nodes = new ArrayList<Node>();
+
+    @BeforeClass
+    public static void quietLogs() {
+        BasicConfigurator.resetConfiguration();
+        BasicConfigurator.configure();
+        // a successor's handoff can reach a joining node before it's
+        // exported; that's not what this is about
+        Logger.getRootLogger().setLevel(Level.OFF);
+    }
+
+    @After
+    public void tearDown() {
+        for (Node node : nodes) {
+            node.stopMaintenance();
+        }
+        Transports.set(null);
+    }
+
+    @Test
+    public void everyJoinUpdatesTheNodesItAffects() throws Exception {
+        MemoryTransport transport = new MemoryTransport();
+        Transports.set(transport);
+        SuperNode superNode = new SuperNode(true);
+        transport.exportSuperNode(superNode);
+        for (int i = 0; i < NODES; i++) {
+            Node node = new Node();
+            node.join();
+            NodeInfo ni = node.getNodeInfo();
+            assertNotNull("node " + i + " didn't join", ni);
+            transport.exportNode(node, ni);
+            nodes.add(node);
+            for (Node n : nodes) {
+                assertUpToDate(superNode, n, i);
+            }
+        }
+    }
+
+    private static void assertUpToDate(SuperNode superNode, Node node,
+            int joins) throws Exception {
+        long id = node.getNodeInfo().id;
+        String who = "node " + id + " after " + (joins + 1) + " joins";
+        assertEquals(who, superNode.getPredecessor(id), node.getPredecessor());
+        FingerTable want = superNode.getNewFingerTable(id);
+        FingerTable got = node.getFingerTable();
+        for (int f = 0; f < Consts.FINGERTABLE_SIZE; f++) {
+            assertEquals(who + ", finger " + (f + 1), want.get(f), got.get(f));
+        }
+    }
+}
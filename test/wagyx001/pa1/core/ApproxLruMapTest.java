@@ -0,0 +1,89 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The bounded map behind the stub and replica set caches
+ */
+public class ApproxLruMapTest {
+
+    @Test
+    public void getsWhatWasPut() {
+        ApproxLruMap<String, Integer> map = new ApproxLruMap<String, Integer>(8);
+        map.put("a", 1);
+        map.put("a", 2);
+        assertEquals(Integer.valueOf(2), map.get("a"));
+        assertEquals(1, map.size());
+        assertEquals(Integer.valueOf(2), map.remove("a"));
+        assertNull(map.get("a"));
+        assertNull(map.remove("a"));
+    }
+
+    @Test
+    public void staysWithinItsCapacity() {
+        ApproxLruMap<Integer, Integer> map =
+                new ApproxLruMap<Integer, Integer>(64);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, i);
+            assertTrue(map.size() <= 64);
+        }
+    }
+
+    @Test
+    public void dropsTheLeastRecentlyUsed() throws InterruptedException {
+        ApproxLruMap<Integer, Integer> map =
+                new ApproxLruMap<Integer, Integer>(64);
+        for (int i = 0; i < 64; i++) {
+            map.put(i, i);
+        }
+        // it only tells uses apart to a millisecond or so
+        Thread.sleep(5);
+        // use the first half again, so the second half is older
+        for (int i = 0; i < 32; i++) {
+            map.get(i);
+        }
+        Thread.sleep(5);
+        map.put(64, 64);
+        for (int i = 0; i < 32; i++) {
+            assertNotNull("lost " + i, map.get(i));
+        }
+        assertNotNull(map.get(64));
+        int dropped = 0;
+        for (int i = 32; i < 64; i++) {
+            if (map.get(i) == null) {
+                dropped++;
+            }
+        }
+        assertTrue("dropped " + dropped, dropped > 0);
+    }
+
+    @Test
+    public void copesWithManyThreads() throws InterruptedException {
+        final ApproxLruMap<Integer, Integer> map =
+                new ApproxLruMap<Integer, Integer>(100);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 100000;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        map.put(base + i, i);
+                        map.get(base + i / 2);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // a sweep picks up the puts that raced it before it stops
+        assertTrue("size " + map.size(), map.size() <= 100);
+    }
+}
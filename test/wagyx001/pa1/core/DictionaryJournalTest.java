@@ -0,0 +1,125 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Getting a dictionary back from its log, with a torn or damaged record
+ * at the end of it
+ */
+public class DictionaryJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replaysAddsAndRemoves() throws IOException {
+        File dir = tmp.newFolder();
+        WordDictionary d = DictionaryJournal.open(dir);
+        for (int i = 0; i < 100; i++) {
+            d.addEntry(new DictionaryEntry("word" + i, "def " + i));
+        }
+        d.addEntry(new DictionaryEntry("word7", "changed"));
+        d.removeEntry(new DictionaryEntry("word8", ""));
+        d.sync();
+
+        WordDictionary back = DictionaryJournal.open(dir);
+        assertEquals(99, back.size());
+        assertEquals("changed", back.getEntry("word7").getDefinition());
+        assertNull(back.getEntry("word8"));
+        assertEquals("def 99", back.getEntry("word99").getDefinition());
+    }
+
+    @Test
+    public void cutsOffATornRecordAndCarriesOn() throws IOException {
+        File dir = tmp.newFolder();
+        WordDictionary d = DictionaryJournal.open(dir);
+        for (int i = 0; i < 10; i++) {
+            d.addEntry(new DictionaryEntry("word" + i, "def " + i));
+        }
+        d.sync();
+        File log = new File(dir, "log-0.wal");
+        long good = log.length();
+        // a record that was only partly written: its header says there's
+        // more than there is
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.seek(good);
+            raf.writeInt(100);
+            raf.writeInt(12345);
+            raf.write(new byte[] { 1, 2, 3 });
+        } finally {
+            raf.close();
+        }
+
+        WordDictionary back = DictionaryJournal.open(dir);
+        assertEquals(10, back.size());
+        assertEquals(good, log.length());
+
+        // what's logged after the cut is read back after it too
+        back.addEntry(new DictionaryEntry("after", "the cut"));
+        back.sync();
+        WordDictionary again = DictionaryJournal.open(dir);
+        assertEquals(11, again.size());
+        assertEquals("the cut", again.getEntry("after").getDefinition());
+    }
+
+    @Test
+    public void stopsAtARecordThatFailsItsChecksum() throws IOException {
+        File dir = tmp.newFolder();
+        WordDictionary d = DictionaryJournal.open(dir);
+        d.addEntry(new DictionaryEntry("first", "one"));
+        d.sync();
+        File log = new File(dir, "log-0.wal");
+        long firstEnd = log.length();
+        d.addEntry(new DictionaryEntry("second", "two"));
+        d.addEntry(new DictionaryEntry("third", "three"));
+        d.sync();
+        // flip a byte in the body of the second record
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.seek(firstEnd + 10);
+            int b = raf.read();
+            raf.seek(firstEnd + 10);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        WordDictionary back = DictionaryJournal.open(dir);
+        assertEquals(1, back.size());
+        assertEquals("one", back.getEntry("first").getDefinition());
+        assertNull(back.getEntry("third"));
+        assertEquals(firstEnd, log.length());
+    }
+
+    @Test
+    public void emptyDirectoryGivesAnEmptyDictionary() throws IOException {
+        File dir = new File(tmp.getRoot(), "not/there/yet");
+        WordDictionary d = DictionaryJournal.open(dir);
+        assertTrue(dir.isDirectory());
+        assertEquals(0, d.size());
+    }
+
+    @Test
+    public void keepsTheNodesIdentity() throws IOException {
+        File dir = tmp.newFolder();
+        assertNull(DictionaryJournal.readIdentity(dir));
+        NodeInfo ni = new NodeInfo(Ring.MASK, "10.0.0.7", 50003);
+        DictionaryJournal.writeIdentity(dir, ni);
+        NodeInfo back = DictionaryJournal.readIdentity(dir);
+        assertEquals(ni, back);
+        assertEquals(50003, back.portNumber);
+        DictionaryJournal.writeIdentity(dir, new NodeInfo(5, "10.0.0.7", 50009));
+        assertEquals(5, DictionaryJournal.readIdentity(dir).id);
+    }
+}
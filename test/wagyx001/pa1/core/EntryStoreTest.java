@@ -0,0 +1,226 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * The EntryStore contract, for both stores: lookups by word and ranges
+ * and pages in ring order, including ranges that wrap round zero
+ */
+@RunWith(Parameterized.class)
+public class EntryStoreTest {
+
+    private static final int WORDS = 2000;
+
+    private final String kind;
+    private EntryStore store;
+    private ArrayList<DictionaryEntry> entries;
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> stores() {
+        return Arrays.asList(new Object[][] { { "heap" }, { "offheap" } });
+    }
+
+    public EntryStoreTest(String kind) {
+        this.kind = kind;
+    }
+
+    @Before
+    public void fill() {
+        // small buffers so the off-heap arena spans several
+        store = kind.equals("heap")
+                ? new HeapEntryStore() : new OffHeapEntryStore(4096);
+        entries = new ArrayList<DictionaryEntry>();
+        for (int i = 0; i < WORDS; i++) {
+            DictionaryEntry e = new DictionaryEntry("word" + i, "def " + i);
+            entries.add(e);
+            store.put(e);
+        }
+    }
+
+    @Test
+    public void findsWordsWhateverTheirCase() {
+        assertEquals(WORDS, store.size());
+        assertEquals("def 17", store.get("word17").getDefinition());
+        assertEquals("def 17", store.get("WORD17").getDefinition());
+        assertNull(store.get("word" + WORDS));
+    }
+
+    @Test
+    public void putReplacesTheSameWord() {
+        store.put(new DictionaryEntry("Word5", "new"));
+        assertEquals(WORDS, store.size());
+        assertEquals("new", store.get("word5").getDefinition());
+    }
+
+    @Test
+    public void removeTakesTheWordOut() {
+        assertTrue(store.remove("WORD9"));
+        assertFalse(store.remove("word9"));
+        assertNull(store.get("word9"));
+        assertEquals(WORDS - 1, store.size());
+        for (DictionaryEntry e : store.all()) {
+            assertFalse(e.getWord().equals("word9"));
+        }
+    }
+
+    @Test
+    public void allIsInKeyOrder() {
+        assertEquals(words(expected(Ring.MASK, Ring.MASK)),
+                words(store.all()));
+    }
+
+    @Test
+    public void rangeWithoutWrap() {
+        long[] keys = sortedKeys();
+        long from = keys[100];
+        long to = keys[900];
+        assertEquals(words(expected(from, to)), words(store.range(from, to)));
+    }
+
+    @Test
+    public void rangeRoundZero() {
+        long[] keys = sortedKeys();
+        long from = keys[WORDS - 300];
+        long to = keys[300];
+        ArrayList<DictionaryEntry> range = store.range(from, to);
+        assertTrue(range.size() >= 599);
+        assertEquals(words(expected(from, to)), words(range));
+    }
+
+    @Test
+    public void rangeFromTheTopOfTheRing() {
+        long to = sortedKeys()[10];
+        assertEquals(words(expected(Ring.MASK, to)),
+                words(store.range(Ring.MASK, to)));
+    }
+
+    @Test
+    public void pagesRoundZeroAddUpToTheRange() {
+        long[] keys = sortedKeys();
+        long from = keys[WORDS - 500];
+        long to = keys[500];
+        assertEquals(words(expected(from, to)), words(pageThrough(from, to, 37)));
+    }
+
+    @Test
+    public void pagesOverTheWholeRing() {
+        long from = sortedKeys()[1234];
+        assertEquals(words(expected(from, from)),
+                words(pageThrough(from, from, 100)));
+    }
+
+    @Test
+    public void pagesSkipRemovedAndReplacedWords() {
+        for (int i = 0; i < WORDS; i += 3) {
+            store.remove("word" + i);
+        }
+        for (int i = 1; i < WORDS; i += 3) {
+            store.put(new DictionaryEntry("word" + i, "again"));
+        }
+        long from = sortedKeys()[WORDS / 2];
+        ArrayList<DictionaryEntry> all = pageThrough(from, from, 50);
+        assertEquals(WORDS - (WORDS + 2) / 3, all.size());
+        for (DictionaryEntry e : all) {
+            int i = Integer.parseInt(e.getWord().substring(4));
+            assertFalse(i % 3 == 0);
+            assertEquals(i % 3 == 1 ? "again" : "def " + i,
+                    e.getDefinition());
+        }
+    }
+
+    @Test
+    public void loadFillsAnEmptyStore() {
+        EntryStore loaded = kind.equals("heap")
+                ? new HeapEntryStore() : new OffHeapEntryStore(4096);
+        loaded.load(store.all());
+        assertEquals(WORDS, loaded.size());
+        assertEquals(words(store.all()), words(loaded.all()));
+        assertEquals("def 3", loaded.get("word3").getDefinition());
+    }
+
+    private ArrayList<DictionaryEntry> pageThrough(long from, long to,
+            int max) {
+        ArrayList<DictionaryEntry> all = new ArrayList<DictionaryEntry>();
+        DictionaryEntry after = null;
+        while (true) {
+            ArrayList<DictionaryEntry> page = store.page(from, to, after, max);
+            assertTrue(page.size() <= max);
+            all.addAll(page);
+            if (page.size() < max) {
+                return all;
+            }
+            after = page.get(page.size() - 1);
+        }
+    }
+
+    private long[] sortedKeys() {
+        long[] keys = new long[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = entries.get(i).getKey();
+        }
+        Arrays.sort(keys);
+        // unsigned order is signed order unless M == 64
+        if (Ring.M == 64) {
+            int neg = 0;
+            while (neg < keys.length && keys[neg] < 0) {
+                neg++;
+            }
+            long[] unsigned = new long[keys.length];
+            System.arraycopy(keys, neg, unsigned, 0, keys.length - neg);
+            System.arraycopy(keys, 0, unsigned, keys.length - neg, neg);
+            keys = unsigned;
+        }
+        return keys;
+    }
+
+    /**
+     * The live entries in (from, to], in ring order from from, worked out
+     * the slow way
+     */
+    private ArrayList<DictionaryEntry> expected(final long from, long to) {
+        ArrayList<DictionaryEntry> in = new ArrayList<DictionaryEntry>();
+        for (DictionaryEntry e : entries) {
+            if (store.get(e.getWord()) != null
+                    && Ring.inHalfOpen(e.getKey(), from, to)) {
+                in.add(e);
+            }
+        }
+        Collections.sort(in, new Comparator<DictionaryEntry>() {
+            @Override
+            public int compare(DictionaryEntry a, DictionaryEntry b) {
+                int c = Ring.compare(Ring.distance(from, a.getKey()),
+                        Ring.distance(from, b.getKey()));
+                // the whole ring starts just after from, so from comes last
+                if (c != 0 && (a.getKey() == from || b.getKey() == from)) {
+                    return a.getKey() == from ? 1 : -1;
+                }
+                return c != 0 ? c : String.CASE_INSENSITIVE_ORDER.compare(
+                        a.getWord(), b.getWord());
+            }
+        });
+        return in;
+    }
+
+    private static ArrayList<String> words(ArrayList<DictionaryEntry> es) {
+        ArrayList<String> words = new ArrayList<String>();
+        for (DictionaryEntry e : es) {
+            words.add(e.getWord());
+        }
+        return words;
+    }
+}
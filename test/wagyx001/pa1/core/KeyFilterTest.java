@@ -0,0 +1,69 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Key filters never rule out a word they were given, and rule out most
+ * of the rest
+ */
+public class KeyFilterTest {
+
+    @Test
+    public void noFalseNegatives() {
+        KeyFilter f = new KeyFilter(1, 0, 0, 10000);
+        for (int i = 0; i < 10000; i++) {
+            f.add("word" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(f.mightContain("word" + i));
+            assertTrue(f.mightContain("WORD" + i));
+        }
+        assertFalse(f.isFull());
+    }
+
+    @Test
+    public void fewFalsePositives() {
+        KeyFilter f = new KeyFilter(1, 0, 0, 10000);
+        for (int i = 0; i < 10000; i++) {
+            f.add("word" + i);
+        }
+        int through = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (f.mightContain("other" + i)) {
+                through++;
+            }
+        }
+        // sized for 1%; allow plenty of slack
+        assertTrue("false positives: " + through,
+                through < 10000 * Consts.KEY_FILTER_FALSE_POSITIVES * 3);
+    }
+
+    @Test
+    public void coversItsRangeRoundZero() {
+        KeyFilter f = new KeyFilter(1, Ring.MASK - 10, 10, 64);
+        assertTrue(f.covers(Ring.MASK));
+        assertTrue(f.covers(0));
+        assertTrue(f.covers(10));
+        assertFalse(f.covers(11));
+        assertFalse(f.covers(Ring.MASK - 10));
+    }
+
+    @Test
+    public void coveringNothingRulesNothingOut() {
+        KeyFilter f = KeyFilter.coveringNothing(3);
+        assertFalse(f.covers(0));
+        assertTrue(f.mightContain("anything"));
+    }
+
+    @Test
+    public void fillsUpPastItsCapacity() {
+        KeyFilter f = new KeyFilter(1, 0, 0, 64);
+        for (int i = 0; i <= 64; i++) {
+            f.add("word" + i);
+        }
+        assertTrue(f.isFull());
+    }
+}
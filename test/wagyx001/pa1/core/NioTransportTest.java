@@ -0,0 +1,259 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The nio transport over loopback: a made-up node exported on a free
+ * port, called through a stub and through raw sockets
+ */
+public class NioTransportTest {
+
+    private static NioTransport transport;
+    private static NodeInfo ni;
+    private static INode stub;
+
+    @BeforeClass
+    public static void exportNode() throws Exception {
+        BasicConfigurator.resetConfiguration();
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.OFF);
+        transport = new NioTransport();
+        ni = new NodeInfo(1, "127.0.0.1", freePort());
+        transport.exportNode(fakeNode(), ni);
+        stub = transport.getNode(ni);
+    }
+
+    /**
+     * A node that knows every word, stores none, and has no predecessor
+     */
+    private static INode fakeNode() {
+        return (INode) Proxy.newProxyInstance(INode.class.getClassLoader(),
+                new Class<?>[] { INode.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                String name = method.getName();
+                if (name.equals("getWord")) {
+                    return new DictionaryEntry((String) args[0],
+                            "def of " + args[0]);
+                } else if (name.equals("getStoredWord")) {
+                    throw new IllegalStateException("no " + args[0]);
+                } else if (name.equals("getPredecessor")) {
+                    throw new RemoteException("no predecessor");
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    @Test
+    public void pipelinedCallsGetTheirOwnReplies() throws Exception {
+        final AtomicReference<Throwable> failed = new AtomicReference<Throwable>();
+        Thread[] callers = new Thread[16];
+        for (int t = 0; t < callers.length; t++) {
+            final int c = t;
+            callers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ArrayList<CompletableFuture<DictionaryEntry>> sent =
+                                new ArrayList<CompletableFuture<DictionaryEntry>>();
+                        for (int i = 0; i < 200; i++) {
+                            final String word = "w" + c + "-" + i;
+                            if (i % 2 == 0) {
+                                DictionaryEntry e = stub.getWord(word);
+                                assertEquals("def of " + word, e.getDefinition());
+                            } else {
+                                sent.add(NioTransport.send(stub,
+                                        new AsyncNode.RemoteCall<DictionaryEntry>() {
+                                    @Override
+                                    public DictionaryEntry call(INode node)
+                                            throws RemoteException {
+                                        return node.getWord(word);
+                                    }
+                                }));
+                            }
+                        }
+                        for (int i = 0; i < sent.size(); i++) {
+                            String word = "w" + c + "-" + (2 * i + 1);
+                            assertEquals(word, sent.get(i).join().getWord());
+                        }
+                    } catch (Throwable ex) {
+                        failed.compareAndSet(null, ex);
+                    }
+                }
+            });
+            callers[t].start();
+        }
+        for (Thread t : callers) {
+            t.join();
+        }
+        if (failed.get() != null) {
+            throw new AssertionError(failed.get());
+        }
+    }
+
+    @Test
+    public void exceptionsComeBackFromTheRemoteMethod() throws Exception {
+        try {
+            stub.getStoredWord("gone");
+            fail("no exception");
+        } catch (IllegalStateException ex) {
+            assertEquals("no gone", ex.getMessage());
+        }
+        try {
+            stub.getPredecessor();
+            fail("no exception");
+        } catch (RemoteException ex) {
+            assertTrue(ex.getMessage().contains("no predecessor"));
+        }
+        CompletableFuture<NodeInfo> f = NioTransport.send(stub,
+                new AsyncNode.RemoteCall<NodeInfo>() {
+            @Override
+            public NodeInfo call(INode node) throws RemoteException {
+                return node.getPredecessor();
+            }
+        });
+        try {
+            f.join();
+            fail("no exception");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof RemoteException);
+        }
+    }
+
+    @Test
+    public void callsOnAClosedConnectionFail() throws Exception {
+        // a peer that takes the connection, reads the request and hangs up
+        final ServerSocket peer = new ServerSocket(0);
+        Thread hangUp = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket s = peer.accept();
+                    s.getInputStream().read();
+                    s.close();
+                } catch (IOException ex) {
+                    // the call then waits out its timeout, and the test fails
+                }
+            }
+        });
+        hangUp.start();
+        INode dead = transport.getNode(
+                new NodeInfo(2, "127.0.0.1", peer.getLocalPort()));
+        long start = System.currentTimeMillis();
+        try {
+            dead.getWord("anything");
+            fail("no exception");
+        } catch (RemoteException ex) {
+            // as it should
+        }
+        assertTrue(System.currentTimeMillis() - start
+                < Consts.NIO_CALL_TIMEOUT_MS);
+        hangUp.join();
+        peer.close();
+
+        // and once nothing listens there at all
+        try {
+            dead.getWord("anything");
+            fail("no exception");
+        } catch (RemoteException ex) {
+            // as it should
+        }
+    }
+
+    @Test
+    public void aBadFrameLengthClosesTheConnection() throws Exception {
+        Socket s = new Socket("127.0.0.1", ni.portNumber);
+        s.setSoTimeout(5000);
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.writeInt(3);
+        out.flush();
+        assertEquals(-1, s.getInputStream().read());
+        s.close();
+
+        // the rest carry on as before
+        assertEquals("def of x", stub.getWord("x").getDefinition());
+    }
+
+    @Test
+    public void aBadRequestGetsAFailedReply() throws Exception {
+        Socket s = new Socket("127.0.0.1", ni.portNumber);
+        s.setSoTimeout(5000);
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        DataInputStream in = new DataInputStream(s.getInputStream());
+
+        // a method we don't have
+        out.writeInt(8 + 1 + 2);
+        out.writeLong(7);
+        out.writeByte(NioConnection.REQUEST);
+        out.writeShort(Short.MAX_VALUE);
+        out.flush();
+        in.readInt();
+        assertEquals(7, in.readLong());
+        assertEquals(NioConnection.REPLY, in.readByte());
+        assertFalse(in.readBoolean());
+        assertTrue(WireCodec.read(in) instanceof RemoteException);
+
+        // getWord with an argument cut short
+        short getWord = MethodTable.of(INode.class).idOf(
+                INode.class.getMethod("getWord", String.class));
+        out.writeInt(8 + 1 + 2 + 1);
+        out.writeLong(8);
+        out.writeByte(NioConnection.REQUEST);
+        out.writeShort(getWord);
+        out.writeByte(9);
+        out.flush();
+        in.readInt();
+        assertEquals(8, in.readLong());
+        assertEquals(NioConnection.REPLY, in.readByte());
+        assertFalse(in.readBoolean());
+        assertTrue(WireCodec.read(in) instanceof RemoteException);
+
+        // the connection is still good
+        out.writeInt(8 + 1 + 2);
+        out.writeLong(9);
+        out.writeByte(NioConnection.REQUEST);
+        out.writeShort(MethodTable.of(INode.class).idOf(
+                INode.class.getMethod("getPredecessor")));
+        out.flush();
+        in.readInt();
+        assertEquals(9, in.readLong());
+        assertEquals(NioConnection.REPLY, in.readByte());
+        assertFalse(in.readBoolean());
+        Object ex = WireCodec.read(in);
+        assertTrue(ex instanceof RemoteException);
+        assertTrue(((RemoteException) ex).getMessage().contains("no predecessor"));
+        s.close();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        int port = s.getLocalPort();
+        s.close();
+        return port;
+    }
+}
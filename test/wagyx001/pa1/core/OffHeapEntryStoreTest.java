@@ -0,0 +1,111 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Compaction of the off-heap arena: garbage is given back a buffer at a
+ * time and the entries that were moved can still be found
+ */
+public class OffHeapEntryStoreTest {
+
+    // a few records per buffer, so compaction starts early
+    private static final int BUFFER_BYTES = 1024;
+
+    @Test
+    public void rewritingWordsDropsBuffers() {
+        OffHeapEntryStore store = new OffHeapEntryStore(BUFFER_BYTES);
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.put(new DictionaryEntry("word" + i, "def " + round));
+            }
+        }
+        assertEquals(100, store.size());
+        // 5000 records of ~30 bytes would fill ~150 buffers; the live ones
+        // fit in a handful, and compaction keeps garbage to about that
+        assertTrue("buffers in use: " + store.buffersInUse(),
+                store.buffersInUse() < 20);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("def 49", store.get("word" + i).getDefinition());
+        }
+        assertEquals(100, store.all().size());
+        assertEquals(100, store.page(0, 0, null, 1000).size());
+    }
+
+    @Test
+    public void removingWordsDropsBuffers() {
+        OffHeapEntryStore store = new OffHeapEntryStore(BUFFER_BYTES);
+        for (int i = 0; i < 2000; i++) {
+            store.put(new DictionaryEntry("word" + i, "definition " + i));
+        }
+        int before = store.buffersInUse();
+        for (int i = 0; i < 2000; i++) {
+            if (i % 10 != 0) {
+                store.remove("word" + i);
+            }
+        }
+        assertEquals(200, store.size());
+        assertTrue(store.buffersInUse() < before / 2);
+        HashSet<String> words = new HashSet<String>();
+        for (DictionaryEntry e : store.all()) {
+            words.add(e.getWord());
+            assertEquals("definition " + e.getWord().substring(4),
+                    e.getDefinition());
+        }
+        assertEquals(200, words.size());
+        for (int i = 0; i < 2000; i++) {
+            if (i % 10 == 0) {
+                assertEquals("definition " + i,
+                        store.get("word" + i).getDefinition());
+            } else {
+                assertNull(store.get("word" + i));
+            }
+        }
+    }
+
+    @Test
+    public void readersKeepFindingWordsWhileBuffersMove() throws Exception {
+        final OffHeapEntryStore store = new OffHeapEntryStore(BUFFER_BYTES);
+        for (int i = 0; i < 200; i++) {
+            store.put(new DictionaryEntry("word" + i, "def"));
+        }
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final long stopAt = System.currentTimeMillis() + 500;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (System.currentTimeMillis() < stopAt) {
+                    for (int i = 0; i < 200; i++) {
+                        DictionaryEntry e = store.get("word" + i);
+                        if (e == null || !e.getWord().equals("word" + i)) {
+                            failure.set("lost word" + i);
+                            return;
+                        }
+                    }
+                    ArrayList<DictionaryEntry> page =
+                            store.page(0, 0, null, 1000);
+                    if (page.size() != 200) {
+                        failure.set("page of " + page.size());
+                        return;
+                    }
+                }
+            }
+        });
+        reader.start();
+        int round = 0;
+        while (System.currentTimeMillis() < stopAt) {
+            store.put(new DictionaryEntry("word" + (round % 200),
+                    "def " + round));
+            round++;
+        }
+        reader.join();
+        assertNull(failure.get(), failure.get());
+    }
+}
@@ -0,0 +1,120 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Interval arithmetic on the ring, mostly where it wraps round zero
+ */
+public class RingTest {
+
+    private static final long TOP = Ring.MASK;
+
+    @Test
+    public void addWrapsRoundTheRing() {
+        assertEquals(0, Ring.add(TOP, 1));
+        assertEquals(4, Ring.add(TOP, 5));
+        assertEquals(TOP, Ring.add(0, -1));
+    }
+
+    @Test
+    public void distanceGoesClockwise() {
+        assertEquals(10, Ring.distance(5, 15));
+        assertEquals(TOP - 9, Ring.distance(15, 5));
+        assertEquals(2, Ring.distance(TOP, 1));
+        assertEquals(0, Ring.distance(7, 7));
+    }
+
+    @Test
+    public void fingerStartWraps() {
+        assertEquals(Ring.add(TOP, 1), Ring.fingerStart(TOP, 1));
+        assertEquals(7, Ring.fingerStart(TOP, 4));
+    }
+
+    @Test
+    public void compareIsUnsigned() {
+        if (Ring.M == 64) {
+            assertTrue(Ring.compare(-1L, 1L) > 0);
+        }
+        assertTrue(Ring.compare(TOP, 0) > 0);
+        assertTrue(Ring.compare(3, 4) < 0);
+        assertEquals(0, Ring.compare(TOP, TOP));
+    }
+
+    @Test
+    public void halfOpenIntervalWithoutWrap() {
+        assertFalse(Ring.inHalfOpen(10, 10, 20));
+        assertTrue(Ring.inHalfOpen(11, 10, 20));
+        assertTrue(Ring.inHalfOpen(20, 10, 20));
+        assertFalse(Ring.inHalfOpen(21, 10, 20));
+        assertFalse(Ring.inHalfOpen(5, 10, 20));
+    }
+
+    @Test
+    public void halfOpenIntervalRoundZero() {
+        long from = TOP - 5;
+        long to = 5;
+        assertFalse(Ring.inHalfOpen(from, from, to));
+        assertTrue(Ring.inHalfOpen(TOP, from, to));
+        assertTrue(Ring.inHalfOpen(0, from, to));
+        assertTrue(Ring.inHalfOpen(5, from, to));
+        assertFalse(Ring.inHalfOpen(6, from, to));
+        assertFalse(Ring.inHalfOpen(TOP - 6, from, to));
+    }
+
+    @Test
+    public void halfOpenIntervalFromAnIdToItselfIsTheWholeRing() {
+        assertTrue(Ring.inHalfOpen(0, 42, 42));
+        assertTrue(Ring.inHalfOpen(42, 42, 42));
+        assertTrue(Ring.inHalfOpen(TOP, 42, 42));
+    }
+
+    @Test
+    public void openIntervalRoundZero() {
+        long from = TOP - 1;
+        long to = 1;
+        assertFalse(Ring.inOpen(from, from, to));
+        assertTrue(Ring.inOpen(TOP, from, to));
+        assertTrue(Ring.inOpen(0, from, to));
+        assertFalse(Ring.inOpen(1, from, to));
+    }
+
+    @Test
+    public void openIntervalFromAnIdToItselfIsAllButThatId() {
+        assertFalse(Ring.inOpen(42, 42, 42));
+        assertTrue(Ring.inOpen(43, 42, 42));
+        assertTrue(Ring.inOpen(41, 42, 42));
+    }
+
+    @Test
+    public void hashStaysOnTheRing() {
+        for (int i = 0; i < 1000; i++) {
+            long h = Ring.hash("word" + i);
+            assertEquals(h, h & Ring.MASK);
+            assertEquals(h, Ring.hash("word" + i));
+        }
+    }
+
+    @Test
+    public void wordsEqualIgnoringCaseHashAlike() {
+        String[][] pairs = { { "Word", "wORD" }, { "\u017ftop", "stop" },
+                { "\u212aey", "key" }, { "\u00c9t\u00e9", "\u00e9T\u00c9" } };
+        RingHash[] hashes = { new MurmurRingHash(), new Sha1RingHash() };
+        for (String[] p : pairs) {
+            assertTrue(p[0].equalsIgnoreCase(p[1]));
+            for (RingHash h : hashes) {
+                assertEquals(p[0] + " vs " + p[1], h.hash(p[0], 64),
+                        h.hash(p[1], 64));
+            }
+        }
+    }
+
+    @Test
+    public void toStringAndParseRoundTrip() {
+        assertEquals(TOP, Ring.parse(Ring.toString(TOP)));
+        assertEquals(0, Ring.parse(" 0 "));
+    }
+}
@@ -0,0 +1,160 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * Varints and the values the nio transport sends, there and back, and
+ * the bad input it refuses
+ */
+public class WireCodecTest {
+
+    @Test
+    public void varintsRoundTrip() throws IOException {
+        long[] values = { 0, 1, 127, 128, 16383, 16384, 0xFFFFFFFFL,
+                Long.MAX_VALUE, -1L, Long.MIN_VALUE };
+        for (long v : values) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Varint.writeUnsigned(new DataOutputStream(bytes), v);
+            assertEquals(v, Varint.readUnsigned(in(bytes)));
+        }
+    }
+
+    @Test
+    public void varintsAreSevenBitsToAByte() throws IOException {
+        assertEquals(1, varintSize(127));
+        assertEquals(2, varintSize(128));
+        assertEquals(5, varintSize(0xFFFFFFFFL));
+        assertEquals(10, varintSize(-1L));
+    }
+
+    @Test
+    public void varintIntsAndStrings() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Varint.writeInt(out, -5);
+        Varint.writeString(out, null);
+        Varint.writeString(out, "");
+        Varint.writeString(out, "h\u00e9llo");
+        DataInputStream in = in(bytes);
+        assertEquals(-5, Varint.readInt(in));
+        assertNull(Varint.readString(in));
+        assertEquals("", Varint.readString(in));
+        assertEquals("h\u00e9llo", Varint.readString(in));
+    }
+
+    @Test(expected = IOException.class)
+    public void tooLongAVarintIsRefused() throws IOException {
+        byte[] b = new byte[11];
+        java.util.Arrays.fill(b, (byte) 0x80);
+        Varint.readUnsigned(new DataInputStream(new ByteArrayInputStream(b)));
+    }
+
+    @Test
+    public void valuesRoundTrip() throws IOException {
+        assertNull(roundTrip(null));
+        assertEquals(Boolean.TRUE, roundTrip(true));
+        assertEquals(42, roundTrip(42));
+        assertEquals(Ring.MASK, roundTrip(Ring.MASK));
+        assertEquals("word", roundTrip("word"));
+        assertArrayEquals(new boolean[] { true, false, true },
+                (boolean[]) roundTrip(new boolean[] { true, false, true }));
+
+        NodeInfo ni = new NodeInfo(Ring.MASK, "10.1.2.3", 50001);
+        assertEquals(ni, roundTrip(ni));
+
+        DictionaryEntry e = new DictionaryEntry("Word", "a definition");
+        DictionaryEntry back = (DictionaryEntry) roundTrip(e);
+        assertEquals("Word", back.getWord());
+        assertEquals("a definition", back.getDefinition());
+        assertEquals(e.getKey(), back.getKey());
+
+        ArrayList<Object> list = new ArrayList<Object>();
+        list.add(ni);
+        list.add(null);
+        list.add("x");
+        assertEquals(list, roundTrip(list));
+    }
+
+    @Test
+    public void otherSerializableValuesRoundTrip() throws IOException {
+        HashMap<String, Long> map = new HashMap<String, Long>();
+        map.put("a", 1L);
+        assertEquals(map, roundTrip(map));
+        RuntimeException ex = (RuntimeException) roundTrip(
+                new IllegalStateException("no"));
+        assertEquals("no", ex.getMessage());
+    }
+
+    @Test(expected = IOException.class)
+    public void serializedValuesOfOtherTypesAreRefused() throws IOException {
+        roundTrip(new URL("http://example.com/"));
+    }
+
+    @Test(expected = IOException.class)
+    public void aNegativeCountIsRefused() throws IOException {
+        WireCodec.read(frame(7, -1));
+    }
+
+    @Test(expected = IOException.class)
+    public void aLengthPastTheEndOfTheFrameIsRefused() throws IOException {
+        WireCodec.read(frame(5, 1 << 30));
+    }
+
+    @Test(expected = IOException.class)
+    public void aHugeCountOfBooleansIsRefused() throws IOException {
+        WireCodec.read(frame(6, Integer.MAX_VALUE));
+    }
+
+    @Test(expected = IOException.class)
+    public void aBadVarintStringLengthIsRefused() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(9);
+        // the word's length, as a varint of 0xFFFFFFFF
+        Varint.writeUnsigned(out, 0xFFFFFFFFL);
+        WireCodec.read(in(bytes));
+    }
+
+    /**
+     * A frame holding just a tag and a four byte length
+     */
+    private static DataInputStream frame(int tag, int length)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(tag);
+        out.writeInt(length);
+        out.write(new byte[16]);
+        return in(bytes);
+    }
+
+    private static int varintSize(long v) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Varint.writeUnsigned(new DataOutputStream(bytes), v);
+        return bytes.size();
+    }
+
+    private static Object roundTrip(Object v) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WireCodec.write(new DataOutputStream(bytes), v);
+        return WireCodec.read(in(bytes));
+    }
+
+    private static DataInputStream in(ByteArrayOutputStream bytes) {
+        return new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
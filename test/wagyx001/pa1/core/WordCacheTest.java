@@ -0,0 +1,97 @@
+package wagyx001.pa1.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+/**
+ * The read-through word cache: case-insensitive hits, invalidation,
+ * expiry and its bound
+ */
+public class WordCacheTest {
+
+    @Test
+    public void hitsWhateverTheCase() {
+        WordCache cache = new WordCache(100, 60000);
+        cache.put(new DictionaryEntry("Word", "def"), cache.epoch());
+        assertEquals("def", cache.get("word").getDefinition());
+        assertEquals("def", cache.get("WORD").getDefinition());
+        assertNull(cache.get("other"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void invalidateDropsTheWord() {
+        WordCache cache = new WordCache(100, 60000);
+        cache.put(new DictionaryEntry("word", "def"), cache.epoch());
+        cache.invalidate("WORD");
+        assertNull(cache.get("word"));
+    }
+
+    @Test
+    public void aFetchOverlappingAnInvalidationIsNotCached() {
+        WordCache cache = new WordCache(100, 60000);
+        long fetchedAt = cache.epoch();
+        cache.invalidate("word");
+        cache.put(new DictionaryEntry("word", "old"), fetchedAt);
+        assertNull(cache.get("word"));
+    }
+
+    @Test
+    public void aFetchRacingAnInvalidationIsNotCached() throws Exception {
+        final WordCache cache = new WordCache(100, 60000);
+        for (int round = 0; round < 2000; round++) {
+            final long fetchedAt = cache.epoch();
+            final CyclicBarrier start = new CyclicBarrier(2);
+            Thread fetcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (Exception ex) {
+                        return;
+                    }
+                    cache.put(new DictionaryEntry("word", "old"), fetchedAt);
+                }
+            });
+            fetcher.start();
+            start.await();
+            cache.invalidate("word");
+            fetcher.join();
+            assertNull("cached in round " + round, cache.get("word"));
+        }
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        WordCache cache = new WordCache(100, 60000);
+        for (int i = 0; i < 10; i++) {
+            cache.put(new DictionaryEntry("word" + i, "def"), cache.epoch());
+        }
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("word3"));
+    }
+
+    @Test
+    public void entriesExpire() throws InterruptedException {
+        WordCache cache = new WordCache(100, 20);
+        cache.put(new DictionaryEntry("word", "def"), cache.epoch());
+        Thread.sleep(50);
+        assertNull(cache.get("word"));
+    }
+
+    @Test
+    public void staysWithinItsSize() {
+        WordCache cache = new WordCache(256, 60000);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(new DictionaryEntry("word" + i, "def"), cache.epoch());
+        }
+        assertTrue("size " + cache.size(), cache.size() <= 256);
+    }
+}